@@ -0,0 +1,147 @@
+package com.ocient.jdbc;
+
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/*
+ * The Spliterator behind XGResultSet.stream().
+ *
+ * Rows come from the result set a fetch block at a time, each block as its own XGBatch. Splitting
+ * hands off the rest of the current block (fetching the next one first if it's used up) and
+ * keeps the rest of the result set, so in a parallel stream the blocks get mapped on different
+ * threads while whoever holds the root keeps fetching. A split off block can be split in half
+ * again. Fetching is serialized on the result set, mapping isn't.
+ */
+class BatchSpliterator<T> implements Spliterator<T>
+{
+	// don't bother splitting off less than this many rows
+	private static final int MIN_SPLIT_ROWS = 64;
+
+	private final XGResultSet rs;
+	private final RowMapper<T> mapper;
+	// set for the one that keeps fetching, null for the ones over a single block
+	private final boolean fetches;
+	private final XGRow row;
+	private XGBatch batch;
+	private int next;
+	private int end;
+
+	BatchSpliterator(final XGResultSet rs, final RowMapper<T> mapper)
+	{
+		this(rs, mapper, true, null, 0, 0);
+	}
+
+	private BatchSpliterator(final XGResultSet rs, final RowMapper<T> mapper, final boolean fetches,
+			final XGBatch batch, final int next, final int end)
+	{
+		this.rs = rs;
+		this.mapper = mapper;
+		this.fetches = fetches;
+		this.row = new XGRow(rs);
+		this.batch = batch;
+		this.next = next;
+		this.end = end;
+	}
+
+	/*
+	 * Makes sure there's a row left, fetching the next block if we're allowed to. Returns false if
+	 * there isn't one.
+	 */
+	private boolean fill()
+	{
+		if (next < end)
+		{
+			return true;
+		}
+
+		if (!fetches)
+		{
+			return false;
+		}
+
+		final XGBatch fetched = new XGBatch();
+		try
+		{
+			synchronized (rs)
+			{
+				if (!rs.nextBatch(fetched))
+				{
+					batch = null;
+					next = end = 0;
+					return false;
+				}
+			}
+		}
+		catch (final SQLException e)
+		{
+			throw new UncheckedSQLException(e);
+		}
+
+		batch = fetched;
+		next = 0;
+		end = fetched.numRows();
+		return true;
+	}
+
+	@Override
+	public boolean tryAdvance(final Consumer<? super T> action)
+	{
+		if (!fill())
+		{
+			return false;
+		}
+
+		row.moveTo(batch, next++);
+		try
+		{
+			action.accept(mapper.map(row));
+		}
+		catch (final SQLException e)
+		{
+			throw new UncheckedSQLException(e);
+		}
+
+		return true;
+	}
+
+	@Override
+	public Spliterator<T> trySplit()
+	{
+		if (!fill())
+		{
+			return null;
+		}
+
+		if (fetches)
+		{
+			// the rest of the current block comes first, so it's the prefix we hand off
+			final Spliterator<T> prefix = new BatchSpliterator<>(rs, mapper, false, batch, next, end);
+			batch = null;
+			next = end = 0;
+			return prefix;
+		}
+
+		if (end - next < 2 * MIN_SPLIT_ROWS)
+		{
+			return null;
+		}
+
+		final int mid = (next + end) >>> 1;
+		final Spliterator<T> prefix = new BatchSpliterator<>(rs, mapper, false, batch, next, mid);
+		next = mid;
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize()
+	{
+		return fetches ? Long.MAX_VALUE : end - next;
+	}
+
+	@Override
+	public int characteristics()
+	{
+		return fetches ? ORDERED : ORDERED | SIZED | SUBSIZED;
+	}
+}
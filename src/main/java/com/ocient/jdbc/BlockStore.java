@@ -0,0 +1,189 @@
+package com.ocient.jdbc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/*
+ * Every block fetched so far for a scroll insensitive result set, so the cursor can go back to rows
+ * it has already passed.
+ *
+ * Blocks are kept as the blobs they came in, which is about as compact as the rows get, and decoded
+ * again when the cursor moves into them. The first heapBudget bytes worth of blocks stay on the heap,
+ * anything after that is written to a temp file and memory mapped, so a huge result set costs disk
+ * and page cache rather than heap.
+ *
+ * Entries are numbered like the cursor positions in XGResultSet: one per row, plus one for the end of
+ * data marker once we've seen it.
+ */
+class BlockStore
+{
+	private static class Block
+	{
+		final long start;
+		final List<ByteString> blobs;
+
+		Block(final long start, final List<ByteString> blobs)
+		{
+			this.start = start;
+			this.blobs = blobs;
+		}
+	}
+
+	private final long heapBudget;
+	private final ArrayList<Block> blocks = new ArrayList<>();
+	private long heapBytes = 0;
+	private long numEntries = 0;
+	private boolean complete = false;
+
+	private FileChannel spill;
+	private long spillSize = 0;
+
+	public BlockStore(final long heapBudget)
+	{
+		this.heapBudget = heapBudget;
+	}
+
+	/*
+	 * Adds the next block, which has the given number of entries and ends with the end of data marker
+	 * if dataEnd is set. The blobs are copied, so they don't have to outlive this call.
+	 */
+	public void add(final List<ByteString> blobs, final int entries, final boolean dataEnd) throws SQLException
+	{
+		if (entries == 0)
+		{
+			return;
+		}
+
+		long size = 0;
+		for (final ByteString blob : blobs)
+		{
+			size += blob.size();
+		}
+
+		final List<ByteString> copies = new ArrayList<>(blobs.size());
+		if (heapBytes + size <= heapBudget)
+		{
+			for (final ByteString blob : blobs)
+			{
+				copies.add(ByteString.copyFrom(blob.asReadOnlyByteBuffer()));
+			}
+
+			heapBytes += size;
+		}
+		else
+		{
+			for (final ByteString blob : blobs)
+			{
+				copies.add(spill(blob));
+			}
+		}
+
+		blocks.add(new Block(numEntries, copies));
+		numEntries += entries;
+		complete = dataEnd;
+	}
+
+	private ByteString spill(final ByteString blob) throws SQLException
+	{
+		try
+		{
+			if (spill == null)
+			{
+				final Path path = Files.createTempFile("ocient-resultset", ".spill");
+				spill = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+						StandardOpenOption.DELETE_ON_CLOSE);
+			}
+
+			final long start = spillSize;
+			final ByteBuffer src = blob.asReadOnlyByteBuffer();
+			long pos = start;
+			while (src.hasRemaining())
+			{
+				pos += spill.write(src, pos);
+			}
+
+			spillSize = pos;
+			return UnsafeByteOperations.unsafeWrap(spill.map(FileChannel.MapMode.READ_ONLY, start, blob.size()));
+		}
+		catch (final IOException e)
+		{
+			throw SQLStates.newGenericException(e);
+		}
+	}
+
+	/*
+	 * True once we've got the block with the end of data marker, i.e. the whole result set
+	 */
+	public boolean isComplete()
+	{
+		return complete;
+	}
+
+	/*
+	 * Number of entries in all the blocks so far
+	 */
+	public long numEntries()
+	{
+		return numEntries;
+	}
+
+	/*
+	 * Index of the block holding the given entry, which must be less than numEntries()
+	 */
+	public int find(final long entry)
+	{
+		int low = 0;
+		int high = blocks.size() - 1;
+		while (low < high)
+		{
+			final int mid = (low + high + 1) >>> 1;
+			if (blocks.get(mid).start <= entry)
+			{
+				low = mid;
+			}
+			else
+			{
+				high = mid - 1;
+			}
+		}
+
+		return low;
+	}
+
+	public long start(final int block)
+	{
+		return blocks.get(block).start;
+	}
+
+	public List<ByteString> blobs(final int block)
+	{
+		return blocks.get(block).blobs;
+	}
+
+	public void close()
+	{
+		blocks.clear();
+		if (spill != null)
+		{
+			try
+			{
+				// the mapped blocks go away whenever they get collected
+				spill.close();
+			}
+			catch (final IOException e)
+			{}
+
+			spill = null;
+		}
+	}
+}
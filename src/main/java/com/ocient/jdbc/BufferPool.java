@@ -0,0 +1,79 @@
+package com.ocient.jdbc;
+
+import java.util.ArrayList;
+
+/*
+ * A small pool of byte arrays that responses are read into off the socket.
+ *
+ * FetchData responses are parsed with aliasing on, so the blobs in the parsed message point
+ * straight into the array instead of being copied out of it. That means an array can only go back
+ * to the pool once nothing refers to its blobs anymore, which is up to whoever acquired it.
+ */
+class BufferPool
+{
+	// arrays are at least this big so small responses all share the same few arrays
+	private static final int MIN_SIZE = 64 * 1024;
+	// don't hang on to more than this many free arrays
+	private static final int MAX_FREE = 4;
+
+	private final ArrayList<byte[]> free = new ArrayList<>();
+
+	/*
+	 * Returns an array of at least length bytes. Its contents are undefined.
+	 */
+	public synchronized byte[] acquire(final int length)
+	{
+		int best = -1;
+		for (int i = 0; i < free.size(); i++)
+		{
+			final int size = free.get(i).length;
+			if (size >= length && (best == -1 || size < free.get(best).length))
+			{
+				best = i;
+			}
+		}
+
+		if (best != -1)
+		{
+			return free.remove(best);
+		}
+
+		int size = MIN_SIZE;
+		while (size < length && size > 0)
+		{
+			size <<= 1;
+		}
+
+		return new byte[size > 0 ? size : length];
+	}
+
+	public synchronized void release(final byte[] buffer)
+	{
+		if (buffer == null)
+		{
+			return;
+		}
+
+		if (free.size() == MAX_FREE)
+		{
+			// drop the smallest one, the big ones are the expensive ones to reallocate
+			int smallest = 0;
+			for (int i = 1; i < free.size(); i++)
+			{
+				if (free.get(i).length < free.get(smallest).length)
+				{
+					smallest = i;
+				}
+			}
+
+			if (free.get(smallest).length >= buffer.length)
+			{
+				return;
+			}
+
+			free.remove(smallest);
+		}
+
+		free.add(buffer);
+	}
+}
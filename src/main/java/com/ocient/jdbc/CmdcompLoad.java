@@ -0,0 +1,299 @@
+package com.ocient.jdbc;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ocient.jdbc.proto.ClientWireProtocol.LoadBroadcast;
+
+/*
+ * What this JVM knows about how busy each cmdcomp is, so new connections and reconnects go to the
+ * least loaded one that's up instead of always the first in the list.
+ *
+ * For each cmdcomp we keep the last load it broadcast (LoadBroadcast, only heard on multiplexed
+ * connections), how many of our connections are on it, the round trip of the first handshake
+ * message, and whether it recently refused a connection. Each node also remembers the cmdcomps
+ * list from its handshake, which is how a URL that names one node finds the rest of the cluster.
+ */
+class CmdcompLoad
+{
+	// a node that refused a connection is tried last for this long, about a heartbeat timeout
+	private static final long DOWN_NANOS = TimeUnit.SECONDS.toNanos(30);
+	// broadcasts older than this no longer count
+	private static final long LOAD_TTL_NANOS = TimeUnit.SECONDS.toNanos(60);
+	// weight of the newest sample in the round trip average
+	private static final double LATENCY_ALPHA = 0.2;
+	// how long a host name lookup is reused, past that it's only used if a new lookup fails
+	private static final long DNS_TTL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+	private static class Lookup
+	{
+		final InetAddress[] addrs;
+		final long nanos = System.nanoTime();
+
+		Lookup(final InetAddress[] addrs)
+		{
+			this.addrs = addrs;
+		}
+	}
+
+	private static class Node
+	{
+		volatile double load = 0;
+		volatile long loadNanos;
+		volatile boolean hasLoad = false;
+		volatile double latencyNanos = 0;
+		final AtomicInteger connections = new AtomicInteger();
+		volatile long downNanos;
+		volatile boolean down = false;
+		volatile List<String> cluster = Collections.emptyList();
+
+		boolean isDown(final long now)
+		{
+			return down && now - downNanos < DOWN_NANOS;
+		}
+
+		boolean hasLoad(final long now)
+		{
+			return hasLoad && now - loadNanos < LOAD_TTL_NANOS;
+		}
+	}
+
+	private static final ConcurrentHashMap<InetSocketAddress, Node> NODES = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, Lookup> LOOKUPS = new ConcurrentHashMap<>();
+
+	private CmdcompLoad()
+	{}
+
+	private static Node node(final InetSocketAddress address)
+	{
+		return NODES.computeIfAbsent(address, a -> new Node());
+	}
+
+	/*
+	 * The addresses of host. During a rolling restart DNS can be slow or briefly wrong, so a lookup
+	 * that fails falls back to the last one that didn't.
+	 */
+	static InetAddress[] resolve(final String host) throws UnknownHostException
+	{
+		final Lookup cached = LOOKUPS.get(host);
+		if (cached != null && System.nanoTime() - cached.nanos < DNS_TTL_NANOS)
+		{
+			return cached.addrs;
+		}
+
+		try
+		{
+			final InetAddress[] addrs = InetAddress.getAllByName(host);
+			LOOKUPS.put(host, new Lookup(addrs));
+			return addrs;
+		}
+		catch (final UnknownHostException e)
+		{
+			if (cached != null)
+			{
+				return cached.addrs;
+			}
+
+			throw e;
+		}
+	}
+
+	/*
+	 * Parses a "host:port" cmdcomp, null if it isn't one
+	 */
+	static InetSocketAddress address(final String cmdcomp)
+	{
+		final int colon = cmdcomp.lastIndexOf(':');
+		if (colon <= 0)
+		{
+			return null;
+		}
+
+		final String host = cmdcomp.substring(0, colon);
+		final int port;
+		try
+		{
+			port = Integer.parseInt(cmdcomp.substring(colon + 1));
+			if (port < 0 || port > 0xFFFF)
+			{
+				return null;
+			}
+		}
+		catch (final NumberFormatException e)
+		{
+			return null;
+		}
+
+		try
+		{
+			return new InetSocketAddress(resolve(host)[0], port);
+		}
+		catch (final UnknownHostException e)
+		{
+			// left for the connect attempt to fail on
+			return InetSocketAddress.createUnresolved(host, port);
+		}
+	}
+
+	static List<InetSocketAddress> addresses(final List<String> cmdcomps)
+	{
+		final ArrayList<InetSocketAddress> ret = new ArrayList<>(cmdcomps.size());
+		for (final String cmdcomp : cmdcomps)
+		{
+			final InetSocketAddress address = address(cmdcomp);
+			if (address != null)
+			{
+				ret.add(address);
+			}
+		}
+
+		return ret;
+	}
+
+	/*
+	 * Orders nodes from the one a new connection should go to first. Nodes that are down go last,
+	 * then it's by broadcast load (nodes we haven't heard from count as average), then by how many
+	 * of our connections are on them, then by round trip. Ties are broken randomly so that clients
+	 * with nothing to go on don't all pick the same node.
+	 */
+	static List<InetSocketAddress> rank(final List<InetSocketAddress> nodes)
+	{
+		final long now = System.nanoTime();
+		double loads = 0;
+		int heard = 0;
+		for (final InetSocketAddress address : nodes)
+		{
+			final Node node = NODES.get(address);
+			if (node != null && node.hasLoad(now))
+			{
+				loads += node.load;
+				heard++;
+			}
+		}
+		final double average = heard > 0 ? loads / heard : 0;
+
+		// snapshot the keys, so the order doesn't change under the sort
+		final HashMap<InetSocketAddress, double[]> keys = new HashMap<>();
+		for (final InetSocketAddress address : nodes)
+		{
+			final Node node = NODES.get(address);
+			keys.put(address, node == null ? new double[] { 0, average, 0, 0 }
+					: new double[] { node.isDown(now) ? 1 : 0, node.hasLoad(now) ? node.load : average,
+						node.connections.get(), node.latencyNanos });
+		}
+
+		final ArrayList<InetSocketAddress> ret = new ArrayList<>(nodes);
+		Collections.shuffle(ret);
+		ret.sort((a, b) -> {
+			final double[] x = keys.get(a);
+			final double[] y = keys.get(b);
+			for (int i = 0; i < x.length; i++)
+			{
+				final int c = Double.compare(x[i], y[i]);
+				if (c != 0)
+				{
+					return c;
+				}
+			}
+
+			return 0;
+		});
+		return ret;
+	}
+
+	/*
+	 * Where to try connecting for a URL naming host:port, best first. If one of host's addresses
+	 * told us about its cluster before, that's the whole cluster, ranked, followed by whatever of
+	 * host's addresses it didn't list. Otherwise just host's addresses, with those that are down
+	 * last.
+	 */
+	static List<InetSocketAddress> candidates(final String host, final int port, final boolean balance)
+			throws UnknownHostException
+	{
+		final ArrayList<InetSocketAddress> named = new ArrayList<>();
+		List<String> cluster = Collections.emptyList();
+		for (final InetAddress addr : resolve(host))
+		{
+			final InetSocketAddress address = new InetSocketAddress(addr, port);
+			named.add(address);
+			final Node node = NODES.get(address);
+			if (balance && cluster.isEmpty() && node != null)
+			{
+				cluster = node.cluster;
+			}
+		}
+
+		if (!balance)
+		{
+			return named;
+		}
+
+		final List<InetSocketAddress> ret = rank(addresses(cluster));
+		for (final InetSocketAddress address : rank(named))
+		{
+			if (!ret.contains(address))
+			{
+				ret.add(address);
+			}
+		}
+
+		return ret;
+	}
+
+	/*
+	 * One of our connections finished its handshake with address
+	 */
+	static void connected(final InetSocketAddress address, final List<String> cluster, final long roundTripNanos)
+	{
+		final Node node = node(address);
+		node.connections.incrementAndGet();
+		node.down = false;
+		node.latencyNanos = node.latencyNanos == 0 ? roundTripNanos
+				: (1 - LATENCY_ALPHA) * node.latencyNanos + LATENCY_ALPHA * roundTripNanos;
+		if (!cluster.isEmpty())
+		{
+			node.cluster = Collections.unmodifiableList(new ArrayList<>(cluster));
+		}
+	}
+
+	static void disconnected(final InetSocketAddress address)
+	{
+		final Node node = NODES.get(address);
+		if (node != null)
+		{
+			node.connections.decrementAndGet();
+		}
+	}
+
+	/*
+	 * We couldn't connect to address
+	 */
+	static void failed(final InetSocketAddress address)
+	{
+		final Node node = node(address);
+		node.downNanos = System.nanoTime();
+		node.down = true;
+	}
+
+	static void load(final LoadBroadcast broadcast)
+	{
+		final InetSocketAddress address = address(broadcast.getCmdcompId());
+		if (address == null)
+		{
+			return;
+		}
+
+		final Node node = node(address);
+		node.load = broadcast.getLoad();
+		node.loadNanos = System.nanoTime();
+		node.hasLoad = true;
+	}
+}
@@ -0,0 +1,94 @@
+package com.ocient.jdbc;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Maps column labels to (1-based) column indexes for the label based getters.
+ *
+ * It's built once per result set. Labels are interned, and lookups first check a small identity
+ * cache, so the usual callers (string literals, which are interned, or labels taken from the
+ * metadata and passed back in over and over) get their answer without hashing or comparing any
+ * strings. Everything else falls back to an exact match and then, if enabled, a case-insensitive
+ * one.
+ *
+ * Lookups can come from several threads at once (a parallel stream() calling the label getters).
+ * The maps are only read after the constructor, and each cache slot holds one immutable entry
+ * written in a single store, so a racing reader sees either a whole entry or an older one.
+ */
+class ColumnIndex
+{
+	// must be a power of 2
+	private static final int CACHE_SIZE = 64;
+
+	private final Map<String, Integer> exact = new HashMap<>();
+	private final Map<String, Integer> upperCase;
+	private final Entry[] cache = new Entry[CACHE_SIZE];
+
+	private static class Entry
+	{
+		private final String label;
+		private final int index;
+
+		private Entry(final String label, final int index)
+		{
+			this.label = label;
+			this.index = index;
+		}
+	}
+
+	public ColumnIndex(final Map<String, Integer> cols2Pos, final boolean caseInsensitive)
+	{
+		upperCase = caseInsensitive ? new HashMap<>() : null;
+		for (final Map.Entry<String, Integer> entry : cols2Pos.entrySet())
+		{
+			final String label = entry.getKey().intern();
+			final int index = entry.getValue() + 1;
+			exact.put(label, index);
+			if (upperCase != null)
+			{
+				// if two labels only differ in case, the first one wins, same as most drivers
+				upperCase.putIfAbsent(label.toUpperCase(Locale.ROOT), index);
+			}
+
+			cache(label, index);
+		}
+	}
+
+	/*
+	 * Returns the 1-based index of the column with the given label, or 0 if there isn't one
+	 */
+	public int find(final String label)
+	{
+		final Entry cached = cache[System.identityHashCode(label) & (CACHE_SIZE - 1)];
+		if (cached != null && cached.label == label)
+		{
+			return cached.index;
+		}
+
+		if (label == null)
+		{
+			return 0;
+		}
+
+		Integer index = exact.get(label);
+		if (index == null && upperCase != null)
+		{
+			index = upperCase.get(label.toUpperCase(Locale.ROOT));
+		}
+
+		if (index == null)
+		{
+			return 0;
+		}
+
+		cache(label, index);
+		return index;
+	}
+
+	private void cache(final String label, final int index)
+	{
+		cache[System.identityHashCode(label) & (CACHE_SIZE - 1)] = new Entry(label, index);
+	}
+}
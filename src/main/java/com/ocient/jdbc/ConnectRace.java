@@ -0,0 +1,198 @@
+package com.ocient.jdbc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Connects to the first of several addresses that answers, "happy eyeballs" style. The attempts
+ * start in order, each one either once the previous one failed or after a short head start, so an
+ * address that doesn't answer at all only costs the head start instead of the whole timeout. The
+ * first socket to connect wins, the rest are closed.
+ */
+class ConnectRace
+{
+	// how long an attempt gets before the next one starts alongside it
+	private static final long HEAD_START_MILLIS = 250;
+
+	private static final ExecutorService ATTEMPTS = Executors.newCachedThreadPool(r -> {
+		final Thread thread = new Thread(r, "XGConnection connect");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/*
+	 * How an attempt ended, either socket or error is set
+	 */
+	private static class Outcome
+	{
+		final InetSocketAddress address;
+		final Socket socket;
+		final IOException error;
+
+		Outcome(final InetSocketAddress address, final Socket socket, final IOException error)
+		{
+			this.address = address;
+			this.socket = socket;
+			this.error = error;
+		}
+	}
+
+	private final LinkedBlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+	private final ArrayList<Socket> pending = new ArrayList<>();
+	private boolean done = false;
+
+	private ConnectRace()
+	{}
+
+	/*
+	 * Returns a socket connected to one of the addresses, preferring those earlier in the list. Each
+	 * attempt gets up to timeoutMillis. Addresses that fail are reported to CmdcompLoad.
+	 */
+	static Socket connect(final List<InetSocketAddress> addresses, final int timeoutMillis) throws IOException
+	{
+		if (addresses.isEmpty())
+		{
+			throw new IOException("No address to connect to");
+		}
+
+		return new ConnectRace().race(addresses, timeoutMillis);
+	}
+
+	private Socket race(final List<InetSocketAddress> addresses, final int timeoutMillis) throws IOException
+	{
+		int started = 0;
+		int finished = 0;
+		IOException lastError = null;
+		try
+		{
+			start(addresses.get(started++), timeoutMillis);
+			while (finished < started)
+			{
+				final Outcome outcome;
+				try
+				{
+					outcome = outcomes.poll(started < addresses.size() ? HEAD_START_MILLIS : timeoutMillis,
+							TimeUnit.MILLISECONDS);
+				}
+				catch (final InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+
+				if (outcome == null)
+				{
+					if (started < addresses.size())
+					{
+						start(addresses.get(started++), timeoutMillis);
+					}
+
+					continue;
+				}
+
+				finished++;
+				if (outcome.socket != null)
+				{
+					return outcome.socket;
+				}
+
+				CmdcompLoad.failed(outcome.address);
+				lastError = outcome.error;
+				if (started < addresses.size())
+				{
+					// no point waiting out the head start
+					start(addresses.get(started++), timeoutMillis);
+				}
+			}
+		}
+		finally
+		{
+			finish();
+		}
+
+		throw lastError != null ? lastError : new SocketTimeoutException();
+	}
+
+	private void start(final InetSocketAddress address, final int timeoutMillis) throws IOException
+	{
+		final Socket sock = new Socket();
+		sock.setReceiveBufferSize(4194304);
+		sock.setSendBufferSize(4194304);
+		synchronized (this)
+		{
+			pending.add(sock);
+		}
+
+		ATTEMPTS.execute(() -> {
+			try
+			{
+				sock.connect(address, timeoutMillis);
+				if (!report(sock, new Outcome(address, sock, null)))
+				{
+					sock.close();
+				}
+			}
+			catch (final IOException e)
+			{
+				report(sock, new Outcome(address, null, e));
+			}
+		});
+	}
+
+	/*
+	 * Passes an outcome on to race(), unless it already returned
+	 */
+	private synchronized boolean report(final Socket sock, final Outcome outcome)
+	{
+		pending.remove(sock);
+		if (done)
+		{
+			return false;
+		}
+
+		outcomes.add(outcome);
+		return true;
+	}
+
+	/*
+	 * Closes the sockets that lost, including those still connecting
+	 */
+	private void finish()
+	{
+		final ArrayList<Socket> losers = new ArrayList<>();
+		synchronized (this)
+		{
+			done = true;
+			losers.addAll(pending);
+			pending.clear();
+		}
+
+		// the winner was taken off the queue already
+		Outcome outcome;
+		while ((outcome = outcomes.poll()) != null)
+		{
+			if (outcome.socket != null)
+			{
+				losers.add(outcome.socket);
+			}
+		}
+
+		for (final Socket sock : losers)
+		{
+			try
+			{
+				sock.close();
+			}
+			catch (final IOException e)
+			{}
+		}
+	}
+}
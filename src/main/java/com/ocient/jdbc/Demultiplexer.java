@@ -0,0 +1,354 @@
+package com.ocient.jdbc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.protobuf.CodedInputStream;
+import com.ocient.jdbc.proto.ClientWireProtocol.Request;
+
+/*
+ * Reads the responses off a multiplexed connection and hands each one to the stream its request
+ * went out on (see Request.stream_id), so many statements and result sets can have requests in
+ * flight on the same socket.
+ *
+ * Once multiplexing is agreed on, every message from the server starts with an 8 byte header: the
+ * 4 byte length of the message, then the 4 byte id of the stream it answers, both big endian.
+ * PUSH_STREAM marks a Request the server sends unasked, such as a LOAD_BROADCAST.
+ *
+ * Each stream reads like the socket used to: a 4 byte length followed by the response. Stream 0
+ * belongs to the connection itself. Once the socket fails, every stream hits end of file.
+ */
+class Demultiplexer implements Runnable
+{
+	private static final Logger LOGGER = Logger.getLogger("com.ocient.jdbc");
+
+	// the stream id of a message that isn't a response to anything
+	static final int PUSH_STREAM = -1;
+
+	/*
+	 * One message as read off the socket, in a buffer from the connection's pool
+	 */
+	static class Frame
+	{
+		final byte[] data;
+		final int length;
+
+		Frame(final byte[] data, final int length)
+		{
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	private static final Frame EOF = new Frame(new byte[0], 0);
+
+	/*
+	 * The responses to the requests sent on one stream, in the order they arrived
+	 */
+	class StreamInput extends InputStream
+	{
+		private final int id;
+		private final LinkedBlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+		// the frame read() is in the middle of, pos counts the 4 length bytes in front of it
+		private Frame frame;
+		private int pos;
+
+		private StreamInput(final int id)
+		{
+			this.id = id;
+		}
+
+		public int getId()
+		{
+			return id;
+		}
+
+		public Demultiplexer getDemultiplexer()
+		{
+			return Demultiplexer.this;
+		}
+
+		/*
+		 * Responses that arrive for this stream from now on are dropped
+		 */
+		public void release()
+		{
+			if (id != 0 && streams.remove(id, this))
+			{
+				Frame unread;
+				while ((unread = frames.poll()) != null)
+				{
+					recycle(unread);
+				}
+			}
+		}
+
+		/*
+		 * The next response as a whole, without copying it out of the buffer it was read into. The
+		 * caller owns the buffer and gives it back to the pool once done with it. Returns null at
+		 * end of file.
+		 */
+		public Frame take() throws IOException
+		{
+			if (frame != null)
+			{
+				throw new IOException("Response partly read");
+			}
+
+			final Frame next = next();
+			if (next == EOF)
+			{
+				frames.offer(EOF);
+				return null;
+			}
+
+			return next;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+
+			if (frame == null)
+			{
+				final Frame next = next();
+				if (next == EOF)
+				{
+					// leave it there for the next read
+					frames.offer(EOF);
+					return -1;
+				}
+
+				frame = next;
+				pos = 0;
+			}
+
+			int n = 0;
+			while (pos < 4 && len > 0)
+			{
+				b[off++] = (byte) (frame.length >> (8 * (3 - pos)));
+				pos++;
+				len--;
+				n++;
+			}
+
+			final int copy = Math.min(len, frame.length - (pos - 4));
+			System.arraycopy(frame.data, pos - 4, b, off, copy);
+			pos += copy;
+			n += copy;
+			if (pos == 4 + frame.length)
+			{
+				recycle(frame);
+				frame = null;
+			}
+
+			return n;
+		}
+
+		private Frame next() throws IOException
+		{
+			try
+			{
+				return frames.take();
+			}
+			catch (final InterruptedException e)
+			{
+				throw new InterruptedIOException();
+			}
+		}
+
+		private void deliver(final Frame frame)
+		{
+			frames.offer(frame);
+		}
+	}
+
+	private final InputStream in;
+	private final BufferPool pool;
+	private final ConcurrentHashMap<Integer, StreamInput> streams = new ConcurrentHashMap<>();
+	private final AtomicInteger nextId = new AtomicInteger(1);
+	private final StreamInput own;
+	private final Thread thread;
+	private volatile boolean closed = false;
+
+	public Demultiplexer(final InputStream in, final BufferPool pool)
+	{
+		this.in = in;
+		this.pool = pool;
+		own = new StreamInput(0);
+		streams.put(0, own);
+		thread = new Thread(this, "XGConnection demultiplexer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * The connection's own stream
+	 */
+	public StreamInput stream()
+	{
+		return own;
+	}
+
+	/*
+	 * Opens a new stream. Release it once nothing more is expected on it.
+	 */
+	public StreamInput open()
+	{
+		int id = nextId.getAndIncrement();
+		while (id == 0 || id == PUSH_STREAM)
+		{
+			// wrapped around
+			id = nextId.getAndIncrement();
+		}
+
+		final StreamInput stream = new StreamInput(id);
+		streams.put(id, stream);
+		if (closed)
+		{
+			stream.deliver(EOF);
+		}
+
+		return stream;
+	}
+
+	/*
+	 * Stops routing responses. The socket is closed by the connection, which ends the thread.
+	 */
+	public void close()
+	{
+		closed = true;
+		for (final StreamInput stream : streams.values())
+		{
+			stream.deliver(EOF);
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			final byte[] header = new byte[8];
+			while (!closed)
+			{
+				readFully(header, 0, 8);
+				final java.nio.ByteBuffer bb = java.nio.ByteBuffer.wrap(header);
+				final int size = bb.getInt();
+				final int id = bb.getInt();
+				final byte[] data = pool.acquire(size);
+				try
+				{
+					readFully(data, 0, size);
+				}
+				catch (final IOException e)
+				{
+					pool.release(data);
+					throw e;
+				}
+
+				route(id, new Frame(data, size));
+			}
+		}
+		catch (final Exception e)
+		{
+			if (!closed)
+			{
+				LOGGER.log(Level.FINE, "Demultiplexer stopped", e);
+			}
+		}
+
+		close();
+	}
+
+	private void route(final int id, final Frame frame) throws IOException
+	{
+		if (id == PUSH_STREAM)
+		{
+			try
+			{
+				push(Request.parseFrom(CodedInputStream.newInstance(frame.data, 0, frame.length)));
+			}
+			finally
+			{
+				recycle(frame);
+			}
+
+			return;
+		}
+
+		final StreamInput stream = streams.get(id);
+		if (stream != null)
+		{
+			stream.deliver(frame);
+			return;
+		}
+
+		recycle(frame);
+		if (id > 0 && id < nextId.get())
+		{
+			// the statement gave up on it, see StreamInput.release()
+			LOGGER.log(Level.FINE, "Dropped a response for released stream " + id);
+		}
+		else
+		{
+			LOGGER.log(Level.WARNING, "Dropped a response for stream " + id + ", which was never opened");
+		}
+	}
+
+	/*
+	 * A message the server sent unasked
+	 */
+	private static void push(final Request request)
+	{
+		switch (request.getType())
+		{
+			case LOAD_BROADCAST:
+				CmdcompLoad.load(request.getLoadBroadcast());
+				break;
+			default:
+				LOGGER.log(Level.WARNING, "Ignored unexpected " + request.getType() + " from the server");
+				break;
+		}
+	}
+
+	private void recycle(final Frame frame)
+	{
+		if (frame != EOF)
+		{
+			pool.release(frame.data);
+		}
+	}
+
+	private void readFully(final byte[] data, int off, final int len) throws IOException
+	{
+		final int end = off + len;
+		while (off < end)
+		{
+			final int temp = in.read(data, off, end - off);
+			if (temp == -1)
+			{
+				throw new IOException();
+			}
+
+			off += temp;
+		}
+	}
+}
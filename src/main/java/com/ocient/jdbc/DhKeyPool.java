@@ -0,0 +1,94 @@
+package com.ocient.jdbc;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.crypto.spec.DHParameterSpec;
+
+/*
+ * Diffie-Hellman key pairs generated ahead of time. Generating one is most of the client's share
+ * of a handshake, so when many connections open or reconnect at once (a pool filling up, a node
+ * restarting) they each take a ready one and a background thread makes more.
+ *
+ * Pairs are kept per parameter set, since a pair only works with the server's p and g. Each pair
+ * is handed out once.
+ */
+class DhKeyPool
+{
+	// how many pairs to keep ready for each parameter set
+	private static final int POOL_SIZE = 4;
+
+	private static final ConcurrentHashMap<String, LinkedBlockingQueue<KeyPair>> POOLS = new ConcurrentHashMap<>();
+	private static final Set<String> REFILLING = Collections.newSetFromMap(new ConcurrentHashMap<>());
+	private static final ExecutorService REFILL = Executors.newSingleThreadExecutor(r -> {
+		final Thread thread = new Thread(r, "XGConnection DH keys");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	});
+
+	private DhKeyPool()
+	{}
+
+	/*
+	 * A key pair for params that no one else gets, generated now if none is ready
+	 */
+	static KeyPair take(final DHParameterSpec params) throws GeneralSecurityException
+	{
+		final String key = key(params);
+		final LinkedBlockingQueue<KeyPair> pool = POOLS.computeIfAbsent(key, k -> new LinkedBlockingQueue<>());
+		KeyPair kp = pool.poll();
+		if (kp == null)
+		{
+			kp = generate(params);
+		}
+
+		refill(key, params, pool);
+		return kp;
+	}
+
+	private static void refill(final String key, final DHParameterSpec params, final LinkedBlockingQueue<KeyPair> pool)
+	{
+		if (pool.size() >= POOL_SIZE || !REFILLING.add(key))
+		{
+			return;
+		}
+
+		REFILL.execute(() -> {
+			try
+			{
+				while (pool.size() < POOL_SIZE)
+				{
+					pool.offer(generate(params));
+				}
+			}
+			catch (final GeneralSecurityException e)
+			{
+				// take() will report it when it generates inline
+			}
+			finally
+			{
+				REFILLING.remove(key);
+			}
+		});
+	}
+
+	private static KeyPair generate(final DHParameterSpec params) throws GeneralSecurityException
+	{
+		final KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DH");
+		keyGen.initialize(params);
+		return keyGen.generateKeyPair();
+	}
+
+	private static String key(final DHParameterSpec params)
+	{
+		return params.getP().toString(16) + ":" + params.getG().toString(16) + ":" + params.getL();
+	}
+}
@@ -0,0 +1,419 @@
+package com.ocient.jdbc;
+
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.List;
+
+import com.google.protobuf.ByteString;
+
+/*
+ * A block of rows from a single FETCH_DATA response, kept in wire format.
+ *
+ * Rather than decoding every cell into an object up front, we walk the blobs once to record where
+ * each cell starts. XGResultSet then decodes a cell only when a getter actually asks for it, so
+ * reading a few columns out of a wide row doesn't pay for the rest of the row.
+ *
+ * Numeric columns are the exception: while indexing we also copy them into primitive column
+ * vectors (with a null bitmap), so getInt()/getLong()/getDouble() and friends never box. TIMESTAMP,
+ * DATE and TIME columns get the same treatment, as epoch milliseconds.
+ */
+class FetchBlock
+{
+	private final ByteBuffer[] buffers;
+	private int numRows = 0;
+	private boolean dataEnd = false;
+
+	// For row r, its cells are cellOffsets[rowStart[r]] up to cellOffsets[rowStart[r + 1]] and they
+	// all live in buffers[rowBuffer[r]]. The offsets point at the type tag of each cell.
+	private int[] rowBuffer;
+	private int[] rowStart;
+	private int[] cellOffsets;
+	private int numCells = 0;
+
+	// Expected wire type of each column. INT, SHORT and BYTE columns are stored in ints, LONG,
+	// TIMESTAMP, DATE and TIME in longs, and FLOAT and DOUBLE in doubles. A column has a vector iff
+	// nulls[col] != null.
+	private final byte[] colTypes;
+	private final int[][] ints;
+	private final long[][] longs;
+	private final double[][] doubles;
+	private final long[][] nulls;
+
+	public FetchBlock(final List<ByteString> blobs, final byte[] colTypes) throws SQLException
+	{
+		final int numCols = colTypes.length;
+		this.colTypes = colTypes;
+		buffers = new ByteBuffer[blobs.size()];
+		int expectedRows = 0;
+		for (int i = 0; i < buffers.length; i++)
+		{
+			buffers[i] = blobs.get(i).asReadOnlyByteBuffer().slice();
+			if (buffers[i].limit() >= 4)
+			{
+				expectedRows += buffers[i].getInt(0);
+			}
+		}
+
+		rowBuffer = new int[expectedRows];
+		rowStart = new int[expectedRows + 1];
+		cellOffsets = new int[expectedRows * Math.max(numCols, 1)];
+
+		ints = new int[numCols][];
+		longs = new long[numCols][];
+		doubles = new double[numCols][];
+		nulls = new long[numCols][];
+		for (int i = 0; i < numCols; i++)
+		{
+			switch (colTypes[i])
+			{
+				case 1: //INT
+				case 10: //BYTE
+				case 11: //SHORT
+					ints[i] = new int[expectedRows];
+					break;
+				case 2: //LONG
+				case 6: //Timestamp
+				case 12: //TIME
+				case 19: //Date
+					longs[i] = new long[expectedRows];
+					break;
+				case 3: //FLOAT
+				case 4: //DOUBLE
+					doubles[i] = new double[expectedRows];
+					break;
+				default:
+					continue;
+			}
+
+			nulls[i] = new long[(expectedRows + 63) >>> 6];
+		}
+
+		for (int i = 0; i < buffers.length; i++)
+		{
+			final ByteBuffer bb = buffers[i];
+			if (isBufferDem(bb))
+			{
+				dataEnd = true;
+				break;
+			}
+
+			index(bb, i);
+		}
+	}
+
+	private static boolean isBufferDem(final ByteBuffer bb)
+	{
+		return bb.limit() > 8 && bb.get(8) == 0;
+	}
+
+	private void index(final ByteBuffer bb, final int bufferNum) throws SQLException
+	{
+		final int rows = bb.getInt(0);
+		int offset = 4;
+		for (int i = 0; i < rows; i++)
+		{
+			final int rowLength = bb.getInt(offset);
+			final int end = offset + rowLength;
+			offset += 4;
+
+			rowBuffer[numRows] = bufferNum;
+			rowStart[numRows] = numCells;
+			while (offset < end)
+			{
+				if (numCells == cellOffsets.length)
+				{
+					final int[] bigger = new int[Math.max(16, cellOffsets.length * 2)];
+					System.arraycopy(cellOffsets, 0, bigger, 0, numCells);
+					cellOffsets = bigger;
+				}
+
+				final int col = numCells - rowStart[numRows];
+				if (col < nulls.length && nulls[col] != null)
+				{
+					readPrimitive(bb, offset, col);
+				}
+
+				cellOffsets[numCells++] = offset;
+				offset = skipValue(bb, offset);
+			}
+
+			numRows++;
+			rowStart[numRows] = numCells;
+		}
+	}
+
+	private void readPrimitive(final ByteBuffer bb, final int offset, final int col)
+	{
+		final byte type = bb.get(offset);
+		if (type == 7) //Null
+		{
+			nulls[col][numRows >>> 6] |= (1L << numRows);
+			return;
+		}
+
+		if (type != colTypes[col])
+		{
+			// Not what the metadata told us to expect, so leave this column to the generic decoder
+			ints[col] = null;
+			longs[col] = null;
+			doubles[col] = null;
+			nulls[col] = null;
+			return;
+		}
+
+		switch (type)
+		{
+			case 1: //INT
+				ints[col][numRows] = bb.getInt(offset + 1);
+				break;
+			case 10: //BYTE
+				ints[col][numRows] = bb.get(offset + 1);
+				break;
+			case 11: //SHORT
+				ints[col][numRows] = bb.getShort(offset + 1);
+				break;
+			case 2: //LONG
+			case 6: //Timestamp
+			case 12: //TIME
+			case 19: //Date
+				longs[col][numRows] = bb.getLong(offset + 1);
+				break;
+			case 3: //FLOAT
+				doubles[col][numRows] = Float.intBitsToFloat(bb.getInt(offset + 1));
+				break;
+			case 4: //DOUBLE
+				doubles[col][numRows] = Double.longBitsToDouble(bb.getLong(offset + 1));
+				break;
+		}
+	}
+
+	/*
+	 * Returns the offset just past the value whose type tag is at offset
+	 */
+	static int skipValue(final ByteBuffer bb, int offset) throws SQLException
+	{
+		final byte type = bb.get(offset);
+		offset++;
+		switch (type)
+		{
+			case 7: //Null
+				return offset;
+			case 8: //BOOL
+			case 10: //BYTE
+				return offset + 1;
+			case 11: //SHORT
+				return offset + 2;
+			case 1: //INT
+			case 3: //FLOAT
+			case 18: //IPV4
+				return offset + 4;
+			case 2: //LONG
+			case 4: //DOUBLE
+			case 6: //Timestamp
+			case 12: //TIME
+			case 19: //Date
+				return offset + 8;
+			case 15: //UUID
+			case 16: //ST_POINT
+			case 17: //IP
+				return offset + 16;
+			case 5: //STRING
+			case 9: //BINARY
+				return offset + 4 + bb.getInt(offset);
+			case 13: //DECIMAL
+				return offset + 2 + XGResultSet.bcdLength(bb.get(offset));
+			case 14: //ARRAY
+			{
+				int nestedLevel = 0;
+				byte elementType = 0;
+				do
+				{
+					nestedLevel++;
+					elementType = bb.get(offset);
+					offset++;
+				} while (elementType == 14);
+
+				return skipArray(bb, offset, nestedLevel);
+			}
+			default:
+				throw SQLStates.INVALID_COLUMN_TYPE.clone();
+		}
+	}
+
+	/*
+	 * Returns the offset just past the array whose element count is at offset
+	 */
+	static int skipArray(final ByteBuffer bb, int offset, int nestedLevel) throws SQLException
+	{
+		final int numElements = bb.getInt(offset);
+		offset += 4;
+		nestedLevel--;
+
+		final byte nullByte = bb.get(offset);
+		offset++;
+		if (nullByte != 0)
+		{
+			return offset;
+		}
+
+		for (int i = 0; i < numElements; i++)
+		{
+			if (nestedLevel > 0)
+			{
+				offset = skipArray(bb, offset, nestedLevel);
+			}
+			else
+			{
+				offset = skipValue(bb, offset);
+			}
+		}
+
+		return offset;
+	}
+
+	/*
+	 * Number of entries in the block, counting the end of data marker if we saw one
+	 */
+	public int size()
+	{
+		return dataEnd ? numRows + 1 : numRows;
+	}
+
+	public int numRows()
+	{
+		return numRows;
+	}
+
+	public boolean isDataEnd(final int row)
+	{
+		return dataEnd && row == numRows;
+	}
+
+	public int numColumns(final int row)
+	{
+		return rowStart[row + 1] - rowStart[row];
+	}
+
+	public ByteBuffer buffer(final int row)
+	{
+		return buffers[rowBuffer[row]];
+	}
+
+	/*
+	 * Offset of the type tag of the given (0-based) column within buffer(row)
+	 */
+	public int offset(final int row, final int col)
+	{
+		return cellOffsets[rowStart[row] + col];
+	}
+
+	/*
+	 * True if the given (0-based) column is numeric and held in a primitive vector
+	 */
+	public boolean isPrimitive(final int col)
+	{
+		return col >= 0 && col < nulls.length && nulls[col] != null && !isTemporal(colTypes[col]);
+	}
+
+	/*
+	 * True if the given (0-based) column is a TIMESTAMP, DATE or TIME held as epoch milliseconds, which
+	 * getLong() returns
+	 */
+	public boolean isEpoch(final int col)
+	{
+		return col >= 0 && col < nulls.length && nulls[col] != null && isTemporal(colTypes[col]);
+	}
+
+	private static boolean isTemporal(final byte type)
+	{
+		return type == 6 || type == 12 || type == 19;
+	}
+
+	/*
+	 * Copies rows from (inclusive) to to (exclusive) of the given (0-based) column into dst. Returns
+	 * false, having copied nothing, if the column isn't held in a vector.
+	 */
+	public boolean copyTo(final int col, final int from, final int to, final XGBatch.Column dst)
+	{
+		if (col < 0 || col >= nulls.length || nulls[col] == null)
+		{
+			return false;
+		}
+
+		final int rows = to - from;
+		if (ints[col] != null)
+		{
+			dst.reset(XGBatch.Layout.INT, rows);
+			System.arraycopy(ints[col], from, dst.ints, 0, rows);
+		}
+		else if (longs[col] != null)
+		{
+			dst.reset(XGBatch.Layout.LONG, rows);
+			System.arraycopy(longs[col], from, dst.longs, 0, rows);
+		}
+		else
+		{
+			dst.reset(XGBatch.Layout.DOUBLE, rows);
+			System.arraycopy(doubles[col], from, dst.doubles, 0, rows);
+		}
+
+		for (int i = 0; i < rows; i++)
+		{
+			if (isNull(from + i, col))
+			{
+				dst.setNull(i);
+			}
+		}
+
+		return true;
+	}
+
+	public boolean isNull(final int row, final int col)
+	{
+		return (nulls[col][row >>> 6] & (1L << row)) != 0;
+	}
+
+	// The conversions below match what Number.xxxValue() does on the boxed value
+
+	public int getInt(final int row, final int col)
+	{
+		if (ints[col] != null)
+		{
+			return ints[col][row];
+		}
+		else if (longs[col] != null)
+		{
+			return (int) longs[col][row];
+		}
+
+		return (int) doubles[col][row];
+	}
+
+	public long getLong(final int row, final int col)
+	{
+		if (ints[col] != null)
+		{
+			return ints[col][row];
+		}
+		else if (longs[col] != null)
+		{
+			return longs[col][row];
+		}
+
+		return (long) doubles[col][row];
+	}
+
+	public double getDouble(final int row, final int col)
+	{
+		if (ints[col] != null)
+		{
+			return ints[col][row];
+		}
+		else if (longs[col] != null)
+		{
+			return longs[col][row];
+		}
+
+		return doubles[col][row];
+	}
+}
@@ -0,0 +1,72 @@
+package com.ocient.jdbc;
+
+/*
+ * Picks the number of rows to ask for in each FetchData request when adaptive fetch sizing is on.
+ *
+ * The first request is small so the first row shows up quickly. After each response we update our
+ * estimate of bytes per row and grow the fetch size toward whatever number of rows fits in the
+ * target block size. While round trips are cheap we grow aggressively, once they get slow we just
+ * double. If rows turn out to be wide the fetch size shrinks right away to keep blocks (and the
+ * heap) in check.
+ */
+class FetchSizer
+{
+	static final int INITIAL_ROWS = 1000;
+	static final int MAX_ROWS = 1000000;
+
+	// a fetch that comes back faster than this is considered cheap
+	private static final long FAST_FETCH_NANOS = 100L * 1000 * 1000;
+
+	private final long targetBytes;
+	private int fetchSize = INITIAL_ROWS;
+	private double bytesPerRow = 0;
+	private boolean observed = false;
+
+	public FetchSizer(final long targetBytes)
+	{
+		this.targetBytes = targetBytes;
+	}
+
+	/*
+	 * Takes the server's estimate of the size of the whole result set. If it all fits in one block
+	 * there's no point in starting small, so we ask for everything at once.
+	 */
+	public synchronized void setEstimatedSizeInBytes(final long sizeInBytes)
+	{
+		if (!observed && sizeInBytes > 0 && sizeInBytes <= targetBytes)
+		{
+			fetchSize = MAX_ROWS;
+		}
+	}
+
+	public synchronized int nextFetchSize()
+	{
+		return fetchSize;
+	}
+
+	/*
+	 * Records a response of the given number of rows and bytes that took nanos to come back
+	 */
+	public synchronized void observe(final int rows, final long bytes, final long nanos)
+	{
+		if (rows <= 0)
+		{
+			// ping or end of data, tells us nothing about the rows
+			return;
+		}
+
+		final double sample = (double) bytes / rows;
+		bytesPerRow = observed ? (bytesPerRow + sample) / 2 : sample;
+		observed = true;
+
+		final int goal = (int) Math.max(1, Math.min(MAX_ROWS, targetBytes / Math.max(1.0, bytesPerRow)));
+		if (goal <= fetchSize)
+		{
+			fetchSize = goal;
+			return;
+		}
+
+		final long grown = nanos < FAST_FETCH_NANOS ? fetchSize * 4L : fetchSize * 2L;
+		fetchSize = (int) Math.min(goal, grown);
+	}
+}
@@ -1,15 +1,17 @@
 package com.ocient.jdbc;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.UnknownHostException;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.DriverPropertyInfo;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.Timer;
 import java.util.concurrent.atomic.AtomicReference;
@@ -61,70 +63,132 @@ public class JDBCDriver implements Driver
 				return null;
 			}
 
-			final int portDelim = arg0.indexOf(":", "jdbc:ocient://".length());
-			if (portDelim < 0)
-			{
-				throw SQLStates.MALFORMED_URL.clone();
-			}
-			final int dbDelim = arg0.indexOf("/", portDelim);
+			final int dbDelim = arg0.indexOf("/", "jdbc:ocient://".length());
 			if (dbDelim < 0)
 			{
 				throw SQLStates.MALFORMED_URL.clone();
 			}
-			final String hostname = arg0.substring("jdbc:ocient://".length(), portDelim);
-			final String port = arg0.substring(portDelim + 1, dbDelim);
+			// host:port, or several of them separated by commas
+			final String hosts = arg0.substring("jdbc:ocient://".length(), dbDelim);
 			final String db = arg0.substring(dbDelim + 1);
-			int portNum = 0;
+			final ArrayList<String> hostnames = new ArrayList<>();
+			final ArrayList<Integer> portNums = new ArrayList<>();
+			parseHosts(hosts, hostnames, portNums);
+
+			// parsed before connecting, so a bad value doesn't cost a socket
+			final int prefetchBlocks;
+			final long fetchTargetBytes;
+			final int decodeThreads;
+			final Long scrollHeapBytes;
+			final Integer maxSubConnections;
+			final long cacheBytes;
+			final long cacheTtl;
 			try
 			{
-				portNum = Integer.parseInt(port);
+				prefetchBlocks = Integer.parseInt(arg1.getProperty("prefetch", "0"));
+				fetchTargetBytes = Long.parseLong(arg1.getProperty("fetchbytes", "0"));
+				decodeThreads = Integer.parseInt(arg1.getProperty("decodethreads", "0"));
+				scrollHeapBytes = arg1.getProperty("scrollheapbytes") != null
+						? Long.valueOf(arg1.getProperty("scrollheapbytes")) : null;
+				maxSubConnections = arg1.getProperty("subconnections") != null
+						? Integer.valueOf(arg1.getProperty("subconnections")) : null;
+				cacheBytes = Long.parseLong(arg1.getProperty("resultcachebytes", "0"));
+				cacheTtl = Long.parseLong(arg1.getProperty("resultcachettl", "0"));
 			}
-			catch (final Exception e)
+			catch (final NumberFormatException e)
 			{
-				throw SQLStates.MALFORMED_URL.clone();
+				throw SQLStates.INVALID_ARGUMENT.clone();
 			}
 
 			Socket sock = null;
 			try
 			{
-				final InetAddress[] addrs = InetAddress.getAllByName(hostname);
-				boolean connected = false;
-				Throwable lastError = null;
-				for (InetAddress addr : addrs) {
-					try {
-						sock = new Socket();
-						sock.setReceiveBufferSize(4194304);
-						sock.setSendBufferSize(4194304);
-						sock.connect(new InetSocketAddress(addr, portNum), 10000);
-						connected = true;
-						break;
-					} catch (final Throwable e) {
-						lastError = e;
+				// the least loaded cmdcomp of the cluster, if an earlier connection told us about it,
+				// then the hosts in the URL in order
+				final boolean balance = !arg1.getProperty("force", "false").equals("true");
+				final ArrayList<InetSocketAddress> addrs = new ArrayList<>();
+				UnknownHostException unknown = null;
+				for (int i = 0; i < hostnames.size(); i++)
+				{
+					try
+					{
+						for (final InetSocketAddress addr : CmdcompLoad.candidates(hostnames.get(i), portNums.get(i), balance))
+						{
+							if (!addrs.contains(addr))
+							{
+								addrs.add(addr);
+							}
+						}
+					}
+					catch (final UnknownHostException e)
+					{
+						unknown = e;
 					}
 				}
-				if (!connected && lastError != null) {
-					// Represents failure to connect.  Socket will be cleaned up in catch block.
-					throw lastError;
+				if (addrs.isEmpty() && unknown != null)
+				{
+					throw unknown;
 				}
+
+				// all of them at once, with a head start for the earlier ones
+				sock = ConnectRace.connect(addrs, 10000);
 			}
 			catch (final Throwable e)
 			{
-				try
+				if (sock != null)
 				{
-					sock.close();
+					try
+					{
+						sock.close();
+					}
+					catch (final IOException f)
+					{}
 				}
-				catch (final IOException f)
-				{}
 
 				final SQLException g = SQLStates.FAILED_CONNECTION.clone();
-				final Exception connInfo = new Exception("Connection failed connecting to " + hostname + ":" + portNum);
+				final Exception connInfo = new Exception("Connection failed connecting to " + hosts);
 				g.initCause(connInfo);
 				connInfo.initCause(e);
 				throw g;
 			}
 
-			return new XGConnection(sock, arg1.getProperty("user"), arg1.getProperty("password"), portNum, arg0, db,
-					version, arg1.getProperty("force", "false"));
+			final XGConnection conn = new XGConnection(sock, arg1.getProperty("user"), arg1.getProperty("password"),
+					sock.getPort(), arg0, db, version, arg1.getProperty("force", "false"));
+			conn.setLazyDecode(arg1.getProperty("lazydecode", "false").equals("true"));
+			conn.setDedupStrings(arg1.getProperty("dedupstrings", "false").equals("true"));
+			conn.setCaseInsensitiveLabels(arg1.getProperty("caseinsensitivelabels", "false").equals("true"));
+			try
+			{
+				// the setters check the ranges
+				conn.setPrefetchBlocks(prefetchBlocks);
+				conn.setFetchTargetBytes(fetchTargetBytes);
+				conn.setDecodeThreads(decodeThreads);
+				if (scrollHeapBytes != null)
+				{
+					conn.setScrollHeapBytes(scrollHeapBytes);
+				}
+				if (maxSubConnections != null)
+				{
+					conn.setMaxSubConnections(maxSubConnections);
+				}
+				if (cacheBytes > 0)
+				{
+					conn.setQueryCache(QueryCache.shared(cacheBytes, cacheTtl, arg1.getProperty("resultcachedir")));
+				}
+			}
+			catch (final SQLException | RuntimeException e)
+			{
+				// nobody gets the connection, so don't leave its socket open
+				try
+				{
+					conn.close();
+				}
+				catch (final SQLException f)
+				{}
+
+				throw e;
+			}
+			return conn;
 		}
 		catch (final Exception e)
 		{
@@ -159,7 +223,7 @@ public class JDBCDriver implements Driver
 
 	@Override
 	public DriverPropertyInfo[] getPropertyInfo(final String arg0, final Properties arg1) throws SQLException {
-		final DriverPropertyInfo[] retval = new DriverPropertyInfo[4];
+		final DriverPropertyInfo[] retval = new DriverPropertyInfo[15];
 		final DriverPropertyInfo user = new DriverPropertyInfo("user", null);
 		user.description = "The userid to use for the connection";
 		user.required = true;
@@ -185,6 +249,70 @@ public class JDBCDriver implements Driver
 		logfile.required = false;
 		retval[3] = logfile;
 
+		final DriverPropertyInfo lazydecode = new DriverPropertyInfo("lazydecode", null);
+		lazydecode.description = "Decode result set values only when they are read";
+		lazydecode.required = false;
+		lazydecode.choices = new String[2];
+		lazydecode.choices[0] = "true";
+		lazydecode.choices[1] = "false";
+		retval[4] = lazydecode;
+
+		final DriverPropertyInfo prefetch = new DriverPropertyInfo("prefetch", null);
+		prefetch.description = "Number of result set blocks to fetch ahead in the background (0 to disable)";
+		prefetch.required = false;
+		retval[5] = prefetch;
+
+		final DriverPropertyInfo fetchbytes = new DriverPropertyInfo("fetchbytes", null);
+		fetchbytes.description = "Target size in bytes of each result set block, enables adaptive fetch sizing (0 to disable)";
+		fetchbytes.required = false;
+		retval[6] = fetchbytes;
+
+		final DriverPropertyInfo dedupstrings = new DriverPropertyInfo("dedupstrings", null);
+		dedupstrings.description = "Share one String object between repeated values of a column";
+		dedupstrings.required = false;
+		dedupstrings.choices = new String[2];
+		dedupstrings.choices[0] = "true";
+		dedupstrings.choices[1] = "false";
+		retval[7] = dedupstrings;
+
+		final DriverPropertyInfo caseinsensitivelabels = new DriverPropertyInfo("caseinsensitivelabels", null);
+		caseinsensitivelabels.description = "Match column labels case-insensitively when there's no exact match";
+		caseinsensitivelabels.required = false;
+		caseinsensitivelabels.choices = new String[2];
+		caseinsensitivelabels.choices[0] = "true";
+		caseinsensitivelabels.choices[1] = "false";
+		retval[8] = caseinsensitivelabels;
+
+		final DriverPropertyInfo decodethreads = new DriverPropertyInfo("decodethreads", null);
+		decodethreads.description = "Number of threads to decode the parts of each result set block on in parallel (0 to disable)";
+		decodethreads.required = false;
+		retval[9] = decodethreads;
+
+		final DriverPropertyInfo scrollheapbytes = new DriverPropertyInfo("scrollheapbytes", null);
+		scrollheapbytes.description = "Bytes of fetched blocks a scroll insensitive result set keeps on the heap before spilling to a temp file";
+		scrollheapbytes.required = false;
+		retval[10] = scrollheapbytes;
+
+		final DriverPropertyInfo resultcachebytes = new DriverPropertyInfo("resultcachebytes", null);
+		resultcachebytes.description = "When greater than 0, repeated queries are answered from a client side cache holding up to this many bytes of results";
+		resultcachebytes.required = false;
+		retval[11] = resultcachebytes;
+
+		final DriverPropertyInfo resultcachettl = new DriverPropertyInfo("resultcachettl", null);
+		resultcachettl.description = "Milliseconds a cached result stays valid, 0 means until it's evicted or invalidated";
+		resultcachettl.required = false;
+		retval[12] = resultcachettl;
+
+		final DriverPropertyInfo resultcachedir = new DriverPropertyInfo("resultcachedir", null);
+		resultcachedir.description = "Directory to also keep cached results in, so they survive restarts";
+		resultcachedir.required = false;
+		retval[13] = resultcachedir;
+
+		final DriverPropertyInfo subconnections = new DriverPropertyInfo("subconnections", null);
+		subconnections.description = "How many extra sockets a connection may open so statements can run while another result set is open, 0 means none";
+		subconnections.required = false;
+		retval[14] = subconnections;
+
 		return retval;
 	}
 
@@ -193,6 +321,31 @@ public class JDBCDriver implements Driver
 		return false;
 	}
 
+	/*
+	 * Splits the "host:port,host:port" part of a URL into hostnames and portNums, in order
+	 */
+	static void parseHosts(final String hosts, final List<String> hostnames, final List<Integer> portNums)
+			throws SQLException {
+		for (final String host : hosts.split(","))
+		{
+			final int portDelim = host.lastIndexOf(":");
+			if (portDelim <= 0)
+			{
+				throw SQLStates.MALFORMED_URL.clone();
+			}
+
+			try
+			{
+				portNums.add(Integer.parseInt(host.substring(portDelim + 1)));
+			}
+			catch (final Exception e)
+			{
+				throw SQLStates.MALFORMED_URL.clone();
+			}
+			hostnames.add(host.substring(0, portDelim));
+		}
+	}
+
 	private void configLogger(final Properties props) {
 		String loglevel = props.getProperty("loglevel");
 		if (loglevel != null) {
@@ -0,0 +1,724 @@
+package com.ocient.jdbc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.UnsafeByteOperations;
+import com.ocient.jdbc.proto.ClientWireProtocol;
+
+/*!
+ * A client side cache of query results, so running the same query over and over doesn't have to
+ * go to the cluster every time.
+ *
+ * Results are kept the way they came off the wire, as the blobs of every FetchData response plus
+ * the column metadata, and decoded again for each result set handed out. The cache is bounded by
+ * the total size of those blobs and evicts the least recently used results first. Results also
+ * expire ttlMillis after they were fetched, if ttlMillis is greater than zero.
+ *
+ * With a directory, every result is also written there and memory mapped back in when it isn't on
+ * the heap, so cached results survive the JVM going away. The directory is held to maxBytes as
+ * well, dropping the files least recently written or read first.
+ *
+ * Nothing here knows when the underlying tables change. Updates run through the driver invalidate
+ * their database, anything else has to call invalidate() or invalidateAll().
+ */
+public class QueryCache
+{
+	private static final Logger LOGGER = Logger.getLogger("com.ocient.jdbc");
+
+	private static final int MAGIC = 0x4F435243; // OCRC
+	private static final String SUFFIX = ".rcache";
+
+	// caches created from connection properties, shared by every connection with the same settings
+	private static final HashMap<String, QueryCache> SHARED = new HashMap<>();
+
+	private static class Entry
+	{
+		final String key;
+		final String database;
+		final Map<String, Integer> cols2Pos;
+		final Map<String, String> cols2Types;
+		final List<ByteString> blobs;
+		final long size;
+		final long expiresAt;
+
+		Entry(final String key, final String database, final Map<String, Integer> cols2Pos,
+				final Map<String, String> cols2Types, final List<ByteString> blobs, final long expiresAt)
+		{
+			this.key = key;
+			this.database = database;
+			this.cols2Pos = cols2Pos;
+			this.cols2Types = cols2Types;
+			this.blobs = blobs;
+			this.expiresAt = expiresAt;
+			long size = 0;
+			for (final ByteString blob : blobs)
+			{
+				size += blob.size();
+			}
+
+			this.size = size;
+		}
+
+		boolean isExpired(final long now)
+		{
+			return expiresAt > 0 && now >= expiresAt;
+		}
+	}
+
+	/*!
+	 * What a cache hit gives back: the column metadata and the blobs of the result
+	 */
+	public static class Result
+	{
+		private final Entry entry;
+
+		private Result(final Entry entry)
+		{
+			this.entry = entry;
+		}
+
+		public Map<String, Integer> getCols2Pos()
+		{
+			return entry.cols2Pos;
+		}
+
+		public Map<String, String> getCols2Types()
+		{
+			return entry.cols2Types;
+		}
+
+		public List<ByteString> getBlobs()
+		{
+			return entry.blobs;
+		}
+	}
+
+	/*
+	 * Collects the blobs of a result set as they're fetched, and puts them in the cache once the end
+	 * of data shows up. Only used by one thread at a time.
+	 */
+	static class Recorder
+	{
+		private final QueryCache cache;
+		private final String key;
+		private final String database;
+		private final Map<String, Integer> cols2Pos;
+		private final Map<String, String> cols2Types;
+		private final ArrayList<ByteString> blobs = new ArrayList<>();
+		private long size = 0;
+
+		private Recorder(final QueryCache cache, final String key, final String database,
+				final Map<String, Integer> cols2Pos, final Map<String, String> cols2Types)
+		{
+			this.cache = cache;
+			this.key = key;
+			this.database = database;
+			this.cols2Pos = cols2Pos;
+			this.cols2Types = cols2Types;
+		}
+
+		/*
+		 * Adds the blobs of the next FetchData response, the last one if dataEnd is set. They get
+		 * copied, so they don't have to outlive this call. Returns false once there's nothing more to
+		 * record.
+		 */
+		boolean add(final ClientWireProtocol.ResultSet re, final boolean dataEnd)
+		{
+			for (final ByteString blob : re.getBlobsList())
+			{
+				size += blob.size();
+				if (size > cache.maxBytes)
+				{
+					// too big to cache, stop copying
+					blobs.clear();
+					return false;
+				}
+
+				blobs.add(ByteString.copyFrom(blob.asReadOnlyByteBuffer()));
+			}
+
+			if (dataEnd)
+			{
+				cache.put(key, database, cols2Pos, cols2Types, blobs);
+				return false;
+			}
+
+			return true;
+		}
+	}
+
+	private final long maxBytes;
+	private final long ttlMillis;
+	private final Path dir;
+
+	// in least recently used order
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/*!
+	 * A cache holding up to maxBytes of results on the heap, which expire after ttlMillis (0 means
+	 * never). dir is where to keep the disk tier, or null for none.
+	 */
+	public QueryCache(final long maxBytes, final long ttlMillis, final String dir) throws SQLException
+	{
+		this.maxBytes = maxBytes;
+		this.ttlMillis = ttlMillis;
+		if (dir == null)
+		{
+			this.dir = null;
+			return;
+		}
+
+		this.dir = Paths.get(dir);
+		try
+		{
+			Files.createDirectories(this.dir);
+		}
+		catch (final IOException e)
+		{
+			throw SQLStates.newGenericException(e);
+		}
+	}
+
+	/*
+	 * The cache for the given settings, creating it the first time they're asked for
+	 */
+	static QueryCache shared(final long maxBytes, final long ttlMillis, final String dir) throws SQLException
+	{
+		final String settings = maxBytes + "/" + ttlMillis + "/" + dir;
+		synchronized (SHARED)
+		{
+			QueryCache cache = SHARED.get(settings);
+			if (cache == null)
+			{
+				cache = new QueryCache(maxBytes, ttlMillis, dir);
+				SHARED.put(settings, cache);
+			}
+
+			return cache;
+		}
+	}
+
+	/*
+	 * The cache key for a query. Whitespace and comments outside of quotes don't change what a query
+	 * means, so each run of them becomes one space.
+	 */
+	static String key(final String user, final String database, final String schema, final long pso,
+			final String sql)
+	{
+		final StringBuilder key = new StringBuilder(sql.length() + 64);
+		key.append(user).append('\0').append(database).append('\0').append(schema).append('\0').append(pso)
+				.append('\0');
+		char quote = 0;
+		boolean space = false;
+		for (int i = 0; i < sql.length(); i++)
+		{
+			final char c = sql.charAt(i);
+			if (quote == 0 && Character.isWhitespace(c))
+			{
+				space = true;
+				continue;
+			}
+
+			if (quote == 0 && sql.startsWith("--", i))
+			{
+				// to the end of the line, which ends the comment and not the query
+				final int end = sql.indexOf('\n', i);
+				i = end < 0 ? sql.length() : end;
+				space = true;
+				continue;
+			}
+
+			if (quote == 0 && sql.startsWith("/*", i))
+			{
+				final int end = sql.indexOf("*/", i + 2);
+				i = end < 0 ? sql.length() : end + 1;
+				space = true;
+				continue;
+			}
+
+			if (space && key.charAt(key.length() - 1) != '\0')
+			{
+				key.append(' ');
+			}
+
+			space = false;
+			if (quote == 0 && (c == '\'' || c == '"'))
+			{
+				quote = c;
+			}
+			else if (c == quote)
+			{
+				quote = 0;
+			}
+
+			key.append(c);
+		}
+
+		return key.toString();
+	}
+
+	/*
+	 * Starts recording a result set that missed, for the given key
+	 */
+	Recorder record(final String key, final String database, final Map<String, Integer> cols2Pos,
+			final Map<String, String> cols2Types)
+	{
+		return new Recorder(this, key, database, cols2Pos, cols2Types);
+	}
+
+	/*!
+	 * The cached result for the key, or null if there isn't one
+	 */
+	public Result get(final String key)
+	{
+		final long now = System.currentTimeMillis();
+		synchronized (this)
+		{
+			final Entry entry = entries.get(key);
+			if (entry != null)
+			{
+				if (!entry.isExpired(now))
+				{
+					hits++;
+					return new Result(entry);
+				}
+
+				remove(entry);
+			}
+		}
+
+		// Maybe it's on disk. Reading it doesn't need the lock.
+		final Entry entry = load(key, now);
+		synchronized (this)
+		{
+			if (entry == null)
+			{
+				misses++;
+				return null;
+			}
+
+			hits++;
+			add(entry);
+			return new Result(entry);
+		}
+	}
+
+	private void put(final String key, final String database, final Map<String, Integer> cols2Pos,
+			final Map<String, String> cols2Types, final List<ByteString> blobs)
+	{
+		final Entry entry = new Entry(key, database, cols2Pos, cols2Types, blobs,
+				ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0);
+		synchronized (this)
+		{
+			add(entry);
+		}
+
+		store(entry);
+	}
+
+	private void add(final Entry entry)
+	{
+		final Entry old = entries.remove(entry.key);
+		if (old != null)
+		{
+			bytes -= old.size;
+		}
+
+		entries.put(entry.key, entry);
+		bytes += entry.size;
+		final Iterator<Entry> it = entries.values().iterator();
+		while (bytes > maxBytes && it.hasNext())
+		{
+			final Entry eldest = it.next();
+			it.remove();
+			bytes -= eldest.size;
+			evictions++;
+		}
+	}
+
+	private void remove(final Entry entry)
+	{
+		entries.remove(entry.key);
+		bytes -= entry.size;
+		delete(entry.key);
+	}
+
+	/*!
+	 * Drops every cached result from the given database
+	 */
+	public void invalidate(final String database)
+	{
+		synchronized (this)
+		{
+			final Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext())
+			{
+				final Entry entry = it.next();
+				if (entry.database.equals(database))
+				{
+					it.remove();
+					bytes -= entry.size;
+				}
+			}
+		}
+
+		deleteFiles(database);
+	}
+
+	/*!
+	 * Drops every cached result
+	 */
+	public void invalidateAll()
+	{
+		synchronized (this)
+		{
+			entries.clear();
+			bytes = 0;
+		}
+
+		deleteFiles(null);
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/*!
+	 * Number of results dropped from the heap to stay under the size limit
+	 */
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	/*!
+	 * Number of results on the heap
+	 */
+	public synchronized int getSize()
+	{
+		return entries.size();
+	}
+
+	/*!
+	 * Total size of the results on the heap
+	 */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	/*
+	 * The disk tier. Each result is its own file named after a hash of its key, holding
+	 *
+	 *   int magic, long expiresAt, int keyLength, key (UTF-8), int databaseLength, database (UTF-8),
+	 *   int metadataLength, FetchMetadataResponse, then a ResultSet with the blobs to the end of the file
+	 *
+	 * Files are written to a temp name and renamed so a reader never sees half of one. Reading a file
+	 * touches its modification time, so trim() can drop the least recently used ones.
+	 */
+	private Path path(final String key)
+	{
+		try
+		{
+			final byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			final StringBuilder name = new StringBuilder(hash.length * 2 + SUFFIX.length());
+			for (final byte b : hash)
+			{
+				name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+
+			return dir.resolve(name.append(SUFFIX).toString());
+		}
+		catch (final NoSuchAlgorithmException e)
+		{
+			// every JVM has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void store(final Entry entry)
+	{
+		if (dir == null)
+		{
+			return;
+		}
+
+		final byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+		final byte[] database = entry.database.getBytes(StandardCharsets.UTF_8);
+		final byte[] metadata = ClientWireProtocol.FetchMetadataResponse.newBuilder().putAllCols2Pos(entry.cols2Pos)
+				.putAllCols2Types(entry.cols2Types).build().toByteArray();
+		final ByteBuffer header = ByteBuffer.allocate(24 + key.length + database.length + metadata.length);
+		header.putInt(MAGIC).putLong(entry.expiresAt);
+		header.putInt(key.length).put(key);
+		header.putInt(database.length).put(database);
+		header.putInt(metadata.length).put(metadata);
+		header.flip();
+		final byte[] blobs = ClientWireProtocol.ResultSet.newBuilder().addAllBlobs(entry.blobs).build().toByteArray();
+
+		final Path path = path(entry.key);
+		try
+		{
+			final Path temp = Files.createTempFile(dir, "rcache", ".tmp");
+			try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE))
+			{
+				final ByteBuffer body = ByteBuffer.wrap(blobs);
+				while (header.hasRemaining() || body.hasRemaining())
+				{
+					out.write(new ByteBuffer[] { header, body });
+				}
+			}
+
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (final IOException e)
+		{
+			// We've still got it on the heap
+			LOGGER.log(Level.WARNING, "Failed writing cached result to " + path, e);
+			return;
+		}
+
+		trim(path);
+	}
+
+	/*
+	 * Deletes the least recently used files until the directory is back under maxBytes, sparing the
+	 * one we just wrote
+	 */
+	private void trim(final Path keep)
+	{
+		final ArrayList<Path> paths = new ArrayList<>();
+		final HashMap<Path, BasicFileAttributes> attrs = new HashMap<>();
+		long total = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX))
+		{
+			for (final Path path : files)
+			{
+				final BasicFileAttributes attr;
+				try
+				{
+					attr = Files.readAttributes(path, BasicFileAttributes.class);
+				}
+				catch (final IOException e)
+				{
+					// someone else deleted it
+					continue;
+				}
+
+				paths.add(path);
+				attrs.put(path, attr);
+				total += attr.size();
+			}
+		}
+		catch (final IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Failed listing cached results in " + dir, e);
+			return;
+		}
+
+		if (total <= maxBytes)
+		{
+			return;
+		}
+
+		paths.sort((a, b) -> attrs.get(a).lastModifiedTime().compareTo(attrs.get(b).lastModifiedTime()));
+		for (final Path path : paths)
+		{
+			if (total <= maxBytes)
+			{
+				break;
+			}
+
+			if (path.equals(keep))
+			{
+				continue;
+			}
+
+			try
+			{
+				Files.deleteIfExists(path);
+				total -= attrs.get(path).size();
+			}
+			catch (final IOException e)
+			{
+				LOGGER.log(Level.WARNING, "Failed deleting cached result " + path, e);
+			}
+		}
+	}
+
+	private Entry load(final String key, final long now)
+	{
+		if (dir == null)
+		{
+			return null;
+		}
+
+		final Path path = path(key);
+		if (!Files.exists(path))
+		{
+			return null;
+		}
+
+		try
+		{
+			final ByteBuffer file;
+			try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ))
+			{
+				file = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+			}
+
+			if (file.getInt() != MAGIC)
+			{
+				return null;
+			}
+
+			final long expiresAt = file.getLong();
+			if (!key.equals(readString(file)))
+			{
+				// a hash collision, leave it be
+				return null;
+			}
+
+			final String database = readString(file);
+			if (expiresAt > 0 && now >= expiresAt)
+			{
+				Files.deleteIfExists(path);
+				return null;
+			}
+
+			final int metadataLength = file.getInt();
+			final ByteBuffer metadata = file.slice();
+			metadata.limit(metadataLength);
+			file.position(file.position() + metadataLength);
+			final ClientWireProtocol.FetchMetadataResponse fmdr = ClientWireProtocol.FetchMetadataResponse
+					.parseFrom(metadata);
+
+			// the blobs alias the mapping rather than being copied onto the heap
+			final CodedInputStream input = UnsafeByteOperations.unsafeWrap(file.slice()).newCodedInput();
+			input.enableAliasing(true);
+			final ClientWireProtocol.ResultSet re = ClientWireProtocol.ResultSet.parseFrom(input);
+			Files.setLastModifiedTime(path, FileTime.fromMillis(now));
+			return new Entry(key, database, fmdr.getCols2PosMap(), fmdr.getCols2TypesMap(), re.getBlobsList(),
+					expiresAt);
+		}
+		catch (final IOException | RuntimeException e)
+		{
+			LOGGER.log(Level.WARNING, "Failed reading cached result from " + path, e);
+			return null;
+		}
+	}
+
+	private static String readString(final ByteBuffer file)
+	{
+		final byte[] bytes = new byte[file.getInt()];
+		file.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private void delete(final String key)
+	{
+		if (dir == null)
+		{
+			return;
+		}
+
+		try
+		{
+			Files.deleteIfExists(path(key));
+		}
+		catch (final IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Failed deleting cached result", e);
+		}
+	}
+
+	/*
+	 * Deletes the files for the given database, or all of them if database is null
+	 */
+	private void deleteFiles(final String database)
+	{
+		if (dir == null)
+		{
+			return;
+		}
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX))
+		{
+			for (final Path path : files)
+			{
+				if (database != null && !database.equals(readDatabase(path)))
+				{
+					continue;
+				}
+
+				Files.deleteIfExists(path);
+			}
+		}
+		catch (final IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Failed deleting cached results from " + dir, e);
+		}
+	}
+
+	private static String readDatabase(final Path path) throws IOException
+	{
+		try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			final ByteBuffer header = ByteBuffer.allocate(16);
+			in.read(header, 0);
+			header.flip();
+			if (header.remaining() < 16 || header.getInt() != MAGIC)
+			{
+				return null;
+			}
+
+			header.getLong();
+			final long at = 16L + header.getInt();
+			final ByteBuffer length = ByteBuffer.allocate(4);
+			in.read(length, at);
+			length.flip();
+			if (length.remaining() < 4)
+			{
+				return null;
+			}
+
+			final ByteBuffer database = ByteBuffer.allocate(length.getInt());
+			in.read(database, at + 4);
+			return new String(database.array(), 0, database.position(), StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package com.ocient.jdbc;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.util.ArrayList;
+
+/*
+ * Decodes cells for one result set schema.
+ *
+ * It's built once from the column types in the metadata and holds a decoder per column, so for a
+ * cell of the expected type all we do is compare its tag and call straight into the right decoder,
+ * rather than going down the chain of type checks in XGResultSet.decodeValue() for every value. NULL
+ * cells, columns whose type we don't specialize (or don't know) and cells whose tag isn't what the
+ * metadata said all go to decodeValue(), so the results are always the same.
+ */
+class RowDecoder
+{
+	/*
+	 * Decodes a value whose type tag has already been checked. offset[0] points just past the tag and
+	 * gets advanced past the value.
+	 */
+	private interface ValueDecoder
+	{
+		Object decode(ByteBuffer bb, int[] offset, StringDecoder strings, int col) throws SQLException;
+	}
+
+	private static final ValueDecoder INT = (bb, offset, strings, col) -> {
+		final int val = bb.getInt(offset[0]);
+		offset[0] += 4;
+		return val;
+	};
+
+	private static final ValueDecoder LONG = (bb, offset, strings, col) -> {
+		final long val = bb.getLong(offset[0]);
+		offset[0] += 8;
+		return val;
+	};
+
+	private static final ValueDecoder FLOAT = (bb, offset, strings, col) -> {
+		final float val = Float.intBitsToFloat(bb.getInt(offset[0]));
+		offset[0] += 4;
+		return val;
+	};
+
+	private static final ValueDecoder DOUBLE = (bb, offset, strings, col) -> {
+		final double val = Double.longBitsToDouble(bb.getLong(offset[0]));
+		offset[0] += 8;
+		return val;
+	};
+
+	private static final ValueDecoder STRING = (bb, offset, strings, col) -> {
+		final int length = bb.getInt(offset[0]);
+		offset[0] += 4;
+		final String val = strings.decode(bb, offset[0], length, col);
+		offset[0] += length;
+		return val;
+	};
+
+	private static final ValueDecoder DATE = (bb, offset, strings, col) -> {
+		final Date val = new Date(bb.getLong(offset[0]));
+		offset[0] += 8;
+		return val;
+	};
+
+	private static final ValueDecoder BOOL = (bb, offset, strings, col) -> {
+		final boolean val = (bb.get(offset[0]) != 0);
+		offset[0]++;
+		return val;
+	};
+
+	private static final ValueDecoder BINARY = (bb, offset, strings, col) -> {
+		final int length = bb.getInt(offset[0]);
+		offset[0] += 4;
+		final byte[] val = new byte[length];
+		((Buffer) bb).position(offset[0]);
+		bb.get(val);
+		offset[0] += length;
+		return val;
+	};
+
+	private static final ValueDecoder BYTE = (bb, offset, strings, col) -> {
+		final byte val = bb.get(offset[0]);
+		offset[0]++;
+		return val;
+	};
+
+	private static final ValueDecoder SHORT = (bb, offset, strings, col) -> {
+		final short val = bb.getShort(offset[0]);
+		offset[0] += 2;
+		return val;
+	};
+
+	private static final ValueDecoder TIME = (bb, offset, strings, col) -> {
+		final Time val = new Time(bb.getLong(offset[0]));
+		offset[0] += 8;
+		return val;
+	};
+
+	private static final ValueDecoder DECIMAL = (bb, offset, strings, col) -> {
+		final int precision = bb.get(offset[0]);
+		final Object val = XGResultSet.getDecimalFromBuffer(bb, offset[0]);
+		offset[0] += (2 + XGResultSet.bcdLength(precision));
+		return val;
+	};
+
+	private final XGResultSet generic;
+	// expected type tag of each column, 0 where we always use the generic decoder
+	private final byte[] tags;
+	private final ValueDecoder[] decoders;
+
+	public RowDecoder(final byte[] colTypes, final XGResultSet generic)
+	{
+		this.generic = generic;
+		tags = new byte[colTypes.length];
+		decoders = new ValueDecoder[colTypes.length];
+		for (int i = 0; i < colTypes.length; i++)
+		{
+			decoders[i] = getDecoder(colTypes[i]);
+			tags[i] = decoders[i] == null ? 0 : colTypes[i];
+		}
+	}
+
+	private static ValueDecoder getDecoder(final byte type)
+	{
+		switch (type)
+		{
+			case 1: //INT
+				return INT;
+			case 2: //LONG
+				return LONG;
+			case 3: //FLOAT
+				return FLOAT;
+			case 4: //DOUBLE
+				return DOUBLE;
+			case 5: //STRING
+				return STRING;
+			case 6: //Timestamp
+			case 19: //Date
+				return DATE;
+			case 8: //BOOL
+				return BOOL;
+			case 9: //BINARY
+				return BINARY;
+			case 10: //BYTE
+				return BYTE;
+			case 11: //SHORT
+				return SHORT;
+			case 12: //TIME
+				return TIME;
+			case 13: //DECIMAL
+				return DECIMAL;
+			default:
+				return null;
+		}
+	}
+
+	/*
+	 * Number of columns in the schema, 0 if we don't know it
+	 */
+	public int numColumns()
+	{
+		return tags.length;
+	}
+
+	/*
+	 * Decodes the cells of a row from offset[0] up to end, adding them to row
+	 */
+	public void decodeRow(final ByteBuffer bb, final int[] offset, final int end, final StringDecoder strings,
+			final ArrayList<Object> row) throws SQLException, java.net.UnknownHostException
+	{
+		int col = 0;
+		while (offset[0] < end)
+		{
+			row.add(decode(bb, offset, strings, col));
+			col++;
+		}
+	}
+
+	/*
+	 * Decodes the cell of the given (0-based) column whose type tag is at offset[0], and advances
+	 * offset[0] past it
+	 */
+	public Object decode(final ByteBuffer bb, final int[] offset, final StringDecoder strings, final int col)
+			throws SQLException, java.net.UnknownHostException
+	{
+		final byte tag = bb.get(offset[0]);
+		if (col < tags.length && tag == tags[col])
+		{
+			offset[0]++;
+			return decoders[col].decode(bb, offset, strings, col);
+		}
+
+		if (tag == 7) //Null
+		{
+			offset[0]++;
+			return null;
+		}
+
+		return generic.decodeValue(bb, offset, strings, col);
+	}
+}
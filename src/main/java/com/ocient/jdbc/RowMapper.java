@@ -0,0 +1,12 @@
+package com.ocient.jdbc;
+
+import java.sql.SQLException;
+
+/*
+ * Turns a row into whatever the application wants out of it, see XGResultSet.stream()
+ */
+@FunctionalInterface
+public interface RowMapper<T>
+{
+	T map(XGRow row) throws SQLException;
+}
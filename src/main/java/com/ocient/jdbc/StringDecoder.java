@@ -0,0 +1,252 @@
+package com.ocient.jdbc;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.google.common.base.Charsets;
+
+/*
+ * Turns STRING cells into Strings.
+ *
+ * The bytes are copied into a scratch array that's reused from one string to the next, so the
+ * String itself is the only allocation. Pure ASCII values (the common case) are decoded as Latin-1,
+ * which is just a copy, and only the rest go through the UTF-8 decoder.
+ *
+ * With dedup on we also remember the short values we've seen in each column and hand back the same
+ * String when one repeats. That's a big win for dimension-style columns with a handful of distinct
+ * values, and once a column has shown us too many distinct values we stop adding to its table.
+ *
+ * Not thread safe, use one per thread.
+ */
+class StringDecoder
+{
+	// only values up to this long are worth deduplicating
+	private static final int MAX_DEDUP_LENGTH = 64;
+	// stop remembering new values in a column after this many
+	private static final int MAX_DISTINCT = 256;
+	// twice MAX_DISTINCT so probe sequences stay short
+	private static final int TABLE_SIZE = 512;
+
+	private final boolean dedup;
+	private byte[] scratch = new byte[256];
+	private DedupTable[] tables = new DedupTable[0];
+
+	public StringDecoder(final boolean dedup)
+	{
+		this.dedup = dedup;
+	}
+
+	/*
+	 * Decodes the length bytes at offset in bb. col is the (0-based) column the value came from,
+	 * used to pick the dedup table, or -1 to skip dedup.
+	 */
+	public String decode(final ByteBuffer bb, final int offset, final int length, final int col)
+	{
+		if (length == 0)
+		{
+			return "";
+		}
+
+		if (scratch.length < length)
+		{
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+
+		((Buffer) bb).position(offset);
+		bb.get(scratch, 0, length);
+
+		if (!dedup || col < 0 || length > MAX_DEDUP_LENGTH)
+		{
+			return newString(scratch, length);
+		}
+
+		if (col >= tables.length)
+		{
+			tables = Arrays.copyOf(tables, col + 1);
+		}
+
+		if (tables[col] == null)
+		{
+			tables[col] = new DedupTable();
+		}
+
+		return tables[col].get(scratch, length);
+	}
+
+	/*
+	 * Forgets all remembered values, e.g. when moving on to a new block
+	 */
+	public void reset()
+	{
+		Arrays.fill(tables, null);
+	}
+
+	private static String newString(final byte[] bytes, final int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			if (bytes[i] < 0)
+			{
+				return new String(bytes, 0, length, Charsets.UTF_8);
+			}
+		}
+
+		return new String(bytes, 0, length, Charsets.ISO_8859_1);
+	}
+
+	/*
+	 * Open addressing hash table from value bytes to the String we made for them
+	 */
+	private static class DedupTable
+	{
+		private final int[] hashes = new int[TABLE_SIZE];
+		private final byte[][] keys = new byte[TABLE_SIZE][];
+		private final String[] values = new String[TABLE_SIZE];
+		private int count = 0;
+
+		String get(final byte[] bytes, final int length)
+		{
+			int hash = 1;
+			for (int i = 0; i < length; i++)
+			{
+				hash = 31 * hash + bytes[i];
+			}
+
+			int slot = (hash ^ (hash >>> 16)) & (TABLE_SIZE - 1);
+			while (keys[slot] != null)
+			{
+				if (hashes[slot] == hash && matches(keys[slot], bytes, length))
+				{
+					return values[slot];
+				}
+
+				slot = (slot + 1) & (TABLE_SIZE - 1);
+			}
+
+			final String retval = newString(bytes, length);
+			if (count < MAX_DISTINCT)
+			{
+				hashes[slot] = hash;
+				keys[slot] = Arrays.copyOf(bytes, length);
+				values[slot] = retval;
+				count++;
+			}
+
+			return retval;
+		}
+
+		private static boolean matches(final byte[] key, final byte[] bytes, final int length)
+		{
+			if (key.length != length)
+			{
+				return false;
+			}
+
+			for (int i = 0; i < length; i++)
+			{
+				if (key[i] != bytes[i])
+				{
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+
+	/*
+	 * A CharSequence over a STRING value still sitting in the wire buffer. ASCII values are read
+	 * straight out of the buffer, anything else gets decoded into a String the first time it's
+	 * needed. Only valid for as long as the buffer is.
+	 */
+	static class View implements CharSequence
+	{
+		private final ByteBuffer bb;
+		private final int offset;
+		private final int length;
+		private final boolean ascii;
+		private String string;
+
+		View(final ByteBuffer bb, final int offset, final int length)
+		{
+			this.bb = bb;
+			this.offset = offset;
+			this.length = length;
+			boolean ascii = true;
+			for (int i = 0; i < length; i++)
+			{
+				if (bb.get(offset + i) < 0)
+				{
+					ascii = false;
+					break;
+				}
+			}
+
+			this.ascii = ascii;
+		}
+
+		private View(final ByteBuffer bb, final int offset, final int length, final boolean ascii)
+		{
+			this.bb = bb;
+			this.offset = offset;
+			this.length = length;
+			this.ascii = ascii;
+		}
+
+		@Override
+		public int length()
+		{
+			return ascii ? length : toString().length();
+		}
+
+		@Override
+		public char charAt(final int index)
+		{
+			if (!ascii)
+			{
+				return toString().charAt(index);
+			}
+
+			if (index < 0 || index >= length)
+			{
+				throw new IndexOutOfBoundsException();
+			}
+
+			return (char) bb.get(offset + index);
+		}
+
+		@Override
+		public CharSequence subSequence(final int start, final int end)
+		{
+			if (!ascii)
+			{
+				return toString().subSequence(start, end);
+			}
+
+			if (start < 0 || end > length || start > end)
+			{
+				throw new IndexOutOfBoundsException();
+			}
+
+			return new View(bb, offset + start, end - start, true);
+		}
+
+		@Override
+		public String toString()
+		{
+			if (string == null)
+			{
+				final byte[] bytes = new byte[length];
+				for (int i = 0; i < length; i++)
+				{
+					bytes[i] = bb.get(offset + i);
+				}
+
+				string = newString(bytes, length);
+			}
+
+			return string;
+		}
+	}
+}
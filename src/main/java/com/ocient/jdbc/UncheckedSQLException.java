@@ -0,0 +1,23 @@
+package com.ocient.jdbc;
+
+import java.sql.SQLException;
+
+/*
+ * An SQLException thrown out of a Stream from XGResultSet.stream(), which can't throw checked
+ * exceptions
+ */
+public class UncheckedSQLException extends RuntimeException
+{
+	private static final long serialVersionUID = 1L;
+
+	public UncheckedSQLException(final SQLException cause)
+	{
+		super(cause);
+	}
+
+	@Override
+	public synchronized SQLException getCause()
+	{
+		return (SQLException) super.getCause();
+	}
+}
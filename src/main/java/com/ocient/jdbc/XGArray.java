@@ -1,5 +1,6 @@
 package com.ocient.jdbc;
 
+import java.nio.ByteBuffer;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
@@ -12,12 +13,35 @@ import java.util.Map;
 import java.util.TimeZone;
 import java.util.TreeMap;
 
+/*
+ * An ARRAY value.
+ *
+ * Arrays that come off the wire start out as their raw bytes and are only decoded the first time
+ * someone looks at them. Nested arrays decode one level at a time, so the inner arrays stay raw until
+ * they're accessed too. INT, SHORT, BYTE, LONG, FLOAT and DOUBLE elements are decoded into a
+ * primitive array plus a null bitmap rather than boxed, and getIntArray()/getLongArray()/
+ * getDoubleArray() hand those out directly. The boxed Object[] is only built if getArray() is called.
+ */
 public class XGArray implements java.sql.Array
 {
 	private byte type;
 	private Object[] array;
 	private XGConnection conn;
 	private XGStatement stmt;
+	private int length;
+
+	// Primitive elements, at most one of these is set. Bit i of nulls is set if element i is null.
+	private int[] ints;
+	private long[] longs;
+	private double[] doubles;
+	private long[] nulls;
+
+	// The undecoded array, its element count is at wireOffset. wire is null once we've decoded it.
+	private ByteBuffer wire;
+	private int wireOffset;
+	private int nestedLevel;
+	private byte elementType;
+	private XGResultSet decoder;
 	
 	public XGArray(int numElements, byte type, final XGConnection conn, final XGStatement stmt)
 	{
@@ -25,16 +49,327 @@ public class XGArray implements java.sql.Array
 		this.conn = conn;
 		this.stmt = stmt;
 		array = new Object[numElements];
+		length = numElements;
+	}
+
+	/*
+	 * An array of nestedLevel levels of elementType elements still in wire format at offset in wire.
+	 * decoder is used for anything that isn't a primitive.
+	 */
+	XGArray(final ByteBuffer wire, final int offset, final int nestedLevel, final byte elementType,
+			final XGResultSet decoder, final XGConnection conn, final XGStatement stmt)
+	{
+		this.type = nestedLevel > 1 ? 14 : elementType;
+		this.conn = conn;
+		this.stmt = stmt;
+		this.wire = wire;
+		this.wireOffset = offset;
+		this.nestedLevel = nestedLevel;
+		this.elementType = elementType;
+		this.decoder = decoder;
+		length = wire.getInt(offset);
+	}
+
+	private void decode() throws SQLException
+	{
+		if (wire == null)
+		{
+			return;
+		}
+
+		// skip the element count and the null byte
+		int offset = wireOffset + 5;
+		if (nestedLevel > 1)
+		{
+			array = new Object[length];
+			for (int i = 0; i < length; i++)
+			{
+				if (wire.get(offset + 4) == 0)
+				{
+					array[i] = new XGArray(wire, offset, nestedLevel - 1, elementType, decoder, conn, stmt);
+				}
+
+				offset = FetchBlock.skipArray(wire, offset, nestedLevel - 1);
+			}
+		}
+		else if (!decodePrimitives(offset))
+		{
+			array = new Object[length];
+			final int[] pos = { offset };
+			final StringDecoder strings = new StringDecoder(false);
+			try
+			{
+				for (int i = 0; i < length; i++)
+				{
+					array[i] = decoder.decodeValue(wire, pos, strings, -1);
+				}
+			}
+			catch (final java.net.UnknownHostException e)
+			{
+				throw SQLStates.newGenericException(e);
+			}
+		}
+
+		wire = null;
+		decoder = null;
+	}
+
+	/*
+	 * Decodes numeric elements into a primitive array. Returns false (having decoded nothing) if the
+	 * elements aren't numeric.
+	 */
+	private boolean decodePrimitives(int offset) throws SQLException
+	{
+		switch (elementType)
+		{
+			case 1: //INT
+			case 10: //BYTE
+			case 11: //SHORT
+				ints = new int[length];
+				break;
+			case 2: //LONG
+				longs = new long[length];
+				break;
+			case 3: //FLOAT
+			case 4: //DOUBLE
+				doubles = new double[length];
+				break;
+			default:
+				return false;
+		}
+
+		nulls = new long[(length + 63) >>> 6];
+		for (int i = 0; i < length; i++)
+		{
+			final byte t = wire.get(offset);
+			if (t == 7) //Null
+			{
+				nulls[i >>> 6] |= (1L << i);
+			}
+			else if (t != elementType)
+			{
+				// not what the type info says, let the generic decoder sort it out
+				ints = null;
+				longs = null;
+				doubles = null;
+				nulls = null;
+				return false;
+			}
+			else
+			{
+				switch (t)
+				{
+					case 1: //INT
+						ints[i] = wire.getInt(offset + 1);
+						break;
+					case 10: //BYTE
+						ints[i] = wire.get(offset + 1);
+						break;
+					case 11: //SHORT
+						ints[i] = wire.getShort(offset + 1);
+						break;
+					case 2: //LONG
+						longs[i] = wire.getLong(offset + 1);
+						break;
+					case 3: //FLOAT
+						doubles[i] = Float.intBitsToFloat(wire.getInt(offset + 1));
+						break;
+					case 4: //DOUBLE
+						doubles[i] = Double.longBitsToDouble(wire.getLong(offset + 1));
+						break;
+				}
+			}
+
+			offset = FetchBlock.skipValue(wire, offset);
+		}
+
+		return true;
+	}
+
+	/*
+	 * The elements as objects, boxing the primitive ones the first time through
+	 */
+	private Object[] elements() throws SQLException
+	{
+		decode();
+		if (array == null)
+		{
+			array = new Object[length];
+			for (int i = 0; i < length; i++)
+			{
+				if ((nulls[i >>> 6] & (1L << i)) != 0)
+				{
+					continue;
+				}
+
+				switch (type)
+				{
+					case 1: //INT
+						array[i] = ints[i];
+						break;
+					case 10: //BYTE
+						array[i] = (byte) ints[i];
+						break;
+					case 11: //SHORT
+						array[i] = (short) ints[i];
+						break;
+					case 2: //LONG
+						array[i] = longs[i];
+						break;
+					case 3: //FLOAT
+						array[i] = (float) doubles[i];
+						break;
+					case 4: //DOUBLE
+						array[i] = doubles[i];
+						break;
+				}
+			}
+		}
+
+		return array;
+	}
+
+	/*
+	 * Number of elements in the array
+	 */
+	public int length()
+	{
+		return length;
+	}
+
+	/*
+	 * True if the element at the given (0-based) index is null
+	 */
+	public boolean isNull(final int index) throws SQLException
+	{
+		decode();
+		if (index < 0 || index >= length)
+		{
+			throw SQLStates.INVALID_ARGUMENT.clone();
+		}
+
+		if (nulls != null)
+		{
+			return (nulls[index >>> 6] & (1L << index)) != 0;
+		}
+
+		return array[index] == null;
+	}
+
+	/*
+	 * The elements of an INTEGER, SMALLINT or TINYINT array without boxing them. Null elements are 0,
+	 * use isNull() to tell them apart.
+	 */
+	public int[] getIntArray() throws SQLException
+	{
+		decode();
+		if (ints != null)
+		{
+			return ints.clone();
+		}
+
+		if (type != 1 && type != 10 && type != 11)
+		{
+			throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
+		}
+
+		final int[] retval = new int[length];
+		for (int i = 0; i < length; i++)
+		{
+			if (array[i] != null)
+			{
+				retval[i] = ((Number) array[i]).intValue();
+			}
+		}
+
+		return retval;
+	}
+
+	/*
+	 * The elements of a BIGINT, INTEGER, SMALLINT or TINYINT array without boxing them. Null elements
+	 * are 0, use isNull() to tell them apart.
+	 */
+	public long[] getLongArray() throws SQLException
+	{
+		decode();
+		if (longs != null)
+		{
+			return longs.clone();
+		}
+
+		if (type != 1 && type != 2 && type != 10 && type != 11)
+		{
+			throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
+		}
+
+		final long[] retval = new long[length];
+		for (int i = 0; i < length; i++)
+		{
+			if (ints != null)
+			{
+				retval[i] = ints[i];
+			}
+			else if (array[i] != null)
+			{
+				retval[i] = ((Number) array[i]).longValue();
+			}
+		}
+
+		return retval;
+	}
+
+	/*
+	 * The elements of any numeric (other than DECIMAL) array without boxing them. Null elements are
+	 * 0, use isNull() to tell them apart.
+	 */
+	public double[] getDoubleArray() throws SQLException
+	{
+		decode();
+		if (doubles != null)
+		{
+			return doubles.clone();
+		}
+
+		if (type < 1 || (type > 4 && type != 10 && type != 11))
+		{
+			throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
+		}
+
+		final double[] retval = new double[length];
+		for (int i = 0; i < length; i++)
+		{
+			if (ints != null)
+			{
+				retval[i] = ints[i];
+			}
+			else if (longs != null)
+			{
+				retval[i] = longs[i];
+			}
+			else if (array[i] != null)
+			{
+				retval[i] = ((Number) array[i]).doubleValue();
+			}
+		}
+
+		return retval;
 	}
 	
 	@Override
 	public void free() throws SQLException {
 		array = new Object[0];
+		length = 0;
+		ints = null;
+		longs = null;
+		doubles = null;
+		nulls = null;
+		wire = null;
+		decoder = null;
 	}
 
 	@Override
 	public Object getArray() throws SQLException {
-		return array;
+		return elements();
 	}
 
 	@Override
@@ -46,7 +381,7 @@ public class XGArray implements java.sql.Array
 	public Object getArray(long index, int count) throws SQLException {
 		try
 		{
-			return Arrays.copyOfRange(array, (int)index - 1, (int)index + count - 1);
+			return Arrays.copyOfRange(elements(), (int)index - 1, (int)index + count - 1);
 		}
 		catch(Exception e)
 		{
@@ -152,7 +487,7 @@ public class XGArray implements java.sql.Array
 	public ResultSet getResultSet() throws SQLException {
 		ArrayList<Object> alo = new ArrayList<Object>();
 		int i = 1;
-		for (Object o : array)
+		for (Object o : elements())
 		{
 			ArrayList<Object> row = new ArrayList<Object>();
 			row.add(i++);
@@ -245,6 +580,7 @@ public class XGArray implements java.sql.Array
 
 	@Override
 	public ResultSet getResultSet(long index, int count) throws SQLException {
+		final Object[] array = elements();
 		ArrayList<Object> alo = new ArrayList<Object>();
 		for (int i = (int)index; i < index + count; i++)
 		{
@@ -339,13 +675,27 @@ public class XGArray implements java.sql.Array
 	
 	public void add(Object obj, int pos)
 	{
-		array[pos] = obj;
+		try
+		{
+			elements()[pos] = obj;
+		}
+		catch (final SQLException e)
+		{
+			throw new IllegalStateException(e);
+		}
+
+		// the boxed elements are the only copy now
+		ints = null;
+		longs = null;
+		doubles = null;
+		nulls = null;
 	}
 	
 	public String toString()
 	{
 		try
 		{
+			final Object[] array = elements();
 			StringBuilder str = new StringBuilder();
 			str.append("[");
 			
@@ -0,0 +1,313 @@
+package com.ocient.jdbc;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import com.google.common.base.Charsets;
+
+/*
+ * A batch of rows returned by XGResultSet.nextBatch(), stored column by column.
+ *
+ * Each column is laid out according to its type:
+ *  INT     INT, SHORT and BYTE columns, in an int[]
+ *  LONG    LONG columns, and TIMESTAMP, DATE and TIME columns as epoch milliseconds, in a long[]
+ *  DOUBLE  FLOAT and DOUBLE columns, in a double[]
+ *  BYTES   STRING (UTF-8) and BINARY columns, value i is bytes[offsets[i]] up to bytes[offsets[i + 1]]
+ *  OBJECT  everything else, as the objects getObject() would return
+ * and every layout has a null bitmap, where bit i is set if row i is null. Null rows are 0 in the
+ * primitive arrays and empty in BYTES columns.
+ *
+ * The arrays handed out by the raw accessors may be longer than numRows(), only the first numRows()
+ * entries mean anything. A batch is reused from one call to nextBatch() to the next, so its contents
+ * (and those arrays) are only valid until then.
+ */
+public class XGBatch
+{
+	public enum Layout
+	{
+		INT, LONG, DOUBLE, BYTES, OBJECT
+	}
+
+	private Column[] columns = new Column[0];
+	private int numColumns = 0;
+	private int numRows = 0;
+
+	public int numRows()
+	{
+		return numRows;
+	}
+
+	public int numColumns()
+	{
+		return numColumns;
+	}
+
+	/*
+	 * Returns the given (1-based) column
+	 */
+	public Column getColumn(final int columnIndex) throws SQLException
+	{
+		if (columnIndex < 1 || columnIndex > numColumns)
+		{
+			throw SQLStates.COLUMN_NOT_FOUND.clone();
+		}
+
+		return columns[columnIndex - 1];
+	}
+
+	void reset(final int numColumns, final int numRows)
+	{
+		if (columns.length < numColumns)
+		{
+			final int oldLength = columns.length;
+			columns = Arrays.copyOf(columns, numColumns);
+			for (int i = oldLength; i < numColumns; i++)
+			{
+				columns[i] = new Column();
+			}
+		}
+
+		this.numColumns = numColumns;
+		this.numRows = numRows;
+	}
+
+	/*
+	 * Column c (0-based), for filling in
+	 */
+	Column column(final int c)
+	{
+		return columns[c];
+	}
+
+	public static class Column
+	{
+		private Layout layout = Layout.OBJECT;
+		private int numRows = 0;
+		int[] ints = new int[0];
+		long[] longs = new long[0];
+		double[] doubles = new double[0];
+		long[] nulls = new long[0];
+		int[] offsets = new int[1];
+		byte[] bytes = new byte[0];
+		Object[] objects = new Object[0];
+
+		/*
+		 * Sets up the column to take numRows rows in the given layout, all of them not null. Only grows
+		 * the arrays if they're too small.
+		 */
+		void reset(final Layout layout, final int numRows)
+		{
+			this.layout = layout;
+			this.numRows = numRows;
+			final int words = (numRows + 63) >>> 6;
+			if (nulls.length < words)
+			{
+				nulls = new long[words];
+			}
+			else
+			{
+				Arrays.fill(nulls, 0, words, 0);
+			}
+
+			switch (layout)
+			{
+				case INT:
+					if (ints.length < numRows)
+					{
+						ints = new int[numRows];
+					}
+					break;
+				case LONG:
+					if (longs.length < numRows)
+					{
+						longs = new long[numRows];
+					}
+					break;
+				case DOUBLE:
+					if (doubles.length < numRows)
+					{
+						doubles = new double[numRows];
+					}
+					break;
+				case BYTES:
+					if (offsets.length < numRows + 1)
+					{
+						offsets = new int[numRows + 1];
+					}
+					offsets[0] = 0;
+					break;
+				case OBJECT:
+					if (objects.length < numRows)
+					{
+						objects = new Object[numRows];
+					}
+					break;
+			}
+
+			// don't hang on to the last batch's values
+			Arrays.fill(objects, null);
+		}
+
+		void setNull(final int row)
+		{
+			nulls[row >>> 6] |= (1L << row);
+			if (layout == Layout.BYTES)
+			{
+				offsets[row + 1] = offsets[row];
+			}
+		}
+
+		/*
+		 * Sets row (which must be the next one) of a BYTES column to length bytes at offset in bb
+		 */
+		void setBytes(final int row, final ByteBuffer bb, final int offset, final int length)
+		{
+			final int start = offsets[row];
+			ensureBytes(start + length);
+			((Buffer) bb).position(offset);
+			bb.get(bytes, start, length);
+			offsets[row + 1] = start + length;
+		}
+
+		/*
+		 * Sets row (which must be the next one) of a BYTES column to value
+		 */
+		void setBytes(final int row, final byte[] value)
+		{
+			final int start = offsets[row];
+			ensureBytes(start + value.length);
+			System.arraycopy(value, 0, bytes, start, value.length);
+			offsets[row + 1] = start + value.length;
+		}
+
+		private void ensureBytes(final int size)
+		{
+			if (bytes.length < size)
+			{
+				bytes = Arrays.copyOf(bytes, Math.max(size, bytes.length * 2));
+			}
+		}
+
+		public Layout getLayout()
+		{
+			return layout;
+		}
+
+		public boolean isNull(final int row)
+		{
+			return (nulls[row >>> 6] & (1L << row)) != 0;
+		}
+
+		public int getInt(final int row) throws SQLException
+		{
+			switch (layout)
+			{
+				case INT:
+					return ints[row];
+				case LONG:
+					return (int) longs[row];
+				case DOUBLE:
+					return (int) doubles[row];
+				default:
+					throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
+			}
+		}
+
+		public long getLong(final int row) throws SQLException
+		{
+			switch (layout)
+			{
+				case INT:
+					return ints[row];
+				case LONG:
+					return longs[row];
+				case DOUBLE:
+					return (long) doubles[row];
+				default:
+					throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
+			}
+		}
+
+		public double getDouble(final int row) throws SQLException
+		{
+			switch (layout)
+			{
+				case INT:
+					return ints[row];
+				case LONG:
+					return longs[row];
+				case DOUBLE:
+					return doubles[row];
+				default:
+					throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
+			}
+		}
+
+		/*
+		 * Decodes a row of a BYTES column as UTF-8, or returns null for a null row
+		 */
+		public String getString(final int row) throws SQLException
+		{
+			if (layout != Layout.BYTES)
+			{
+				throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
+			}
+
+			if (isNull(row))
+			{
+				return null;
+			}
+
+			return new String(bytes, offsets[row], offsets[row + 1] - offsets[row], Charsets.UTF_8);
+		}
+
+		public Object getObject(final int row) throws SQLException
+		{
+			if (layout != Layout.OBJECT)
+			{
+				throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
+			}
+
+			return objects[row];
+		}
+
+		// Raw access for vectorized consumers, see the class comment
+
+		public int[] getInts()
+		{
+			return ints;
+		}
+
+		public long[] getLongs()
+		{
+			return longs;
+		}
+
+		public double[] getDoubles()
+		{
+			return doubles;
+		}
+
+		public long[] getNulls()
+		{
+			return nulls;
+		}
+
+		public int[] getOffsets()
+		{
+			return offsets;
+		}
+
+		public byte[] getBytes()
+		{
+			return bytes;
+		}
+
+		public Object[] getObjects()
+		{
+			return objects;
+		}
+	}
+}
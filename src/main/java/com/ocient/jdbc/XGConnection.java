@@ -3,6 +3,7 @@ package com.ocient.jdbc;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.net.InetSocketAddress;
@@ -29,10 +30,10 @@ import java.sql.Struct;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.Properties;
-import java.util.StringTokenizer;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -49,11 +50,12 @@ import java.security.PublicKey;
 import java.security.MessageDigest;
 import java.security.KeyFactory;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import javax.crypto.KeyAgreement;
 import javax.crypto.Mac;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 
 import com.google.protobuf.ByteString;
 import com.ocient.jdbc.proto.ClientWireProtocol;
@@ -89,9 +91,8 @@ public class XGConnection implements Connection
 
 				try
 				{
-					out.write(intToBytes(wrapper.getSerializedSize()));
-					wrapper.writeTo(out);
-					out.flush();
+					takePendingResponses();
+					send(wrapper, 0, true);
 					getStandardResponse();
 				}
 				catch (SQLException | IOException e)
@@ -129,6 +130,12 @@ public class XGConnection implements Connection
 
 	protected BufferedInputStream in;
 	protected BufferedOutputStream out;
+	// routes responses to the statement that sent the request, null unless the server agreed to multiplex
+	private volatile Demultiplexer demux;
+	// keeps requests written from different threads from interleaving on out
+	private final Object sendLock = new Object();
+	// buffers that responses are read into, see BufferPool
+	protected final BufferPool bufferPool = new BufferPool();
 	private boolean closed = false;
 	private boolean connected = true;
 	private Socket sock;
@@ -144,9 +151,34 @@ public class XGConnection implements Connection
 	protected long setPso = 0;
 	protected boolean force = false;
 	private volatile long timeoutMillis = 0L; // 0L means no timeout set
+	private boolean lazyDecode = false;
+	private boolean dedupStrings = false;
+	private boolean caseInsensitiveLabels = false;
+	private int prefetchBlocks = 0; // 0 means don't prefetch
+	private long fetchTargetBytes = 0L; // 0L means use a fixed fetch size
+	private int decodeThreads = 0; // 0 means decode on the thread that fetched the block
+	private long scrollHeapBytes = 64L * 1024 * 1024; // beyond this, scroll insensitive result sets spill to disk
+	// decodes blobs in parallel, created on first use unless the application gave us one
+	private ForkJoinPool decodePool;
+	private boolean ownDecodePool = false;
+	// results of executeQuery are served from and recorded into this, null means no caching
+	private QueryCache queryCache;
+	// false once the session was changed in a way the cache key doesn't capture
+	private boolean cacheableSession = true;
+	// set by sessionChanged()
+	private boolean sessionChanged = false;
+	// extra sockets to the same cmdcomp for statements that run while another result set has ours
+	private final ArrayList<XGConnection> subConnections = new ArrayList<>();
+	private int maxSubConnections = 4; // 0 means report the open result set instead
+	private int openingSubConnections = 0; // slots taken by sub-connections still connecting, guarded by subConnections
 
 	protected boolean oneShotForce = false;
 	protected ArrayList<String> cmdcomps = new ArrayList<>();
+	// the cmdcomp we're connected to, counted in CmdcompLoad while set
+	private InetSocketAddress node;
+	// from our last handshake, offered on reconnect to skip the key exchange
+	private byte[] resumptionTicket;
+	private byte[] resumptionSecret;
 
 	// The timer is initially null, created when the first query timeout is set and destroyed on close()
 	private final AtomicReference<Timer> timer = new AtomicReference<>();
@@ -231,6 +263,478 @@ public class XGConnection implements Connection
 		return timeoutMillis;
 	}
 
+	/*!
+	 * When enabled, result sets created on this connection keep each fetched block in wire
+	 * format and only decode the cells that are actually read
+	 */
+	public void setLazyDecode(final boolean lazyDecode) {
+		this.lazyDecode = lazyDecode;
+	}
+
+	public boolean getLazyDecode() {
+		return lazyDecode;
+	}
+
+	/*!
+	 * When enabled, result sets created on this connection hand back the same String object for
+	 * repeated short values in a column within a fetched block
+	 */
+	public void setDedupStrings(final boolean dedupStrings) {
+		this.dedupStrings = dedupStrings;
+	}
+
+	public boolean getDedupStrings() {
+		return dedupStrings;
+	}
+
+	/*!
+	 * When enabled, the label based getters on result sets created on this connection fall back to
+	 * a case-insensitive match if no column has exactly the given label
+	 */
+	public void setCaseInsensitiveLabels(final boolean caseInsensitiveLabels) {
+		this.caseInsensitiveLabels = caseInsensitiveLabels;
+	}
+
+	public boolean getCaseInsensitiveLabels() {
+		return caseInsensitiveLabels;
+	}
+
+	/*!
+	 * When greater than zero, result sets created on this connection fetch and decode up to this
+	 * many blocks ahead on a background thread while the application reads the current one
+	 */
+	public void setPrefetchBlocks(final int prefetchBlocks) throws SQLException {
+		if (prefetchBlocks < 0)
+		{
+			throw SQLStates.INVALID_ARGUMENT.clone();
+		}
+
+		this.prefetchBlocks = prefetchBlocks;
+	}
+
+	public int getPrefetchBlocks() {
+		return prefetchBlocks;
+	}
+
+	/*!
+	 * When greater than zero, result sets created on this connection size each FetchData request
+	 * so that blocks come back at roughly this many bytes, unless the application set a fetch size
+	 */
+	public void setFetchTargetBytes(final long fetchTargetBytes) throws SQLException {
+		if (fetchTargetBytes < 0)
+		{
+			throw SQLStates.INVALID_ARGUMENT.clone();
+		}
+
+		this.fetchTargetBytes = fetchTargetBytes;
+	}
+
+	public long getFetchTargetBytes() {
+		return fetchTargetBytes;
+	}
+
+	/*!
+	 * How many bytes of fetched blocks a scroll insensitive result set keeps on the heap. Blocks
+	 * past that are written to a temp file and memory mapped.
+	 */
+	public void setScrollHeapBytes(final long scrollHeapBytes) throws SQLException {
+		if (scrollHeapBytes < 0)
+		{
+			throw SQLStates.INVALID_ARGUMENT.clone();
+		}
+
+		this.scrollHeapBytes = scrollHeapBytes;
+	}
+
+	public long getScrollHeapBytes() {
+		return scrollHeapBytes;
+	}
+
+	/*
+	 * Gets the open result set off the socket before we send a request of our own: pauses its
+	 * prefetch thread and reads anything it left there (see XGResultSet.takePendingFetch()), so the
+	 * next response is the one to our request
+	 */
+	private void takePendingResponses() throws Exception {
+		final XGResultSet rs = this.rs;
+		if (rs != null && !rs.isClosed() && demux == null)
+		{
+			rs.pausePrefetch();
+			rs.takePendingFetch();
+		}
+	}
+
+	/*!
+	 * How many extra sockets to the same cmdcomp this connection opens, so that statements can run
+	 * while another statement's result set is still open. 0 turns that off, and those statements
+	 * fail with PREVIOUS_RESULT_SET_STILL_OPEN instead.
+	 */
+	public void setMaxSubConnections(final int maxSubConnections) throws SQLException {
+		if (maxSubConnections < 0)
+		{
+			throw SQLStates.INVALID_ARGUMENT.clone();
+		}
+
+		this.maxSubConnections = maxSubConnections;
+	}
+
+	public int getMaxSubConnections() {
+		return maxSubConnections;
+	}
+
+	/*
+	 * The connection a statement should send its next request on. That's this one unless another
+	 * result set still has our socket, then it's an idle sub-connection, preferably current. If all
+	 * of them are busy and we can't open another, it's this one and the caller reports the open
+	 * result set.
+	 */
+	protected XGConnection getIdleConnection(final XGConnection current) throws SQLException {
+		if (demux != null || isIdle())
+		{
+			return this;
+		}
+
+		synchronized (subConnections)
+		{
+			XGConnection idle = null;
+			for (final Iterator<XGConnection> it = subConnections.iterator(); it.hasNext();)
+			{
+				final XGConnection sub = it.next();
+				if (sub.isClosed())
+				{
+					it.remove();
+				}
+				else if (sub.isIdle() && (idle == null || sub == current))
+				{
+					idle = sub;
+				}
+			}
+
+			if (idle != null)
+			{
+				idle.inherit(this);
+				return idle;
+			}
+
+			if (subConnections.size() + openingSubConnections >= maxSubConnections || closed)
+			{
+				return this;
+			}
+
+			// take the slot now, connecting and the handshake happen without holding the lock
+			openingSubConnections++;
+		}
+
+		XGConnection sub = null;
+		try
+		{
+			sub = openSubConnection();
+			// nobody else can see it yet
+			sub.inherit(this);
+		}
+		catch (final SQLException | RuntimeException e)
+		{
+			synchronized (subConnections)
+			{
+				openingSubConnections--;
+			}
+
+			if (sub != null)
+			{
+				try
+				{
+					sub.close();
+				}
+				catch (final SQLException f)
+				{}
+			}
+
+			throw e;
+		}
+
+		synchronized (subConnections)
+		{
+			openingSubConnections--;
+			if (!closed)
+			{
+				subConnections.add(sub);
+				return sub;
+			}
+		}
+
+		// we were closed while it was connecting
+		sub.close();
+		return this;
+	}
+
+	/*
+	 * Whether no open result set is waiting on our socket
+	 */
+	private boolean isIdle() throws SQLException {
+		final XGResultSet rs = this.rs;
+		return rs == null || rs.isClosed();
+	}
+
+	private XGConnection openSubConnection() throws SQLException {
+		Socket sock = null;
+		try
+		{
+			sock = new Socket();
+			sock.setReceiveBufferSize(4194304);
+			sock.setSendBufferSize(4194304);
+			sock.connect(node != null ? node : new InetSocketAddress(url, portNum), 10000);
+
+			// forced, so it stays on our cmdcomp
+			return new XGConnection(sock, user, pwd, portNum, url, database, version, "true");
+		}
+		catch (final Exception e)
+		{
+			try
+			{
+				sock.close();
+			}
+			catch (final IOException f)
+			{}
+
+			if (e instanceof SQLException)
+			{
+				throw (SQLException) e;
+			}
+
+			throw SQLStates.newGenericException(e);
+		}
+	}
+
+	/*
+	 * Brings a sub-connection's settings and session in line with its parent's
+	 */
+	private void inherit(final XGConnection parent) throws SQLException {
+		timeoutMillis = parent.timeoutMillis;
+		lazyDecode = parent.lazyDecode;
+		dedupStrings = parent.dedupStrings;
+		caseInsensitiveLabels = parent.caseInsensitiveLabels;
+		prefetchBlocks = parent.prefetchBlocks;
+		fetchTargetBytes = parent.fetchTargetBytes;
+		scrollHeapBytes = parent.scrollHeapBytes;
+		queryCache = parent.queryCache;
+		cacheableSession = parent.cacheableSession;
+		typeMap = parent.typeMap;
+		synchronized (this)
+		{
+			// the pool stays the parent's to shut down
+			shutdownDecodePool();
+			decodeThreads = 0;
+			decodePool = parent.getDecodePool();
+		}
+
+		try
+		{
+			if (!parent.setSchema.equals(setSchema))
+			{
+				setSchema(parent.setSchema);
+			}
+
+			if (parent.setPso != setPso)
+			{
+				if (parent.setPso > 0)
+				{
+					setPSO(parent.setPso);
+				}
+				else
+				{
+					setPSO(parent.setPso == 0);
+				}
+			}
+		}
+		catch (final Exception e)
+		{
+			if (e instanceof SQLException)
+			{
+				throw (SQLException) e;
+			}
+
+			throw SQLStates.newGenericException(e);
+		}
+	}
+
+	/*
+	 * Closes the sub-connections, or marks them to be dropped once their result sets close
+	 */
+	private void closeSubConnections() {
+		synchronized (subConnections)
+		{
+			for (final XGConnection sub : subConnections)
+			{
+				final XGResultSet rs = sub.rs;
+				try
+				{
+					if (rs != null && !rs.isClosed())
+					{
+						rs.closeConnectionOnClose();
+					}
+
+					if (rs == null || rs.isClosed())
+					{
+						sub.close();
+					}
+				}
+				catch (final SQLException e)
+				{}
+			}
+
+			subConnections.clear();
+		}
+	}
+
+	/*
+	 * Writes a request for the given stream. The stream id only goes on the wire if the connection
+	 * is multiplexed, otherwise everything is on stream 0.
+	 */
+	protected void send(Request wrapper, final int streamId, final boolean flush) throws IOException {
+		if (demux != null && streamId != 0)
+		{
+			wrapper = wrapper.toBuilder().setStreamId(streamId).build();
+		}
+
+		synchronized (sendLock)
+		{
+			out.write(intToBytes(wrapper.getSerializedSize()));
+			wrapper.writeTo(out);
+			if (flush)
+			{
+				out.flush();
+			}
+		}
+	}
+
+	/*
+	 * Where responses to requests on stream 0 are read from
+	 */
+	private InputStream input() {
+		final Demultiplexer demux = this.demux;
+		return demux != null ? demux.stream() : in;
+	}
+
+	/*
+	 * The demultiplexer for the current socket, null if the server didn't agree to multiplex
+	 */
+	protected Demultiplexer getDemultiplexer() {
+		return demux;
+	}
+
+	private void leaveNode() {
+		if (node != null)
+		{
+			CmdcompLoad.disconnected(node);
+			node = null;
+		}
+	}
+
+	private void closeDemultiplexer() {
+		final Demultiplexer demux = this.demux;
+		this.demux = null;
+		if (demux != null)
+		{
+			demux.close();
+		}
+	}
+
+	/*!
+	 * Serves repeated queries on this connection from the given cache, and records the results of
+	 * the ones that miss into it. null turns caching off.
+	 */
+	public void setQueryCache(final QueryCache queryCache) {
+		this.queryCache = queryCache;
+	}
+
+	public QueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/*
+	 * The cache key for running sql on this connection right now, or null if it can't be cached
+	 */
+	protected String getQueryCacheKey(final String sql) {
+		if (queryCache == null || !cacheableSession)
+		{
+			return null;
+		}
+
+		return QueryCache.key(user, database, setSchema, setPso, sql);
+	}
+
+	/*
+	 * Called when the session was changed behind our back (e.g. a SET statement). After that the
+	 * cache can't tell which cached results still apply, the sub-connections wouldn't pick the
+	 * change up, and a pool shouldn't hand us to anyone else.
+	 */
+	protected void sessionChanged() {
+		cacheableSession = false;
+		sessionChanged = true;
+		closeSubConnections();
+	}
+
+	/*
+	 * Whether the session differs from the one a new connection starts with
+	 */
+	protected boolean isSessionChanged() {
+		return sessionChanged || !setSchema.equals("") || setPso != 0;
+	}
+
+	/*!
+	 * When greater than zero, result sets created on this connection decode the blobs of each
+	 * fetched block in parallel on a pool of this many threads. Only applies without lazyDecode.
+	 */
+	public synchronized void setDecodeThreads(final int decodeThreads) throws SQLException {
+		if (decodeThreads < 0)
+		{
+			throw SQLStates.INVALID_ARGUMENT.clone();
+		}
+
+		if (decodeThreads != this.decodeThreads)
+		{
+			shutdownDecodePool();
+		}
+
+		this.decodeThreads = decodeThreads;
+	}
+
+	public synchronized int getDecodeThreads() {
+		return decodeThreads;
+	}
+
+	/*!
+	 * Decodes blobs in parallel on the given pool instead of one of our own. The pool is still the
+	 * application's to shut down. null goes back to what setDecodeThreads() says.
+	 */
+	public synchronized void setDecodePool(final ForkJoinPool decodePool) {
+		shutdownDecodePool();
+		this.decodePool = decodePool;
+	}
+
+	/*
+	 * The pool to decode blobs on, or null to decode them on the calling thread
+	 */
+	protected synchronized ForkJoinPool getDecodePool() {
+		if (decodePool == null && decodeThreads > 0 && !closed)
+		{
+			decodePool = new ForkJoinPool(decodeThreads);
+			ownDecodePool = true;
+		}
+
+		return decodePool;
+	}
+
+	private synchronized void shutdownDecodePool() {
+		if (ownDecodePool)
+		{
+			decodePool.shutdown();
+		}
+
+		decodePool = null;
+		ownDecodePool = false;
+	}
+
 	/**
 	 * Creates a new {@link Timer} or returns the existing one if it already exists
 	 */
@@ -259,6 +763,9 @@ public class XGConnection implements Connection
 	}
 
 	private void clientHandshake(final String userid, final String pwd, final String db) throws Exception {
+		// the handshake is read straight off the socket, not through the old socket's demultiplexer
+		closeDemultiplexer();
+		leaveNode();
 		try
 		{
 			// send first part of handshake - contains userid
@@ -268,11 +775,19 @@ public class XGConnection implements Connection
 			builder.setDatabase(database);
 			builder.setClientid(client);
 			builder.setVersion(version);
+			// a ticket from our last handshake lets the server skip the key exchange
+			final byte[] ticket = resumptionTicket;
+			final byte[] ticketSecret = resumptionSecret;
+			if (ticket != null)
+			{
+				builder.setResumptionTicket(ByteString.copyFrom(ticket));
+			}
 			final ClientConnection msg = builder.build();
 			ClientWireProtocol.Request.Builder b2 = ClientWireProtocol.Request.newBuilder();
 			b2.setType(ClientWireProtocol.Request.RequestType.CLIENT_CONNECTION);
 			b2.setClientConnection(msg);
 			Request wrapper = b2.build();
+			final long sent = System.nanoTime();
 			out.write(intToBytes(wrapper.getSerializedSize()));
 			wrapper.writeTo(out);
 			out.flush();
@@ -283,87 +798,29 @@ public class XGConnection implements Connection
 			int length = getLength();
 			byte[] data = new byte[length];
 			readBytes(data);
+			final long roundTrip = System.nanoTime() - sent;
 			ccr.mergeFrom(data);
 			ConfirmationResponse response = ccr.getResponse();
 			ResponseType rType = response.getType();
 			processResponseType(rType, response);
-			final ByteString ivString = ccr.getIv();
-         byte[] key = new byte[256];
-         byte[] macKey = new byte[256];
-         String myPubKey;
-
-         try {
-            String keySpec = ccr.getPubKey();
-            keySpec = keySpec.replace("-----BEGIN PUBLIC KEY-----\n", "");
-            keySpec = keySpec.replace("-----END PUBLIC KEY-----\n", "");
-            byte[] keyBytes = Base64.getMimeDecoder().decode(keySpec.getBytes(StandardCharsets.UTF_8));
-            X509EncodedKeySpec x509keySpec = new X509EncodedKeySpec(keyBytes);
-            KeyFactory keyFact = KeyFactory.getInstance("DH");
-            DHPublicKey pubKey = (DHPublicKey)keyFact.generatePublic(x509keySpec);
-            DHParameterSpec params =  pubKey.getParams();
-
-            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DH");
-            keyGen.initialize(params);
-            KeyPair kp = keyGen.generateKeyPair();
-
-            KeyAgreement ka = KeyAgreement.getInstance("DiffieHellman");
-            ka.init(kp.getPrivate());
-            ka.doPhase(pubKey, true);
-            byte[] secret = ka.generateSecret();
-
-            byte [] buffer = new byte[5 + secret.length];
-            buffer[0] = (byte) ((secret.length & 0xff000000) >> 24);
-            buffer[1] = (byte) ((secret.length & 0xff0000) >> 16);
-            buffer[2] = (byte) ((secret.length & 0xff00) >> 8);
-            buffer[3] = (byte) (secret.length & 0xff);
-            System.arraycopy(secret, 0, buffer, 5, secret.length);
-
-            buffer[4] = 0x00;
-            MessageDigest sha = MessageDigest.getInstance("SHA-256");
-            key = sha.digest(buffer);
-
-            buffer[4] = 0x01;
-            sha = MessageDigest.getInstance("SHA-256");
-            macKey = sha.digest(buffer);
-
-            PublicKey clientPub = kp.getPublic();
-            myPubKey = "-----BEGIN PUBLIC KEY-----\n" +
-               Base64.getMimeEncoder().encodeToString(clientPub.getEncoded()) + "\n-----END PUBLIC KEY-----\n";
-         }
-         catch(Exception e) {
-            throw new Exception(e);
-         }
-
-         final byte[] iv = ivString.toByteArray();
-			final IvParameterSpec ips = new IvParameterSpec(iv);
-
-			// Create a key specification first, based on our key input.
-			final SecretKey aesKey = new SecretKeySpec(key, "AES");
-         final SecretKey hmacKey = new SecretKeySpec(macKey, "AES");
-
-			// Create a Cipher for encrypting the data using the key we created.
-			Cipher encryptCipher;
-
-			encryptCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-			// Initialize the Cipher with key and parameters
-			encryptCipher.init(Cipher.ENCRYPT_MODE, aesKey, ips);
-
-			// Our cleartext
-			final byte[] cleartext = pwd.getBytes(StandardCharsets.UTF_8);
-
-			// Encrypt the cleartext
-			final byte[] ciphertext = encryptCipher.doFinal(cleartext);
-
-         Mac hmac = Mac.getInstance("HmacSha256");
-         hmac.init(hmacKey);
-         final byte[] calculatedMac = hmac.doFinal(ciphertext);
+			final byte[] iv = ccr.getIv().toByteArray();
 
 			// send handshake part2
 			final ClientWireProtocol.ClientConnection2.Builder hand2 =
 					ClientWireProtocol.ClientConnection2.newBuilder();
-			hand2.setCipher(ByteString.copyFrom(ciphertext));
-         hand2.setPubKey(myPubKey);
-         hand2.setHmac(ByteString.copyFrom(calculatedMac));
+			final boolean resumed = ticket != null && ccr.getResume();
+			final byte[] secret;
+			if (resumed)
+			{
+				// the server still knows us, just prove we hold the ticket's secret
+				hand2.setHmac(ByteString.copyFrom(resumeProof(ticketSecret, iv)));
+				secret = nextResumeSecret(ticketSecret, iv);
+			}
+			else
+			{
+				secret = keyExchange(ccr.getPubKey(), iv, pwd, hand2);
+			}
+			hand2.setMultiplex(true);
 			if (force)
 			{
 				hand2.setForce(true);
@@ -399,11 +856,31 @@ public class XGConnection implements Connection
 			SQLException state = new SQLException(response.getReason(), response.getSqlState(), response.getVendorCode());
 			//if we had a failed handshake, then something went wrong with verification on the server, just try again(up to 5 times)
 			if(SQLStates.FAILED_HANDSHAKE.equals(state) && retryCounter++ < 5) {
+				// don't offer a ticket that may be why it failed
+				resumptionTicket = null;
+				resumptionSecret = null;
 				clientHandshake(userid, pwd, db);
 				return;
 			}
 			retryCounter = 0;
 			processResponseType(rType, response);
+			if (!ccr2.getResumptionTicket().isEmpty())
+			{
+				resumptionTicket = ccr2.getResumptionTicket().toByteArray();
+				resumptionSecret = secret;
+			}
+			else if (resumed)
+			{
+				// same ticket, but the server moved on to the next secret as well
+				resumptionSecret = secret;
+			}
+			else
+			{
+				// the server doesn't resume sessions, or not for us
+				resumptionTicket = null;
+				resumptionSecret = null;
+			}
+
 			if (ccr2.getRedirect())
 			{
 				final String host = ccr2.getRedirectHost();
@@ -418,6 +895,14 @@ public class XGConnection implements Connection
 				{
 					cmdcomps.add(ccr2.getCmdcomps(i));
 				}
+
+				if (ccr2.getMultiplex())
+				{
+					demux = new Demultiplexer(in, bufferPool);
+				}
+
+				node = (InetSocketAddress) sock.getRemoteSocketAddress();
+				CmdcompLoad.connected(node, cmdcomps, roundTrip);
 			}
 		}
 		catch (final Exception e)
@@ -435,6 +920,112 @@ public class XGConnection implements Connection
 		}
 	}
 
+	/*
+	 * The full handshake: agrees on a secret with the server's DH key, then fills in hand2 with our
+	 * key and the password encrypted under it. Returns the secret a resumption ticket would stand
+	 * for.
+	 */
+	private byte[] keyExchange(String keySpec, final byte[] iv, final String pwd,
+			final ClientWireProtocol.ClientConnection2.Builder hand2) throws Exception {
+		final byte[] key;
+		final byte[] macKey;
+		final byte[] resumeSecret;
+		final String myPubKey;
+
+		try
+		{
+			keySpec = keySpec.replace("-----BEGIN PUBLIC KEY-----\n", "");
+			keySpec = keySpec.replace("-----END PUBLIC KEY-----\n", "");
+			final byte[] keyBytes = Base64.getMimeDecoder().decode(keySpec.getBytes(StandardCharsets.UTF_8));
+			final X509EncodedKeySpec x509keySpec = new X509EncodedKeySpec(keyBytes);
+			final KeyFactory keyFact = KeyFactory.getInstance("DH");
+			final DHPublicKey pubKey = (DHPublicKey) keyFact.generatePublic(x509keySpec);
+			final DHParameterSpec params = pubKey.getParams();
+
+			final KeyPair kp = DhKeyPool.take(params);
+
+			final KeyAgreement ka = KeyAgreement.getInstance("DiffieHellman");
+			ka.init(kp.getPrivate());
+			ka.doPhase(pubKey, true);
+			final byte[] secret = ka.generateSecret();
+
+			key = deriveKey(secret, (byte) 0x00);
+			macKey = deriveKey(secret, (byte) 0x01);
+			resumeSecret = deriveKey(secret, (byte) 0x02);
+
+			final PublicKey clientPub = kp.getPublic();
+			myPubKey = "-----BEGIN PUBLIC KEY-----\n" + Base64.getMimeEncoder().encodeToString(clientPub.getEncoded())
+					+ "\n-----END PUBLIC KEY-----\n";
+		}
+		catch (final Exception e)
+		{
+			throw new Exception(e);
+		}
+
+		final IvParameterSpec ips = new IvParameterSpec(iv);
+
+		// Create a key specification first, based on our key input.
+		final SecretKey aesKey = new SecretKeySpec(key, "AES");
+		final SecretKey hmacKey = new SecretKeySpec(macKey, "AES");
+
+		// Create a Cipher for encrypting the data using the key we created.
+		final Cipher encryptCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		// Initialize the Cipher with key and parameters
+		encryptCipher.init(Cipher.ENCRYPT_MODE, aesKey, ips);
+
+		// Our cleartext
+		final byte[] cleartext = pwd.getBytes(StandardCharsets.UTF_8);
+
+		// Encrypt the cleartext
+		final byte[] ciphertext = encryptCipher.doFinal(cleartext);
+
+		final Mac hmac = Mac.getInstance("HmacSha256");
+		hmac.init(hmacKey);
+		final byte[] calculatedMac = hmac.doFinal(ciphertext);
+
+		hand2.setCipher(ByteString.copyFrom(ciphertext));
+		hand2.setPubKey(myPubKey);
+		hand2.setHmac(ByteString.copyFrom(calculatedMac));
+		return resumeSecret;
+	}
+
+	/*
+	 * SHA-256 of the secret's length (4 bytes, big endian), label, then the secret. Label 0 is the
+	 * AES key, 1 the HMAC key, 2 the resumption secret.
+	 */
+	static byte[] deriveKey(final byte[] secret, final byte label) throws Exception {
+		final byte[] buffer = new byte[5 + secret.length];
+		buffer[0] = (byte) ((secret.length & 0xff000000) >> 24);
+		buffer[1] = (byte) ((secret.length & 0xff0000) >> 16);
+		buffer[2] = (byte) ((secret.length & 0xff00) >> 8);
+		buffer[3] = (byte) (secret.length & 0xff);
+		buffer[4] = label;
+		System.arraycopy(secret, 0, buffer, 5, secret.length);
+		return MessageDigest.getInstance("SHA-256").digest(buffer);
+	}
+
+	/*
+	 * What a resumed ClientConnection2 sends as its hmac: HMAC-SHA256 of the server's fresh iv under
+	 * the resumption secret, so a captured one is no good for another handshake
+	 */
+	static byte[] resumeProof(final byte[] resumeSecret, final byte[] iv) throws Exception {
+		final Mac hmac = Mac.getInstance("HmacSha256");
+		hmac.init(new SecretKeySpec(resumeSecret, "HmacSha256"));
+		return hmac.doFinal(iv);
+	}
+
+	/*
+	 * The secret a resumed handshake leaves behind, so no two resumptions share one:
+	 * deriveKey(HMAC-SHA256 of label 2 then the iv under the old secret, 2). The label keeps it apart
+	 * from the proof, which went over the wire.
+	 */
+	static byte[] nextResumeSecret(final byte[] resumeSecret, final byte[] iv) throws Exception {
+		final Mac hmac = Mac.getInstance("HmacSha256");
+		hmac.init(new SecretKeySpec(resumeSecret, "HmacSha256"));
+		hmac.update((byte) 0x02);
+		return deriveKey(hmac.doFinal(iv), (byte) 0x02);
+	}
+
 	@Override
 	public void close() throws SQLException {
 		if (closed)
@@ -442,7 +1033,7 @@ public class XGConnection implements Connection
 			return;
 		}
 
-		if (rs != null)
+		if (rs != null && !rs.isClosed())
 		{
 			rs.getStatement().cancel();
 		}
@@ -455,6 +1046,18 @@ public class XGConnection implements Connection
 		catch (final Exception e)
 		{}
 
+		synchronized (subConnections)
+		{
+			for (final XGConnection sub : subConnections)
+			{
+				sub.close();
+			}
+
+			subConnections.clear();
+		}
+
+		closeDemultiplexer();
+		leaveNode();
 		try
 		{
 			in.close();
@@ -464,6 +1067,8 @@ public class XGConnection implements Connection
 		catch (final Exception e)
 		{}
 
+		shutdownDecodePool();
+
 		// Cleanup our timer, if one exists
 		Timer t = null;
 		do {
@@ -622,6 +1227,7 @@ public class XGConnection implements Connection
 	}
 
 	private int getLength() throws Exception {
+		final InputStream in = input();
 		final byte[] inMsg = new byte[4];
 
 		int count = 0;
@@ -697,9 +1303,8 @@ public class XGConnection implements Connection
 
 		try
 		{
-			out.write(intToBytes(wrapper.getSerializedSize()));
-			wrapper.writeTo(out);
-			out.flush();
+			takePendingResponses();
+			send(wrapper, 0, true);
 		}
 		catch (final IOException e)
 		{
@@ -964,6 +1569,7 @@ public class XGConnection implements Connection
 	}
 
 	private void readBytes(final byte[] data) throws Exception {
+		final InputStream in = input();
 		final int z = data.length;
 		int count = 0;
 		while (count < z)
@@ -1032,7 +1638,7 @@ public class XGConnection implements Connection
 				sock = new Socket();
 				sock.setReceiveBufferSize(4194304);
 				sock.setSendBufferSize(4194304);
-				sock.connect(new InetSocketAddress(this.url, this.portNum));
+				sock.connect(node != null ? node : new InetSocketAddress(this.url, this.portNum));
 			}
 			catch (final Exception e)
 			{
@@ -1108,7 +1714,7 @@ public class XGConnection implements Connection
 				sock = new Socket();
 				sock.setReceiveBufferSize(4194304);
 				sock.setSendBufferSize(4194304);
-				sock.connect(new InetSocketAddress(this.url, this.portNum));
+				sock.connect(node != null ? node : new InetSocketAddress(this.url, this.portNum));
 			}
 			catch (final Exception e)
 			{
@@ -1178,36 +1784,35 @@ public class XGConnection implements Connection
 
 		// capture any exception from trying to connect
 		SQLException retVal = null;
-		for (final String cmdcomp : cmdcomps)
+		// the one we lost goes last, unless it's the only one
+		if (node != null)
 		{
-			final StringTokenizer tokens = new StringTokenizer(cmdcomp, ":", false);
-			final String host = tokens.nextToken();
-			final int port = Integer.parseInt(tokens.nextToken());
-
-			// Try to connect to this one
-			this.url = host;
+			CmdcompLoad.failed(node);
+		}
 
+		final List<InetSocketAddress> candidates = CmdcompLoad.rank(CmdcompLoad.addresses(cmdcomps));
+		while (!candidates.isEmpty())
+		{
+			// Race them all, with a head start for the less loaded ones
 			sock = null;
 			try
 			{
-				sock = new Socket();
-				sock.setReceiveBufferSize(4194304);
-				sock.setSendBufferSize(4194304);
-				sock.connect(new InetSocketAddress(host, port));
+				sock = ConnectRace.connect(candidates, 10000);
 			}
-			catch (final Exception e)
+			catch (final IOException e)
 			{
-				try
-				{
-					sock.close();
-				}
-				catch (final IOException f)
-				{}
+				break;
+			}
 
-				continue;
+			final InetSocketAddress cmdcomp = (InetSocketAddress) sock.getRemoteSocketAddress();
+			if (!candidates.remove(cmdcomp))
+			{
+				// can't tell which one it was, so this is the last try
+				candidates.clear();
 			}
 
-			this.portNum = port;
+			this.url = cmdcomp.getHostString();
+			this.portNum = cmdcomp.getPort();
 			try
 			{
 				in = new BufferedInputStream(sock.getInputStream());
@@ -1387,9 +1992,7 @@ public class XGConnection implements Connection
 
 		try
 		{
-			out.write(intToBytes(wrapper.getSerializedSize()));
-			wrapper.writeTo(out);
-			out.flush();
+			send(wrapper, 0, true);
 		}
 		catch (final IOException e)
 		{
@@ -1409,9 +2012,8 @@ public class XGConnection implements Connection
 
 		try
 		{
-			out.write(intToBytes(wrapper.getSerializedSize()));
-			wrapper.writeTo(out);
-			out.flush();
+			takePendingResponses();
+			send(wrapper, 0, true);
 			getStandardResponse();
 		}
 		catch (final IOException e)
@@ -1439,9 +2041,8 @@ public class XGConnection implements Connection
 
 		try
 		{
-			out.write(intToBytes(wrapper.getSerializedSize()));
-			wrapper.writeTo(out);
-			out.flush();
+			takePendingResponses();
+			send(wrapper, 0, true);
 			getStandardResponse();
 		}
 		catch (final IOException e)
@@ -1470,9 +2071,8 @@ public class XGConnection implements Connection
 
 		try
 		{
-			out.write(intToBytes(wrapper.getSerializedSize()));
-			wrapper.writeTo(out);
-			out.flush();
+			takePendingResponses();
+			send(wrapper, 0, true);
 			getStandardResponse();
 		}
 		catch (final IOException e)
@@ -1509,9 +2109,8 @@ public class XGConnection implements Connection
 
 		try
 		{
-			out.write(intToBytes(wrapper.getSerializedSize()));
-			wrapper.writeTo(out);
-			out.flush();
+			takePendingResponses();
+			send(wrapper, 0, true);
 			getStandardResponse();
 		}
 		catch (final IOException e)
@@ -0,0 +1,564 @@
+package com.ocient.jdbc;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.DataSource;
+import javax.sql.PooledConnection;
+
+/*!
+ * A DataSource that keeps authenticated connections around, so getConnection() usually skips the
+ * TCP connect and the handshake. Closing a connection it handed out gives it back to the pool.
+ *
+ * Idle connections are checked with a TEST_CONNECTION every validation interval, closed once
+ * they've been idle longer than the idle timeout (down to the minimum pool size), and replaced
+ * once they're older than the max lifetime. A connection whose session was changed (a schema, PSO
+ * threshold or SET statement) is closed instead of being given back.
+ *
+ * As a ConnectionPoolDataSource it hands out unpooled XGPooledConnections for an application
+ * server's pool to manage.
+ */
+public class XGDataSource implements DataSource, ConnectionPoolDataSource
+{
+	private static final Logger LOGGER = Logger.getLogger("com.ocient.jdbc");
+
+	private String url;
+	private final Properties properties = new Properties();
+	private int minPoolSize = 0;
+	private int maxPoolSize = 10;
+	private long idleTimeoutMillis = 10 * 60 * 1000L; // 0 means idle connections stay open
+	private long maxLifetimeMillis = 30 * 60 * 1000L; // 0 means connections are never recycled
+	private long validationIntervalMillis = 30 * 1000L;
+	private int loginTimeout = 0; // seconds to wait for a connection, 0 means 30
+	private PrintWriter logWriter;
+
+	// the connections nobody has borrowed, most recently returned first
+	private final ConcurrentLinkedDeque<XGPooledConnection> idle = new ConcurrentLinkedDeque<>();
+	// one permit per connection that may still be borrowed, created on first use
+	private volatile Semaphore permits;
+	private final AtomicInteger total = new AtomicInteger();
+	// notified when a connection goes idle or is closed, for a borrower waiting on the maintainer
+	private final Object available = new Object();
+	private Timer maintainer;
+	private volatile boolean closed = false;
+
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong borrowed = new AtomicLong();
+	private final AtomicLong retired = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+
+	private final ConnectionEventListener listener = new ConnectionEventListener()
+	{
+		@Override
+		public void connectionClosed(final ConnectionEvent event) {
+			giveBack((XGPooledConnection) event.getSource());
+		}
+
+		@Override
+		public void connectionErrorOccurred(final ConnectionEvent event) {
+			final XGPooledConnection pc = (XGPooledConnection) event.getSource();
+			if (!pc.isBorrowed())
+			{
+				// failed while being given back, so it never comes back
+				retire(pc);
+				permits.release();
+			}
+			// otherwise giveBack() gets rid of it once the application closes it
+		}
+	};
+
+	public XGDataSource()
+	{}
+
+	public XGDataSource(final String url, final String user, final String password)
+	{
+		setUrl(url);
+		setUser(user);
+		setPassword(password);
+	}
+
+	public void setUrl(final String url) {
+		this.url = url;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public void setUser(final String user) {
+		properties.setProperty("user", user);
+	}
+
+	public String getUser() {
+		return properties.getProperty("user");
+	}
+
+	public void setPassword(final String password) {
+		properties.setProperty("password", password);
+	}
+
+	/*!
+	 * Sets any of the driver's connection properties (see JDBCDriver.getPropertyInfo())
+	 */
+	public void setProperty(final String key, final String value) {
+		properties.setProperty(key, value);
+	}
+
+	public String getProperty(final String key) {
+		return properties.getProperty(key);
+	}
+
+	/*!
+	 * How many connections the pool keeps open even when they're idle
+	 */
+	public void setMinPoolSize(final int minPoolSize) throws SQLException {
+		if (minPoolSize < 0)
+		{
+			throw SQLStates.INVALID_ARGUMENT.clone();
+		}
+
+		this.minPoolSize = minPoolSize;
+	}
+
+	public int getMinPoolSize() {
+		return minPoolSize;
+	}
+
+	/*!
+	 * How many connections can be borrowed at once. Once they all are, getConnection() waits up to
+	 * the login timeout for one to come back. Only takes effect before the first getConnection().
+	 */
+	public void setMaxPoolSize(final int maxPoolSize) throws SQLException {
+		if (maxPoolSize < 1)
+		{
+			throw SQLStates.INVALID_ARGUMENT.clone();
+		}
+
+		this.maxPoolSize = maxPoolSize;
+	}
+
+	public int getMaxPoolSize() {
+		return maxPoolSize;
+	}
+
+	public void setIdleTimeoutMillis(final long idleTimeoutMillis) throws SQLException {
+		if (idleTimeoutMillis < 0)
+		{
+			throw SQLStates.INVALID_ARGUMENT.clone();
+		}
+
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	public long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	public void setMaxLifetimeMillis(final long maxLifetimeMillis) throws SQLException {
+		if (maxLifetimeMillis < 0)
+		{
+			throw SQLStates.INVALID_ARGUMENT.clone();
+		}
+
+		this.maxLifetimeMillis = maxLifetimeMillis;
+	}
+
+	public long getMaxLifetimeMillis() {
+		return maxLifetimeMillis;
+	}
+
+	/*!
+	 * How often idle connections are validated, evicted and topped up. Only takes effect before the
+	 * first getConnection().
+	 */
+	public void setValidationIntervalMillis(final long validationIntervalMillis) throws SQLException {
+		if (validationIntervalMillis <= 0)
+		{
+			throw SQLStates.INVALID_ARGUMENT.clone();
+		}
+
+		this.validationIntervalMillis = validationIntervalMillis;
+	}
+
+	public long getValidationIntervalMillis() {
+		return validationIntervalMillis;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		if (closed)
+		{
+			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
+		}
+
+		start();
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(loginTimeout > 0 ? loginTimeout : 30);
+		try
+		{
+			if (!permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+			{
+				timeouts.incrementAndGet();
+				throw SQLStates.FAILED_CONNECTION.cloneAndSpecify("Timed out waiting for a pooled connection");
+			}
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw SQLStates.newGenericException(e);
+		}
+
+		try
+		{
+			while (true)
+			{
+				XGPooledConnection pc = idle.pollFirst();
+				if (pc == null)
+				{
+					final int n = total.get();
+					if (n >= maxPoolSize)
+					{
+						// the maintainer has the rest out, validating them
+						awaitAvailable(deadline);
+						continue;
+					}
+
+					if (!total.compareAndSet(n, n + 1))
+					{
+						continue;
+					}
+
+					pc = open();
+				}
+				else if (isExpired(pc, System.nanoTime()) || !pc.isUsable())
+				{
+					retire(pc);
+					continue;
+				}
+
+				borrowed.incrementAndGet();
+				return pc.getConnection();
+			}
+		}
+		catch (final SQLException | RuntimeException e)
+		{
+			permits.release();
+			throw e;
+		}
+	}
+
+	/*!
+	 * A connection outside the pool, as the given user
+	 */
+	@Override
+	public Connection getConnection(final String user, final String password) throws SQLException {
+		return connect(user, password);
+	}
+
+	@Override
+	public PooledConnection getPooledConnection() throws SQLException {
+		return new XGPooledConnection(connect(getUser(), properties.getProperty("password")));
+	}
+
+	@Override
+	public PooledConnection getPooledConnection(final String user, final String password) throws SQLException {
+		return new XGPooledConnection(connect(user, password));
+	}
+
+	/*!
+	 * Closes the idle connections and stops the pool. Borrowed connections are closed when they
+	 * come back.
+	 */
+	public synchronized void close() {
+		closed = true;
+		if (maintainer != null)
+		{
+			maintainer.cancel();
+			maintainer = null;
+		}
+
+		XGPooledConnection pc;
+		while ((pc = idle.pollFirst()) != null)
+		{
+			retire(pc);
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/*!
+	 * Connections currently borrowed
+	 */
+	public int getActiveConnections() {
+		final Semaphore permits = this.permits;
+		return permits == null ? 0 : maxPoolSize - permits.availablePermits();
+	}
+
+	public int getIdleConnections() {
+		return idle.size();
+	}
+
+	/*!
+	 * Open physical connections, borrowed or not
+	 */
+	public int getTotalConnections() {
+		return total.get();
+	}
+
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	public long getBorrowedCount() {
+		return borrowed.get();
+	}
+
+	/*!
+	 * Connections the pool closed, because they were idle, too old, invalid or had their session
+	 * changed
+	 */
+	public long getRetiredCount() {
+		return retired.get();
+	}
+
+	/*!
+	 * getConnection() calls that gave up waiting for a connection
+	 */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return logWriter;
+	}
+
+	@Override
+	public void setLogWriter(final PrintWriter out) throws SQLException {
+		logWriter = out;
+	}
+
+	@Override
+	public void setLoginTimeout(final int seconds) throws SQLException {
+		loginTimeout = seconds;
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return loginTimeout;
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		return LOGGER;
+	}
+
+	@Override
+	public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+		return false;
+	}
+
+	@Override
+	public <T> T unwrap(final Class<T> iface) throws SQLException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	private synchronized void start() {
+		if (permits != null)
+		{
+			return;
+		}
+
+		permits = new Semaphore(maxPoolSize);
+		maintainer = new Timer("XGDataSource maintainer", true);
+		maintainer.schedule(new TimerTask()
+		{
+			@Override
+			public void run() {
+				maintain();
+			}
+		}, 0, validationIntervalMillis);
+	}
+
+	private XGConnection connect(final String user, final String password) throws SQLException {
+		if (url == null)
+		{
+			throw SQLStates.MALFORMED_URL.clone();
+		}
+
+		final Properties props = new Properties();
+		props.putAll(properties);
+		if (user != null)
+		{
+			props.setProperty("user", user);
+		}
+		if (password != null)
+		{
+			props.setProperty("password", password);
+		}
+
+		final XGConnection conn = (XGConnection) new JDBCDriver().connect(url, props);
+		if (conn == null)
+		{
+			throw SQLStates.MALFORMED_URL.clone();
+		}
+
+		return conn;
+	}
+
+	/*
+	 * Opens a connection for the pool. The caller already counted it in total.
+	 */
+	private XGPooledConnection open() throws SQLException {
+		try
+		{
+			final XGPooledConnection pc =
+					new XGPooledConnection(connect(getUser(), properties.getProperty("password")));
+			pc.addConnectionEventListener(listener);
+			created.incrementAndGet();
+			return pc;
+		}
+		catch (final SQLException | RuntimeException e)
+		{
+			total.decrementAndGet();
+			throw e;
+		}
+	}
+
+	private void giveBack(final XGPooledConnection pc) {
+		if (closed || !pc.isUsable() || pc.isSessionChanged() || isExpired(pc, System.nanoTime()))
+		{
+			retire(pc);
+		}
+		else
+		{
+			idle.offerFirst(pc);
+			signalAvailable();
+		}
+
+		permits.release();
+	}
+
+	private void retire(final XGPooledConnection pc) {
+		total.decrementAndGet();
+		retired.incrementAndGet();
+		try
+		{
+			pc.close();
+		}
+		catch (final SQLException e)
+		{}
+
+		signalAvailable();
+	}
+
+	/*
+	 * Waits until there's an idle connection or room to open one, or until deadline
+	 */
+	private void awaitAvailable(final long deadline) throws SQLException {
+		synchronized (available)
+		{
+			while (idle.isEmpty() && total.get() >= maxPoolSize)
+			{
+				final long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+				{
+					timeouts.incrementAndGet();
+					throw SQLStates.FAILED_CONNECTION.cloneAndSpecify("Timed out waiting for a pooled connection");
+				}
+
+				try
+				{
+					TimeUnit.NANOSECONDS.timedWait(available, remaining);
+				}
+				catch (final InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw SQLStates.newGenericException(e);
+				}
+			}
+		}
+	}
+
+	private void signalAvailable() {
+		synchronized (available)
+		{
+			available.notifyAll();
+		}
+	}
+
+	private boolean isExpired(final XGPooledConnection pc, final long now) {
+		return maxLifetimeMillis > 0 && now - pc.getCreatedNanos() > TimeUnit.MILLISECONDS.toNanos(maxLifetimeMillis);
+	}
+
+	/*
+	 * Runs every validation interval on the maintainer thread. Goes through the idle connections
+	 * from the least recently returned end, so borrowers on the other end aren't held up.
+	 */
+	private void maintain() {
+		final long now = System.nanoTime();
+		final int validationTimeout = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(validationIntervalMillis));
+		for (int i = idle.size(); i > 0 && !closed; i--)
+		{
+			final XGPooledConnection pc = idle.pollLast();
+			if (pc == null)
+			{
+				break;
+			}
+
+			final boolean idleTooLong = idleTimeoutMillis > 0 && total.get() > minPoolSize
+					&& now - pc.getReturnedNanos() > TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+			if (idleTooLong || isExpired(pc, now) || !pc.isValid(validationTimeout))
+			{
+				retire(pc);
+			}
+			else
+			{
+				idle.offerLast(pc);
+				signalAvailable();
+			}
+		}
+
+		// top up to the minimum, without counting against borrowers
+		while (!closed)
+		{
+			final int n = total.get();
+			if (n >= minPoolSize || n >= maxPoolSize)
+			{
+				break;
+			}
+
+			if (!total.compareAndSet(n, n + 1))
+			{
+				continue;
+			}
+
+			try
+			{
+				idle.offerLast(open());
+				signalAvailable();
+			}
+			catch (final SQLException | RuntimeException e)
+			{
+				LOGGER.log(Level.WARNING, "XGDataSource: failed to open a pooled connection", e);
+				break;
+			}
+		}
+	}
+}
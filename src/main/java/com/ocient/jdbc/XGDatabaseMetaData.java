@@ -13,12 +13,18 @@ import com.ocient.jdbc.proto.ClientWireProtocol;
 public class XGDatabaseMetaData implements DatabaseMetaData
 {
 	private final Connection conn;
+	// what getConnection() hands out instead of conn, set when conn is behind an XGPooledConnection
+	private volatile Connection handle;
 
 	public XGDatabaseMetaData(final Connection conn)
 	{
 		this.conn = conn;
 	}
 
+	void setConnectionHandle(final Connection handle) {
+		this.handle = handle;
+	}
+
 	@Override
 	public boolean allProceduresAreCallable() throws SQLException {
 		return false;
@@ -107,7 +113,8 @@ public class XGDatabaseMetaData implements DatabaseMetaData
 
 	@Override
 	public Connection getConnection() throws SQLException {
-		return conn;
+		final Connection handle = this.handle;
+		return handle != null ? handle : conn;
 	}
 
 	@Override
@@ -831,7 +838,8 @@ public class XGDatabaseMetaData implements DatabaseMetaData
 
 	@Override
 	public boolean supportsResultSetConcurrency(final int type, final int concurrency) throws SQLException {
-		if (type == ResultSet.TYPE_FORWARD_ONLY && concurrency == ResultSet.CONCUR_READ_ONLY)
+		if ((type == ResultSet.TYPE_FORWARD_ONLY || type == ResultSet.TYPE_SCROLL_INSENSITIVE)
+				&& concurrency == ResultSet.CONCUR_READ_ONLY)
 		{
 			return true;
 		}
@@ -851,7 +859,7 @@ public class XGDatabaseMetaData implements DatabaseMetaData
 
 	@Override
 	public boolean supportsResultSetType(final int type) throws SQLException {
-		if (type == ResultSet.TYPE_FORWARD_ONLY)
+		if (type == ResultSet.TYPE_FORWARD_ONLY || type == ResultSet.TYPE_SCROLL_INSENSITIVE)
 		{
 			return true;
 		}
@@ -0,0 +1,272 @@
+package com.ocient.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.PooledConnection;
+import javax.sql.StatementEventListener;
+
+/*!
+ * A physical connection as seen by a connection pool. getConnection() hands out a logical
+ * connection whose close() gives the physical one back by notifying the listeners, instead of
+ * closing the socket.
+ */
+public class XGPooledConnection implements PooledConnection
+{
+	/*
+	 * Forwards everything to the physical connection until the application closes it
+	 */
+	private class Handle implements InvocationHandler
+	{
+		private volatile boolean closed = false;
+		// the statements made through this handle, closed along with it
+		private final ArrayList<XGStatement> statements = new ArrayList<>();
+
+		@Override
+		public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+		{
+			switch (method.getName())
+			{
+				case "close":
+					if (!closed)
+					{
+						closed = true;
+						logicalClose(this);
+					}
+					return null;
+				case "isClosed":
+					return closed || conn.isClosed();
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return "XGPooledConnection handle on " + conn;
+				default:
+					break;
+			}
+
+			if (closed)
+			{
+				throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
+			}
+
+			try
+			{
+				final Object ret = method.invoke(conn, args);
+				// so statements and metadata lead back to this handle rather than the physical connection
+				if (ret instanceof XGStatement)
+				{
+					((XGStatement) ret).setConnectionHandle((Connection) proxy);
+					track((XGStatement) ret);
+				}
+				else if (ret instanceof XGDatabaseMetaData)
+				{
+					((XGDatabaseMetaData) ret).setConnectionHandle((Connection) proxy);
+				}
+
+				return ret;
+			}
+			catch (final InvocationTargetException e)
+			{
+				final Throwable cause = e.getCause();
+				if (cause instanceof SQLException && !isUsable())
+				{
+					fireError((SQLException) cause);
+				}
+
+				throw cause;
+			}
+		}
+
+		private void track(final XGStatement stmt) {
+			synchronized (statements)
+			{
+				// forget the ones the application closed itself, so a long borrow doesn't pile them up
+				statements.removeIf(s -> s.closed);
+				statements.add(stmt);
+			}
+		}
+
+		/*
+		 * Closes the statements still open, and with them their result sets
+		 */
+		private void closeStatements() throws SQLException {
+			final ArrayList<XGStatement> open;
+			synchronized (statements)
+			{
+				open = new ArrayList<>(statements);
+				statements.clear();
+			}
+
+			for (final XGStatement stmt : open)
+			{
+				stmt.close();
+			}
+		}
+	}
+
+	private final XGConnection conn;
+	private final CopyOnWriteArrayList<ConnectionEventListener> listeners = new CopyOnWriteArrayList<>();
+	private final long createdNanos = System.nanoTime();
+	private volatile long returnedNanos = createdNanos;
+	private Handle handle;
+
+	XGPooledConnection(final XGConnection conn)
+	{
+		this.conn = conn;
+	}
+
+	@Override
+	public synchronized Connection getConnection() throws SQLException {
+		if (conn.isClosed())
+		{
+			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
+		}
+
+		if (handle != null)
+		{
+			// only the newest logical connection stays usable
+			handle.closed = true;
+		}
+
+		handle = new Handle();
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+				handle);
+	}
+
+	@Override
+	public void close() throws SQLException {
+		synchronized (this)
+		{
+			if (handle != null)
+			{
+				handle.closed = true;
+				handle = null;
+			}
+		}
+
+		conn.close();
+	}
+
+	@Override
+	public void addConnectionEventListener(final ConnectionEventListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeConnectionEventListener(final ConnectionEventListener listener) {
+		listeners.remove(listener);
+	}
+
+	// we don't pool prepared statements, so there are no statement events
+	@Override
+	public void addStatementEventListener(final StatementEventListener listener) {}
+
+	@Override
+	public void removeStatementEventListener(final StatementEventListener listener) {}
+
+	/*
+	 * False once the physical connection is closed or has lost the cluster for good
+	 */
+	boolean isUsable() {
+		try
+		{
+			return !conn.isClosed() && conn.connected();
+		}
+		catch (final SQLException e)
+		{
+			return false;
+		}
+	}
+
+	/*
+	 * Whether the application changed the session in a way the next borrower wouldn't expect
+	 */
+	boolean isSessionChanged() {
+		return conn.isSessionChanged();
+	}
+
+	boolean isValid(final int timeoutSecs) {
+		try
+		{
+			return conn.isValid(timeoutSecs);
+		}
+		catch (final SQLException e)
+		{
+			return false;
+		}
+	}
+
+	synchronized boolean isBorrowed() {
+		return handle != null;
+	}
+
+	long getCreatedNanos() {
+		return createdNanos;
+	}
+
+	long getReturnedNanos() {
+		return returnedNanos;
+	}
+
+	private void logicalClose(final Handle closing) {
+		synchronized (this)
+		{
+			if (handle != closing)
+			{
+				return;
+			}
+
+			handle = null;
+		}
+
+		// don't hand the next borrower a socket that's still busy with our result sets
+		final XGResultSet rs = conn.rs;
+		try
+		{
+			closing.closeStatements();
+			if (rs != null && !rs.isClosed())
+			{
+				rs.close();
+			}
+
+			conn.clearWarnings();
+		}
+		catch (final SQLException e)
+		{
+			try
+			{
+				conn.close();
+			}
+			catch (final SQLException f)
+			{}
+
+			fireError(e);
+			return;
+		}
+
+		returnedNanos = System.nanoTime();
+		final ConnectionEvent event = new ConnectionEvent(this);
+		for (final ConnectionEventListener listener : listeners)
+		{
+			listener.connectionClosed(event);
+		}
+	}
+
+	private void fireError(final SQLException e) {
+		final ConnectionEvent event = new ConnectionEvent(this, e);
+		for (final ConnectionEventListener listener : listeners)
+		{
+			listener.connectionErrorOccurred(event);
+		}
+	}
+}
@@ -6,6 +6,7 @@ import java.io.InterruptedIOException;
 import java.io.Reader;
 import java.lang.reflect.Constructor;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.math.RoundingMode;
 import java.net.InetAddress;
 import java.net.URL;
@@ -27,6 +28,11 @@ import java.sql.SQLXML;
 import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
@@ -34,11 +40,20 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.google.common.base.Charsets;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.UnsafeByteOperations;
 import com.ocient.jdbc.proto.ClientWireProtocol;
 import com.ocient.jdbc.proto.ClientWireProtocol.CloseResultSet;
 import com.ocient.jdbc.proto.ClientWireProtocol.ConfirmationResponse;
@@ -54,15 +69,6 @@ public class XGResultSet implements ResultSet
 		return ret;
 	}
 
-	private static byte[] intToBytes(final int val) {
-		final byte[] buff = new byte[4];
-		buff[0] = (byte) (val >> 24);
-		buff[1] = (byte) ((val & 0x00FF0000) >> 16);
-		buff[2] = (byte) ((val & 0x0000FF00) >> 8);
-		buff[3] = (byte) ((val & 0x000000FF));
-		return buff;
-	}
-
 	private ArrayList<Object> rs = new ArrayList<>();
 	private long firstRowIs = 0;
 	private long position = -1;
@@ -71,22 +77,97 @@ public class XGResultSet implements ResultSet
 	private int fetchSize;
 	private boolean wasNull = false;
 	private Map<String, Integer> cols2Pos;
+	// built from cols2Pos the first time a label is looked up; volatile since stream() workers look
+	// labels up too
+	private volatile ColumnIndex labels;
+	private boolean caseInsensitiveLabels = false;
 	private TreeMap<Integer, String> pos2Cols;
 	private Map<String, String> cols2Types;
 
+	// when set, fetched blocks are kept in wire format and cells are decoded on demand
+	private boolean lazyDecode = false;
+	private FetchBlock block;
+	// decodes strings out of block, only used on the application's thread
+	private final StringDecoder lazyStrings;
+	// when set, repeated short strings within a column share a single String
+	private boolean dedupStrings = false;
+	// expected wire type tag of each column, built from cols2Types the first time we need it
+	private byte[] colTypes;
+	// decodes cells for this result set's column types, see getRowDecoder()
+	private volatile RowDecoder rowDecoder;
+
+	// number of blocks to fetch ahead in the background, 0 means fetch synchronously in next()
+	private int prefetchBlocks = 0;
+	private Prefetcher prefetcher;
+
+	// every block fetched so far, only for scroll insensitive result sets
+	private BlockStore store;
+	// index in store of the current block, -1 if there isn't one yet
+	private int storedBlock = -1;
+
+	// picks the fetch size for each FetchData when adaptive fetch sizing is on, null otherwise
+	private volatile FetchSizer sizer;
+
+	// pooled buffer that the current lazily decoded block points into
+	private byte[] blockBuffer;
+
+	// the stream whose next response is a FetchData we sent along with FetchMetadata, null if none
+	private volatile InputStream pendingFetch;
+	private long pendingFetchStart;
+	// that response, if the connection had to read it off the socket before we got to it
+	private byte[] pendingData;
+	private int pendingLength;
+
+	// handed out by nextBatch() over and over
+	private XGBatch batch;
+
 	//tell whether the resultset was constructed with a pre-defined dataset.
 	private boolean immutable = false;
 
+	// set if this came out of the query cache, so there's nothing on the server to close
+	private boolean cached = false;
+	// copies fetched blocks for the query cache until the end of data, null if we aren't recording
+	private QueryCache.Recorder recorder;
+	// set on a sub-connection that's been dropped while we still had its socket, see closeConnectionOnClose()
+	private volatile boolean closeConnection = false;
+
 	private final XGStatement stmt;
 
 	private final ArrayList<SQLWarning> warnings = new ArrayList<>();
 
 	public XGResultSet(final XGConnection conn, final int fetchSize, final XGStatement stmt) throws Exception
+	{
+		this(conn, fetchSize, stmt, 0L);
+	}
+
+	/*
+	 * estimatedSizeInBytes is the server's estimate of the result set size (from
+	 * PlanHeader.rsSizeInBytes), 0 if there isn't one. Adaptive fetch sizing starts from it, so it
+	 * has to be known before the first FetchData goes out, which is in here.
+	 */
+	public XGResultSet(final XGConnection conn, final int fetchSize, final XGStatement stmt,
+			final long estimatedSizeInBytes) throws Exception
 	{
 		this.conn = conn;
 		this.fetchSize = fetchSize;
 		this.stmt = stmt;
-		requestMetaData();
+		this.lazyDecode = conn.getLazyDecode();
+		this.caseInsensitiveLabels = conn.getCaseInsensitiveLabels();
+		this.dedupStrings = conn.getDedupStrings();
+		this.lazyStrings = new StringDecoder(dedupStrings);
+		this.prefetchBlocks = conn.getPrefetchBlocks();
+		if (conn.getFetchTargetBytes() > 0 && !stmt.isFetchSizeSet())
+		{
+			sizer = new FetchSizer(conn.getFetchTargetBytes());
+			sizer.setEstimatedSizeInBytes(estimatedSizeInBytes);
+		}
+		if (stmt.isScrollInsensitive())
+		{
+			// blocks come out of the store in whatever order the cursor wants them, so no prefetching
+			store = new BlockStore(conn.getScrollHeapBytes());
+			prefetchBlocks = 0;
+		}
+		requestMetaData(true);
 	}
 
 	public XGResultSet(final XGConnection conn, final ArrayList<Object> rs, final XGStatement stmt)
@@ -96,6 +177,7 @@ public class XGResultSet implements ResultSet
 		this.stmt = stmt;
 		this.rs.add(new DataEndMarker());
 		this.immutable = true;
+		this.lazyStrings = new StringDecoder(false);
 	}
 
 	public XGResultSet(final XGConnection conn, final int fetchSize, final XGStatement stmt,
@@ -104,13 +186,59 @@ public class XGResultSet implements ResultSet
 		this.conn = conn;
 		this.fetchSize = fetchSize;
 		this.stmt = stmt;
-		requestMetaData();
+		this.lazyDecode = conn.getLazyDecode();
+		this.caseInsensitiveLabels = conn.getCaseInsensitiveLabels();
+		this.dedupStrings = conn.getDedupStrings();
+		this.lazyStrings = new StringDecoder(dedupStrings);
+		this.prefetchBlocks = conn.getPrefetchBlocks();
+		if (conn.getFetchTargetBytes() > 0 && !stmt.isFetchSizeSet())
+		{
+			sizer = new FetchSizer(conn.getFetchTargetBytes());
+		}
+		if (stmt.isScrollInsensitive())
+		{
+			// blocks come out of the store in whatever order the cursor wants them, so no prefetching
+			store = new BlockStore(conn.getScrollHeapBytes());
+			prefetchBlocks = 0;
+		}
+		requestMetaData(false);
 		mergeData(re);
 	}
+
+	/*
+	 * A result set over a query cache hit. The server never hears about it.
+	 */
+	public XGResultSet(final XGConnection conn, final XGStatement stmt, final QueryCache.Result result)
+			throws SQLException
+	{
+		this.conn = conn;
+		this.stmt = stmt;
+		this.cached = true;
+		this.lazyDecode = conn.getLazyDecode();
+		this.caseInsensitiveLabels = conn.getCaseInsensitiveLabels();
+		this.dedupStrings = conn.getDedupStrings();
+		this.lazyStrings = new StringDecoder(dedupStrings);
+		if (stmt.isScrollInsensitive())
+		{
+			store = new BlockStore(conn.getScrollHeapBytes());
+		}
+		setMetaData(result.getCols2Pos(), result.getCols2Types());
+		// the blobs end with the end of data marker, so this is the only block there is
+		mergeData(ClientWireProtocol.ResultSet.newBuilder().addAllBlobs(result.getBlobs()).build());
+	}
+
+	/*
+	 * Copies every block this result set fetches into the cache under the given key, once the last
+	 * one has been fetched. Has to be called before the first fetch.
+	 */
+	void recordInto(final QueryCache cache, final String key) {
+		recorder = cache.record(key, conn.database, cols2Pos, cols2Types);
+	}
 	
 	public void setCols2Pos(Map<String, Integer> cols2Pos)
 	{
 		this.cols2Pos = cols2Pos;
+		this.labels = null;
 	}
 	
 	public void setPos2Cols(TreeMap<Integer, String> pos2Cols)
@@ -135,7 +263,18 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public boolean absolute(final int row) throws SQLException {
-		throw new SQLFeatureNotSupportedException();
+		if (store == null)
+		{
+			throw new SQLFeatureNotSupportedException();
+		}
+
+		if (row >= 0)
+		{
+			return moveTo(row - 1L);
+		}
+
+		// counting back from the end, so we need all of it
+		return moveTo(numRows() + row);
 	}
 
 	public void addWarnings(final ArrayList<SQLWarning> ws) {
@@ -148,12 +287,22 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public void afterLast() throws SQLException {
-		throw new SQLFeatureNotSupportedException();
+		if (store == null)
+		{
+			throw new SQLFeatureNotSupportedException();
+		}
+
+		moveTo(numRows());
 	}
 
 	@Override
 	public void beforeFirst() throws SQLException {
-		throw new SQLFeatureNotSupportedException();
+		if (store == null)
+		{
+			throw new SQLFeatureNotSupportedException();
+		}
+
+		moveTo(-1);
 	}
 
 	@Override
@@ -178,17 +327,50 @@ public class XGResultSet implements ResultSet
 			return;
 		}
 
-		stmt.cancel();
+		if (!cached)
+		{
+			stmt.cancel();
+		}
 
 		try
 		{
 			closed = true;
-			sendCloseRS();
+			stopPrefetch();
+			if (store != null)
+			{
+				store.close();
+			}
+			// nobody may have fetched, but the response to the pipelined FetchData is still coming
+			takePendingFetch();
+			conn.bufferPool.release(pendingData);
+			pendingData = null;
+			pendingFetch = null;
+			if (!cached)
+			{
+				sendCloseRS();
+			}
+			block = null;
+			conn.bufferPool.release(blockBuffer);
+			blockBuffer = null;
 		}
 		catch (final Exception e)
 		{
 			throw SQLStates.newGenericException(e);
 		}
+		finally
+		{
+			if (closeConnection)
+			{
+				conn.close();
+			}
+		}
+	}
+
+	/*
+	 * Closes the connection along with us, for a sub-connection its parent has no more use for
+	 */
+	void closeConnectionOnClose() {
+		closeConnection = true;
 	}
 
 	@Override
@@ -203,43 +385,51 @@ public class XGResultSet implements ResultSet
 			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
 		}
 
-		final Integer pos = cols2Pos.get(columnLabel);
-		if (pos == null)
+		final ColumnIndex columns = columnIndex();
+		if (columns == null)
 		{
 			throw SQLStates.COLUMN_NOT_FOUND.clone();
 		}
 
-		return pos + 1;
-	}
+		final int index = columns.find(columnLabel);
+		if (index == 0)
+		{
+			throw SQLStates.COLUMN_NOT_FOUND.clone();
+		}
 
-	@Override
-	public boolean first() throws SQLException {
-		throw new SQLFeatureNotSupportedException();
+		return index;
 	}
 
-	@Override
-	public Array getArray(final int columnIndex) throws SQLException {
-		wasNull = false;
-
-		if (closed)
+	/*
+	 * The label index, built if it hasn't been yet, or null if there's no metadata to build it from.
+	 * Threads that race to build it each get a complete one, and the last one written wins.
+	 */
+	private ColumnIndex columnIndex() {
+		ColumnIndex ret = labels;
+		if (ret == null && cols2Pos != null)
 		{
-			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
+			ret = new ColumnIndex(cols2Pos, caseInsensitiveLabels);
+			labels = ret;
 		}
 
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
+		return ret;
+	}
+
+	@Override
+	public boolean first() throws SQLException {
+		if (store == null)
 		{
-			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
+			throw new SQLFeatureNotSupportedException();
 		}
 
-		final ArrayList<Object> alo = (ArrayList<Object>) row;
+		return moveTo(0);
+	}
 
-		if (columnIndex < 1 || columnIndex > alo.size())
-		{
-			throw SQLStates.COLUMN_NOT_FOUND.clone();
-		}
+	@Override
+	public Array getArray(final int columnIndex) throws SQLException {
+		wasNull = false;
 
-		final Object col = alo.get(columnIndex - 1);
+		final Object col = getColumn(columnIndex);
 
 		if (col == null)
 		{
@@ -257,7 +447,7 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public Array getArray(final String columnLabel) throws SQLException {
-		return getArray(cols2Pos.get(columnLabel) + 1);
+		return getArray(findColumn(columnLabel));
 	}
 
 	@Override
@@ -274,25 +464,15 @@ public class XGResultSet implements ResultSet
 	public BigDecimal getBigDecimal(final int columnIndex) throws SQLException {
 		wasNull = false;
 
-		if (closed)
-		{
-			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
-		}
-
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
-		{
-			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
-		}
-
-		final ArrayList<Object> alo = (ArrayList<Object>) row;
-
-		if (columnIndex < 1 || columnIndex > alo.size())
+		final int decimalRow = getSmallDecimalRow(columnIndex);
+		if (decimalRow >= 0)
 		{
-			throw SQLStates.COLUMN_NOT_FOUND.clone();
+			final ByteBuffer bb = block.buffer(decimalRow);
+			final int offset = block.offset(decimalRow, columnIndex - 1) + 1;
+			return getDecimalFromBuffer(bb, offset);
 		}
 
-		final Object col = alo.get(columnIndex - 1);
+		final Object col = getColumn(columnIndex);
 
 		if (col == null)
 		{
@@ -306,28 +486,38 @@ public class XGResultSet implements ResultSet
 			throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
 		}
 
-		final Number num = (Number) col;
-		final BigDecimal retval = new BigDecimal(num.doubleValue());
-		return retval;
+		if (col instanceof BigDecimal)
+		{
+			return (BigDecimal) col;
+		}
+		else if (col instanceof Float || col instanceof Double)
+		{
+			return new BigDecimal(((Number) col).doubleValue());
+		}
+
+		// integral types convert exactly
+		return BigDecimal.valueOf(((Number) col).longValue());
 	}
 
 	@Override
 	public BigDecimal getBigDecimal(final int columnIndex, final int scale) throws SQLException {
 		final BigDecimal retval = getBigDecimal(columnIndex);
-		retval.setScale(scale, RoundingMode.HALF_UP);
-		return retval;
+		if (retval == null)
+		{
+			return null;
+		}
+
+		return retval.setScale(scale, RoundingMode.HALF_UP);
 	}
 
 	@Override
 	public BigDecimal getBigDecimal(final String columnLabel) throws SQLException {
-		return getBigDecimal(cols2Pos.get(columnLabel) + 1);
+		return getBigDecimal(findColumn(columnLabel));
 	}
 
 	@Override
 	public BigDecimal getBigDecimal(final String columnLabel, final int scale) throws SQLException {
-		final BigDecimal retval = getBigDecimal(columnLabel);
-		retval.setScale(scale, RoundingMode.HALF_UP);
-		return retval;
+		return getBigDecimal(findColumn(columnLabel), scale);
 	}
 
 	@Override
@@ -354,25 +544,7 @@ public class XGResultSet implements ResultSet
 	public boolean getBoolean(final int columnIndex) throws SQLException {
 		wasNull = false;
 
-		if (closed)
-		{
-			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
-		}
-
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
-		{
-			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
-		}
-
-		final ArrayList<Object> alo = (ArrayList<Object>) row;
-
-		if (columnIndex < 1 || columnIndex > alo.size())
-		{
-			throw SQLStates.COLUMN_NOT_FOUND.clone();
-		}
-
-		final Object col = alo.get(columnIndex - 1);
+		final Object col = getColumn(columnIndex);
 
 		if (col == null)
 		{
@@ -390,32 +562,26 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public boolean getBoolean(final String columnLabel) throws SQLException {
-		return getBoolean(cols2Pos.get(columnLabel) + 1);
+		return getBoolean(findColumn(columnLabel));
 	}
 
 	@Override
 	public byte getByte(final int columnIndex) throws SQLException {
 		wasNull = false;
 
-		if (closed)
-		{
-			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
-		}
-
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
+		final int primitiveRow = getPrimitiveRow(columnIndex);
+		if (primitiveRow >= 0)
 		{
-			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
-		}
-
-		final ArrayList<Object> alo = (ArrayList<Object>) row;
+			if (block.isNull(primitiveRow, columnIndex - 1))
+			{
+				wasNull = true;
+				return 0;
+			}
 
-		if (columnIndex < 1 || columnIndex > alo.size())
-		{
-			throw SQLStates.COLUMN_NOT_FOUND.clone();
+			return (byte) block.getInt(primitiveRow, columnIndex - 1);
 		}
 
-		final Object col = alo.get(columnIndex - 1);
+		final Object col = getColumn(columnIndex);
 
 		if (col == null)
 		{
@@ -435,32 +601,14 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public byte getByte(final String columnLabel) throws SQLException {
-		return getByte(cols2Pos.get(columnLabel) + 1);
+		return getByte(findColumn(columnLabel));
 	}
 
 	@Override
 	public byte[] getBytes(final int columnIndex) throws SQLException {
 		wasNull = false;
 
-		if (closed)
-		{
-			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
-		}
-
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
-		{
-			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
-		}
-
-		final ArrayList<Object> alo = (ArrayList<Object>) row;
-
-		if (columnIndex < 1 || columnIndex > alo.size())
-		{
-			throw SQLStates.COLUMN_NOT_FOUND.clone();
-		}
-
-		final Object col = alo.get(columnIndex - 1);
+		final Object col = getColumn(columnIndex);
 
 		if (col == null)
 		{
@@ -478,7 +626,7 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public byte[] getBytes(final String columnLabel) throws SQLException {
-		return getBytes(cols2Pos.get(columnLabel) + 1);
+		return getBytes(findColumn(columnLabel));
 	}
 
 	@Override
@@ -520,38 +668,76 @@ public class XGResultSet implements ResultSet
 	public Date getDate(final int columnIndex) throws SQLException {
 		wasNull = false;
 
-		if (closed)
+		final int epochRow = getEpochRow(columnIndex);
+		if (epochRow >= 0)
 		{
-			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
+			if (block.isNull(epochRow, columnIndex - 1))
+			{
+				wasNull = true;
+				return null;
+			}
+
+			if (!(colTypes[columnIndex - 1] == 6 || colTypes[columnIndex - 1] == 19))
+			{
+				throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
+			}
+
+			return new Date(block.getLong(epochRow, columnIndex - 1));
 		}
 
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
+		final Object col = getColumn(columnIndex);
+
+		if (col == null)
 		{
-			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
+			wasNull = true;
+			return null;
 		}
 
-		final ArrayList<Object> alo = (ArrayList<Object>) row;
+		if (!(col instanceof Date))
+		{
+			throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
+		}
 
-		if (columnIndex < 1 || columnIndex > alo.size())
+		return (Date) col;
+	}
+
+	/*
+	 * Returns the value of a TIMESTAMP, DATE or TIME column as milliseconds since the epoch (for TIME,
+	 * since midnight) without creating any objects when lazyDecode is on. Returns 0 for null.
+	 */
+	public long getEpochMillis(final int columnIndex) throws SQLException {
+		wasNull = false;
+
+		final int epochRow = getEpochRow(columnIndex);
+		if (epochRow >= 0)
 		{
-			throw SQLStates.COLUMN_NOT_FOUND.clone();
+			if (block.isNull(epochRow, columnIndex - 1))
+			{
+				wasNull = true;
+				return 0;
+			}
+
+			return block.getLong(epochRow, columnIndex - 1);
 		}
 
-		final Object col = alo.get(columnIndex - 1);
+		final Object col = getColumn(columnIndex);
 
 		if (col == null)
 		{
 			wasNull = true;
-			return null;
+			return 0;
 		}
 
-		if (!(col instanceof Date))
+		if (!(col instanceof java.util.Date))
 		{
 			throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
 		}
 
-		return (Date) col;
+		return ((java.util.Date) col).getTime();
+	}
+
+	public long getEpochMillis(final String columnLabel) throws SQLException {
+		return getEpochMillis(findColumn(columnLabel));
 	}
 
 	@Override
@@ -561,7 +747,7 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public Date getDate(final String columnLabel) throws SQLException {
-		return getDate(cols2Pos.get(columnLabel) + 1);
+		return getDate(findColumn(columnLabel));
 	}
 
 	@Override
@@ -573,25 +759,27 @@ public class XGResultSet implements ResultSet
 	public double getDouble(final int columnIndex) throws SQLException {
 		wasNull = false;
 
-		if (closed)
+		final int decimalRow = getSmallDecimalRow(columnIndex);
+		if (decimalRow >= 0)
 		{
-			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
+			final ByteBuffer bb = block.buffer(decimalRow);
+			final int offset = block.offset(decimalRow, columnIndex - 1) + 1;
+			return decimalToDouble(getUnscaledLong(bb, offset), bb.get(offset + 1));
 		}
 
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
+		final int primitiveRow = getPrimitiveRow(columnIndex);
+		if (primitiveRow >= 0)
 		{
-			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
-		}
-
-		final ArrayList<Object> alo = (ArrayList<Object>) row;
+			if (block.isNull(primitiveRow, columnIndex - 1))
+			{
+				wasNull = true;
+				return 0;
+			}
 
-		if (columnIndex < 1 || columnIndex > alo.size())
-		{
-			throw SQLStates.COLUMN_NOT_FOUND.clone();
+			return block.getDouble(primitiveRow, columnIndex - 1);
 		}
 
-		final Object col = alo.get(columnIndex - 1);
+		final Object col = getColumn(columnIndex);
 
 		if (col == null)
 		{
@@ -610,7 +798,7 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public double getDouble(final String columnLabel) throws SQLException {
-		return getDouble(cols2Pos.get(columnLabel) + 1);
+		return getDouble(findColumn(columnLabel));
 	}
 
 	public ArrayList<Object> getEntireRow() throws SQLException {
@@ -619,6 +807,24 @@ public class XGResultSet implements ResultSet
 			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
 		}
 
+		if (block != null)
+		{
+			final int index = (int) (position - firstRowIs);
+			if (index < 0 || index >= block.size() || block.isDataEnd(index))
+			{
+				throw SQLStates.CURSOR_NOT_ON_ROW.clone();
+			}
+
+			final int numCols = block.numColumns(index);
+			final ArrayList<Object> alo = new ArrayList<>(numCols);
+			for (int i = 1; i <= numCols; i++)
+			{
+				alo.add(getColumn(i));
+			}
+
+			return alo;
+		}
+
 		final Object row = rs.get((int) (position - firstRowIs));
 		if (row instanceof DataEndMarker)
 		{
@@ -652,25 +858,19 @@ public class XGResultSet implements ResultSet
 	public float getFloat(final int columnIndex) throws SQLException {
 		wasNull = false;
 
-		if (closed)
-		{
-			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
-		}
-
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
+		final int primitiveRow = getPrimitiveRow(columnIndex);
+		if (primitiveRow >= 0)
 		{
-			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
-		}
-
-		final ArrayList<Object> alo = (ArrayList<Object>) row;
+			if (block.isNull(primitiveRow, columnIndex - 1))
+			{
+				wasNull = true;
+				return 0;
+			}
 
-		if (columnIndex < 1 || columnIndex > alo.size())
-		{
-			throw SQLStates.COLUMN_NOT_FOUND.clone();
+			return (float) block.getDouble(primitiveRow, columnIndex - 1);
 		}
 
-		final Object col = alo.get(columnIndex - 1);
+		final Object col = getColumn(columnIndex);
 
 		if (col == null)
 		{
@@ -690,7 +890,7 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public float getFloat(final String columnLabel) throws SQLException {
-		return getFloat(cols2Pos.get(columnLabel) + 1);
+		return getFloat(findColumn(columnLabel));
 	}
 
 	@Override
@@ -707,25 +907,19 @@ public class XGResultSet implements ResultSet
 	public int getInt(final int columnIndex) throws SQLException {
 		wasNull = false;
 
-		if (closed)
+		final int primitiveRow = getPrimitiveRow(columnIndex);
+		if (primitiveRow >= 0)
 		{
-			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
-		}
-
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
-		{
-			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
-		}
-
-		final ArrayList<Object> alo = (ArrayList<Object>) row;
+			if (block.isNull(primitiveRow, columnIndex - 1))
+			{
+				wasNull = true;
+				return 0;
+			}
 
-		if (columnIndex < 1 || columnIndex > alo.size())
-		{
-			throw SQLStates.COLUMN_NOT_FOUND.clone();
+			return block.getInt(primitiveRow, columnIndex - 1);
 		}
 
-		final Object col = alo.get(columnIndex - 1);
+		final Object col = getColumn(columnIndex);
 
 		if (col == null)
 		{
@@ -744,10 +938,11 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public int getInt(final String columnLabel) throws SQLException {
-		return getInt(cols2Pos.get(columnLabel) + 1);
+		return getInt(findColumn(columnLabel));
 	}
 
 	private int getLength() throws Exception {
+		final InputStream in = stmt.in();
 		final byte[] inMsg = new byte[4];
 
 		int count = 0;
@@ -755,7 +950,7 @@ public class XGResultSet implements ResultSet
 		{
 			try
 			{
-				final int temp = conn.in.read(inMsg, count, 4 - count);
+				final int temp = in.read(inMsg, count, 4 - count);
 				if (temp == -1)
 				{
 					throw SQLStates.UNEXPECTED_EOF.clone();
@@ -776,25 +971,27 @@ public class XGResultSet implements ResultSet
 	public long getLong(final int columnIndex) throws SQLException {
 		wasNull = false;
 
-		if (closed)
+		final int decimalRow = getSmallDecimalRow(columnIndex);
+		if (decimalRow >= 0)
 		{
-			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
+			final ByteBuffer bb = block.buffer(decimalRow);
+			final int offset = block.offset(decimalRow, columnIndex - 1) + 1;
+			return decimalToLong(getUnscaledLong(bb, offset), bb.get(offset + 1));
 		}
 
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
+		final int primitiveRow = getPrimitiveRow(columnIndex);
+		if (primitiveRow >= 0)
 		{
-			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
-		}
-
-		final ArrayList<Object> alo = (ArrayList<Object>) row;
+			if (block.isNull(primitiveRow, columnIndex - 1))
+			{
+				wasNull = true;
+				return 0;
+			}
 
-		if (columnIndex < 1 || columnIndex > alo.size())
-		{
-			throw SQLStates.COLUMN_NOT_FOUND.clone();
+			return block.getLong(primitiveRow, columnIndex - 1);
 		}
 
-		final Object col = alo.get(columnIndex - 1);
+		final Object col = getColumn(columnIndex);
 
 		if (col == null)
 		{
@@ -814,7 +1011,7 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public long getLong(final String columnLabel) throws SQLException {
-		return getLong(cols2Pos.get(columnLabel) + 1);
+		return getLong(findColumn(columnLabel));
 	}
 
 	@Override
@@ -853,37 +1050,130 @@ public class XGResultSet implements ResultSet
 			return false;
 		}
 
+		if (store != null)
+		{
+			return loadEntry(firstRowIs + blockSize());
+		}
+
+		if (prefetchBlocks > 0)
+		{
+			if (prefetcher == null)
+			{
+				startPrefetch();
+			}
+
+			return installBlock(prefetcher.take());
+		}
+
+		return installBlock(fetchAndDecode());
+	}
+
+	private DecodedBlock fetchAndDecode() throws SQLException {
+		final DecodedBlock decoded = new DecodedBlock();
+		final ClientWireProtocol.ResultSet re = fetchData(decoded);
+		if (decoded.response.getType() != ResponseType.RESPONSE_ERROR)
+		{
+			decodeBlock(re, decoded);
+		}
+
+		return decoded;
+	}
+
+	/*
+	 * Reads the response to the FetchData sent by requestMetaData() off the socket, if it's still
+	 * there, and holds on to it for the first fetchData(). The connection calls this before sending
+	 * requests of its own so it doesn't read our response as theirs.
+	 */
+	void takePendingFetch() throws Exception {
+		if (pendingData != null || pendingFetch != stmt.in())
+		{
+			return;
+		}
+
+		final int[] length = new int[1];
+		pendingData = readResponse(length);
+		pendingLength = length[0];
+	}
+
+	/*
+	 * Writes a FetchData request with the current fetch size
+	 */
+	private void sendFetchData(final boolean flush) throws IOException {
+		final FetchSizer sizer = this.sizer;
+		final ClientWireProtocol.FetchData.Builder builder = ClientWireProtocol.FetchData.newBuilder();
+		builder.setFetchSize(sizer != null ? sizer.nextFetchSize() : fetchSize);
+		final FetchData msg = builder.build();
+		final ClientWireProtocol.Request.Builder b2 = ClientWireProtocol.Request.newBuilder();
+		b2.setType(ClientWireProtocol.Request.RequestType.FETCH_DATA);
+		b2.setFetchData(msg);
+		final Request wrapper = b2.build();
+		conn.send(wrapper, stmt.streamId(), flush);
+	}
+
+	/*
+	 * Sends a FetchData request and waits for the response. The response and the pooled buffer the
+	 * blobs point into are stored in decoded, the response type is left for the caller to process.
+	 */
+	private ClientWireProtocol.ResultSet fetchData(final DecodedBlock decoded) throws SQLException {
 		final Optional<String> queryId = getQueryId();
 		stmt.passUpCancel(false);
 		stmt.setRunningQueryThread(Thread.currentThread());
 		try {
-			// send FetchData request with fetchSize parameter
-			final ClientWireProtocol.FetchData.Builder builder = ClientWireProtocol.FetchData.newBuilder();
-			builder.setFetchSize(fetchSize);
-			final FetchData msg = builder.build();
-			final ClientWireProtocol.Request.Builder b2 = ClientWireProtocol.Request.newBuilder();
-			b2.setType(ClientWireProtocol.Request.RequestType.FETCH_DATA);
-			b2.setFetchData(msg);
-			final Request wrapper = b2.build();
-			conn.out.write(intToBytes(wrapper.getSerializedSize()));
-			wrapper.writeTo(conn.out);
-			conn.out.flush();
+			final FetchSizer sizer = this.sizer;
+			final long start;
+			final byte[] early = pendingData;
+			final int earlyLength = pendingLength;
+			if (early != null || pendingFetch == stmt.in())
+			{
+				// already sent by requestMetaData(), unless we've reconnected since
+				start = pendingFetchStart;
+			}
+			else
+			{
+				start = System.nanoTime();
+				sendFetchData(true);
+			}
+			pendingFetch = null;
+			pendingData = null;
 
 			// Kind of ugly, but doesn't violate JMM (startTask() is synchronous)
 			final ClientWireProtocol.FetchDataResponse.Builder fdr = ClientWireProtocol.FetchDataResponse.newBuilder();
 
 			stmt.startTask(() -> {
 				// get confirmation and data (fetchSize rows or zero size result set or terminated early with a DataEndMarker)
-				final int length = getLength();
-				final byte[] data = new byte[length];
-				readBytes(data);
-				fdr.mergeFrom(data);
-            }, queryId, getTimeoutMillis());
+				// the blobs are aliased rather than copied, so they stay valid only as long as the buffer
+				final int[] read = { earlyLength };
+				final byte[] data = early != null ? early : readResponse(read);
+				final int length = read[0];
+				try
+				{
+					// protobuf only aliases buffers it's been told are immutable, hence the unsafeWrap()
+					final CodedInputStream input = UnsafeByteOperations.unsafeWrap(data, 0, length).newCodedInput();
+					input.enableAliasing(true);
+					fdr.mergeFrom(input);
+				}
+				catch (final Exception e)
+				{
+					// nothing points into it yet
+					conn.bufferPool.release(data);
+					throw e;
+				}
+				decoded.buffer = data;
+				if (sizer != null)
+				{
+					sizer.observe(countRows(fdr.getResultSet()), length, System.nanoTime() - start);
+				}
+			}, queryId, getTimeoutMillis());
 
-			final ConfirmationResponse response = fdr.getResponse();
-			final ResponseType rType = response.getType();
-			processResponseType(rType, response);
-			return mergeData(fdr.getResultSet());
+			decoded.response = fdr.getResponse();
+			final ClientWireProtocol.ResultSet re = fdr.getResultSet();
+			if (recorder != null && decoded.response.getType() != ResponseType.RESPONSE_ERROR
+					&& !recorder.add(re, hasDataEnd(re)))
+			{
+				recorder = null;
+			}
+
+			return re;
 		}
 		catch (final Exception e)
 		{
@@ -935,25 +1225,7 @@ public class XGResultSet implements ResultSet
 	public Object getObject(final int columnIndex) throws SQLException {
 		wasNull = false;
 
-		if (closed)
-		{
-			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
-		}
-
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
-		{
-			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
-		}
-
-		final ArrayList<Object> alo = (ArrayList<Object>) row;
-
-		if (columnIndex < 1 || columnIndex > alo.size())
-		{
-			throw SQLStates.COLUMN_NOT_FOUND.clone();
-		}
-
-		final Object col = alo.get(columnIndex - 1);
+		final Object col = getColumn(columnIndex);
 		if (col == null)
 		{
 			wasNull = true;
@@ -993,25 +1265,18 @@ public class XGResultSet implements ResultSet
 			throw new SQLException();
 		}
 
-		if (closed)
-		{
-			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
-		}
-
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
+		if (clazz == Instant.class || clazz == LocalDateTime.class || clazz == LocalDate.class || clazz == LocalTime.class)
 		{
-			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
-		}
-
-		final ArrayList<Object> alo = (ArrayList<Object>) row;
+			final long millis = getEpochMillis(columnIndex);
+			if (wasNull)
+			{
+				return null;
+			}
 
-		if (columnIndex < 1 || columnIndex > alo.size())
-		{
-			throw SQLStates.COLUMN_NOT_FOUND.clone();
+			return clazz.cast(epochMillisTo(millis, clazz));
 		}
 
-		final Object col = alo.get(columnIndex - 1);
+		final Object col = getColumn(columnIndex);
 		if (col == null)
 		{
 			wasNull = true;
@@ -1034,29 +1299,33 @@ public class XGResultSet implements ResultSet
 		}
 	}
 
-	@Override
-	public Object getObject(final int columnIndex, final Map<String, Class<?>> map) throws SQLException {
-		wasNull = false;
-
-		if (closed)
+	/*
+	 * Converts epoch milliseconds to the given java.time class. The server's values are UTC, so that's
+	 * the zone we use for the local types.
+	 */
+	private static Object epochMillisTo(final long millis, final Class<?> clazz) {
+		if (clazz == Instant.class)
 		{
-			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
+			return Instant.ofEpochMilli(millis);
 		}
-
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
+		else if (clazz == LocalDate.class)
 		{
-			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
+			return LocalDate.ofEpochDay(Math.floorDiv(millis, MILLIS_PER_DAY));
 		}
-
-		final ArrayList<Object> alo = (ArrayList<Object>) row;
-
-		if (columnIndex < 1 || columnIndex > alo.size())
+		else if (clazz == LocalTime.class)
 		{
-			throw SQLStates.COLUMN_NOT_FOUND.clone();
+			return LocalTime.ofNanoOfDay(Math.floorMod(millis, MILLIS_PER_DAY) * 1000000L);
 		}
 
-		final Object col = alo.get(columnIndex - 1);
+		return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000L), (int) Math.floorMod(millis, 1000L) * 1000000,
+				ZoneOffset.UTC);
+	}
+
+	@Override
+	public Object getObject(final int columnIndex, final Map<String, Class<?>> map) throws SQLException {
+		wasNull = false;
+
+		final Object col = getColumn(columnIndex);
 		if (col == null)
 		{
 			wasNull = true;
@@ -1089,17 +1358,17 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public Object getObject(final String columnLabel) throws SQLException {
-		return getObject(cols2Pos.get(columnLabel) + 1);
+		return getObject(findColumn(columnLabel));
 	}
 
 	@Override
 	public <T> T getObject(final String columnLabel, final Class<T> type) throws SQLException {
-		return getObject(cols2Pos.get(columnLabel) + 1, type);
+		return getObject(findColumn(columnLabel), type);
 	}
 
 	@Override
 	public Object getObject(final String columnLabel, final Map<String, Class<?>> map) throws SQLException {
-		return getObject(cols2Pos.get(columnLabel) + 1, map);
+		return getObject(findColumn(columnLabel), map);
 	}
 
 	@Override
@@ -1124,8 +1393,7 @@ public class XGResultSet implements ResultSet
 			return 0;
 		}
 
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
+		if (isDataEnd((int) (position - firstRowIs)))
 		{
 			return 0;
 		}
@@ -1147,25 +1415,19 @@ public class XGResultSet implements ResultSet
 	public short getShort(final int columnIndex) throws SQLException {
 		wasNull = false;
 
-		if (closed)
-		{
-			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
-		}
-
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
+		final int primitiveRow = getPrimitiveRow(columnIndex);
+		if (primitiveRow >= 0)
 		{
-			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
-		}
-
-		final ArrayList<Object> alo = (ArrayList<Object>) row;
+			if (block.isNull(primitiveRow, columnIndex - 1))
+			{
+				wasNull = true;
+				return 0;
+			}
 
-		if (columnIndex < 1 || columnIndex > alo.size())
-		{
-			throw SQLStates.COLUMN_NOT_FOUND.clone();
+			return (short) block.getInt(primitiveRow, columnIndex - 1);
 		}
 
-		final Object col = alo.get(columnIndex - 1);
+		final Object col = getColumn(columnIndex);
 
 		if (col == null)
 		{
@@ -1185,7 +1447,7 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public short getShort(final String columnLabel) throws SQLException {
-		return getShort(cols2Pos.get(columnLabel) + 1);
+		return getShort(findColumn(columnLabel));
 	}
 
 	@Override
@@ -1199,11 +1461,17 @@ public class XGResultSet implements ResultSet
 	}
 
 	private void getStandardResponse() throws Exception {
-		final int length = getLength();
-		final byte[] data = new byte[length];
-		readBytes(data);
+		final int[] length = new int[1];
+		final byte[] data = readResponse(length);
 		final ConfirmationResponse.Builder rBuild = ConfirmationResponse.newBuilder();
-		rBuild.mergeFrom(data);
+		try
+		{
+			rBuild.mergeFrom(CodedInputStream.newInstance(data, 0, length[0]));
+		}
+		finally
+		{
+			conn.bufferPool.release(data);
+		}
 		final ResponseType rType = rBuild.getType();
 		processResponseType(rType, rBuild.build());
 	}
@@ -1222,68 +1490,87 @@ public class XGResultSet implements ResultSet
 	public String getString(final int columnIndex) throws SQLException {
 		wasNull = false;
 
-		if (closed)
+		Object col = getColumn(columnIndex);
+
+		if (col == null)
 		{
-			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
+			wasNull = true;
+			return null;
 		}
 
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
+		if (!(col instanceof String))
 		{
-			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
+			col = col.toString();
 		}
 
-		final ArrayList<Object> alo = (ArrayList<Object>) row;
+		return (String) col;
+	}
 
-		if (columnIndex < 1 || columnIndex > alo.size())
+	/*
+	 * Like getString(), but when lazyDecode is on a STRING value comes back as a view over the bytes
+	 * in the fetched block instead of a new String. The view is only valid until the cursor moves, so
+	 * call toString() on it to keep the value around.
+	 */
+	public CharSequence getCharSequence(final int columnIndex) throws SQLException {
+		if (block == null)
 		{
-			throw SQLStates.COLUMN_NOT_FOUND.clone();
+			return getString(columnIndex);
 		}
 
-		Object col = alo.get(columnIndex - 1);
+		wasNull = false;
+		if (closed)
+		{
+			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
+		}
 
-		if (col == null)
+		final int index = getBlockRow(columnIndex);
+		final ByteBuffer bb = block.buffer(index);
+		final int offset = block.offset(index, columnIndex - 1);
+		final byte type = bb.get(offset);
+		if (type == 7) //Null
 		{
 			wasNull = true;
 			return null;
 		}
-
-		if (!(col instanceof String))
+		else if (type == 5) //STRING
 		{
-			col = col.toString();
+			return new StringDecoder.View(bb, offset + 5, bb.getInt(offset + 1));
 		}
 
-		return (String) col;
+		return getString(columnIndex);
+	}
+
+	public CharSequence getCharSequence(final String columnLabel) throws SQLException {
+		return getCharSequence(findColumn(columnLabel));
 	}
 
 	@Override
 	public String getString(final String columnLabel) throws SQLException {
-		return getString(cols2Pos.get(columnLabel) + 1);
+		return getString(findColumn(columnLabel));
 	}
 
 	@Override
 	public Time getTime(final int columnIndex) throws SQLException {
 		wasNull = false;
 
-		if (closed)
-		{
-			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
-		}
-
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
+		final int epochRow = getEpochRow(columnIndex);
+		if (epochRow >= 0)
 		{
-			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
-		}
+			if (block.isNull(epochRow, columnIndex - 1))
+			{
+				wasNull = true;
+				return null;
+			}
 
-		final ArrayList<Object> alo = (ArrayList<Object>) row;
+			if (!(colTypes[columnIndex - 1] == 12))
+			{
+				throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
+			}
 
-		if (columnIndex < 1 || columnIndex > alo.size())
-		{
-			throw SQLStates.COLUMN_NOT_FOUND.clone();
+			return new Time(block.getLong(epochRow, columnIndex - 1));
 		}
 
-		final Object col = alo.get(columnIndex - 1);
+		final Object col = getColumn(columnIndex);
 
 		if (col == null)
 		{
@@ -1306,7 +1593,7 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public Time getTime(final String columnLabel) throws SQLException {
-        return getTime(cols2Pos.get(columnLabel) + 1);
+        return getTime(findColumn(columnLabel));
 	}
 
 	@Override
@@ -1318,25 +1605,24 @@ public class XGResultSet implements ResultSet
 	public Timestamp getTimestamp(final int columnIndex) throws SQLException {
 		wasNull = false;
 
-		if (closed)
-		{
-			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
-		}
-
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
+		final int epochRow = getEpochRow(columnIndex);
+		if (epochRow >= 0)
 		{
-			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
-		}
+			if (block.isNull(epochRow, columnIndex - 1))
+			{
+				wasNull = true;
+				return null;
+			}
 
-		final ArrayList<Object> alo = (ArrayList<Object>) row;
+			if (!(colTypes[columnIndex - 1] == 6 || colTypes[columnIndex - 1] == 19))
+			{
+				throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
+			}
 
-		if (columnIndex < 1 || columnIndex > alo.size())
-		{
-			throw SQLStates.COLUMN_NOT_FOUND.clone();
+			return new Timestamp(block.getLong(epochRow, columnIndex - 1));
 		}
 
-		final Object col = alo.get(columnIndex - 1);
+		final Object col = getColumn(columnIndex);
 
 		if (col == null)
 		{
@@ -1359,7 +1645,7 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public Timestamp getTimestamp(final String columnLabel) throws SQLException {
-		return getTimestamp(cols2Pos.get(columnLabel) + 1);
+		return getTimestamp(findColumn(columnLabel));
 	}
 
 	@Override
@@ -1374,7 +1660,7 @@ public class XGResultSet implements ResultSet
 			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
 		}
 
-		return ResultSet.TYPE_FORWARD_ONLY;
+		return store != null ? ResultSet.TYPE_SCROLL_INSENSITIVE : ResultSet.TYPE_FORWARD_ONLY;
 	}
 
 	@Override
@@ -1434,18 +1720,17 @@ public class XGResultSet implements ResultSet
 			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
 		}
 
-		if (position == -1 && rs.size() == 0)
+		if (position == -1 && blockSize() == 0)
 		{
 			while (!getMoreData()) {}
 		}
 
-		final Object row = rs.get(rs.size() - 1);
-		if (!(row instanceof DataEndMarker))
+		if (!isDataEnd(blockSize() - 1))
 		{
 			return false;
 		}
 
-		if (position < firstRowIs + rs.size() - 1)
+		if (position < firstRowIs + blockSize() - 1)
 		{
 			return false;
 		}
@@ -1470,13 +1755,19 @@ public class XGResultSet implements ResultSet
 			return false;
 		}
 
-		if (rs.size() == 0)
+		if (store != null)
+		{
+			// the current block could be any of them, so ask the store whether there are any rows
+			fetchThrough(0);
+			return store.numEntries() > 1 || !store.isComplete();
+		}
+
+		if (blockSize() == 0)
 		{
 			while (!getMoreData()) {}
 		}
 
-		final Object row = rs.get(0);
-		if (row instanceof DataEndMarker)
+		if (isDataEnd(0))
 		{
 			return false;
 		}
@@ -1501,13 +1792,12 @@ public class XGResultSet implements ResultSet
 			return false;
 		}
 
-		if (rs.size() == 0)
+		if (blockSize() == 0)
 		{
 			while (!getMoreData()) {}
 		}
 
-		final Object row = rs.get(0);
-		if (row instanceof DataEndMarker)
+		if (isDataEnd(0))
 		{
 			return false;
 		}
@@ -1517,7 +1807,24 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public boolean isLast() throws SQLException {
-		throw new SQLFeatureNotSupportedException();
+		if (store == null)
+		{
+			throw new SQLFeatureNotSupportedException();
+		}
+
+		if (closed)
+		{
+			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
+		}
+
+		if (position < 0 || isDataEnd((int) (position - firstRowIs)))
+		{
+			return false;
+		}
+
+		// the next entry has to be the end of data marker
+		fetchThrough(position + 1);
+		return store.isComplete() && position + 1 == store.numEntries() - 1;
 	}
 
 	@Override
@@ -1527,7 +1834,12 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public boolean last() throws SQLException {
-		throw new SQLFeatureNotSupportedException();
+		if (store == null)
+		{
+			throw new SQLFeatureNotSupportedException();
+		}
+
+		return moveTo(numRows() - 1);
 	}
 
 	private boolean isBufferDem(ByteBuffer bb)
@@ -1535,7 +1847,30 @@ public class XGResultSet implements ResultSet
 		return bb.limit() > 8 && bb.get(8) == 0;
 	}
 
-	private int bcdLength(int precision) {
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	// decimals with at most this many digits fit in a long
+	private static final int MAX_LONG_DECIMAL_PRECISION = 18;
+	private static final BigInteger TEN_TO_THE_18 = BigInteger.valueOf(1000000000000000000L);
+	private static final long[] LONG_POWERS_OF_TEN = new long[MAX_LONG_DECIMAL_PRECISION + 1];
+	// 10^22 is the largest power of ten that's exact as a double
+	private static final double[] DOUBLE_POWERS_OF_TEN = new double[23];
+	static
+	{
+		LONG_POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < LONG_POWERS_OF_TEN.length; i++)
+		{
+			LONG_POWERS_OF_TEN[i] = LONG_POWERS_OF_TEN[i - 1] * 10;
+		}
+
+		DOUBLE_POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < DOUBLE_POWERS_OF_TEN.length; i++)
+		{
+			DOUBLE_POWERS_OF_TEN[i] = DOUBLE_POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	static int bcdLength(int precision) {
 		// translated from C++
 		int bytesNeeded = (precision + 1) / 2;
 		if ((precision % 2) == 0) {
@@ -1544,455 +1879,1352 @@ public class XGResultSet implements ResultSet
 		return bytesNeeded;
 	}
 
-	private BigDecimal getDecimalFromBuffer(final ByteBuffer bb, int offset) {
-		// translated from C++
-
-		// read off parameters
-		int precision = bb.get(offset);
-		offset += 1;
-		int scale = bb.get(offset);
-		offset += 1;
-
-		// read raw data
-		int bytesNeeded = bcdLength(precision);
-		byte[] rawPackedBcdData = new byte[bytesNeeded];
-		((Buffer)bb).position(offset);
-		bb.get(rawPackedBcdData);
-
-		// translate BCD -> character array of numerals
-		// leave room for the sign character, but don't bother dealing with scale and decimal point here
-		char[] formedDecimalString = new char[precision + 1];
-
-		// sign character
-		boolean isPositive = ((rawPackedBcdData[bytesNeeded-1] & 0x0f) == 0x0c);
-		formedDecimalString[0] = isPositive ? '+' : '-';
-
-		// set up starting indices for reading digits out
-		int theByte = 0;
-		boolean highOrder = (precision % 2) == 1; // first high-order nibble might be filler
-
-		// read digits from nibbles
-		for (int i = 0; i < precision; i++) {
-			char digit = '0';
-			int byteVal = (rawPackedBcdData[theByte] & 0xFF);
-			if (highOrder) {
-				digit += (byteVal >> 4);
-			} else {
-				digit += (byteVal & 0x0f);
-			}
-			formedDecimalString[1 + i] = digit;
-
-			// increment reading indices
-			if (highOrder) {
+	static BigDecimal getDecimalFromBuffer(final ByteBuffer bb, final int offset) {
+		final int precision = bb.get(offset);
+		final int scale = bb.get(offset + 1);
+		final BigDecimal retval;
+		if (precision <= MAX_LONG_DECIMAL_PRECISION)
+		{
+			retval = BigDecimal.valueOf(getUnscaledLong(bb, offset), scale);
+		}
+		else
+		{
+			retval = new BigDecimal(getUnscaledBigInteger(bb, offset), scale);
+		}
+
+		// we used to build these with movePointLeft(), which never leaves a negative scale
+		return scale < 0 ? retval.setScale(0) : retval;
+	}
+
+	/*
+	 * Reads the digits of a packed BCD decimal whose precision byte is at offset. Only valid for
+	 * precision <= MAX_LONG_DECIMAL_PRECISION.
+	 */
+	private static long getUnscaledLong(final ByteBuffer bb, final int offset) {
+		final int precision = bb.get(offset);
+		int pos = offset + 2;
+		// if there's an even number of digits, the first high-order nibble is filler
+		boolean highOrder = (precision % 2) == 1;
+		long retval = 0;
+		for (int i = 0; i < precision; i++)
+		{
+			final int byteVal = bb.get(pos) & 0xff;
+			if (highOrder)
+			{
+				retval = retval * 10 + (byteVal >> 4);
 				highOrder = false;
-			} else {
-				theByte++;
+			}
+			else
+			{
+				retval = retval * 10 + (byteVal & 0x0f);
+				pos++;
 				highOrder = true;
 			}
 		}
 
-		// set scale now, right at the end
-		return ((new BigDecimal(formedDecimalString)).movePointLeft(scale));
-	}
-	
-	private XGArray getArrayFromBuffer(final ByteBuffer bb, int[] offset) throws SQLException
-	{
-		//Get the rest of the type info
-		int nestedLevel = 0;
-		byte type = 0;
+		return isDecimalPositive(bb, offset) ? retval : -retval;
+	}
+
+	/*
+	 * Same as getUnscaledLong() for any precision. Digits are gathered into longs 18 at a time so
+	 * there's only one BigInteger operation per 18 digits.
+	 */
+	private static BigInteger getUnscaledBigInteger(final ByteBuffer bb, final int offset) {
+		final int precision = bb.get(offset);
+		int pos = offset + 2;
+		boolean highOrder = (precision % 2) == 1;
+		BigInteger retval = BigInteger.ZERO;
+		long chunk = 0;
+		int chunkDigits = 0;
+		for (int i = 0; i < precision; i++)
+		{
+			final int byteVal = bb.get(pos) & 0xff;
+			if (highOrder)
+			{
+				chunk = chunk * 10 + (byteVal >> 4);
+				highOrder = false;
+			}
+			else
+			{
+				chunk = chunk * 10 + (byteVal & 0x0f);
+				pos++;
+				highOrder = true;
+			}
+
+			if (++chunkDigits == MAX_LONG_DECIMAL_PRECISION)
+			{
+				retval = retval.multiply(TEN_TO_THE_18).add(BigInteger.valueOf(chunk));
+				chunk = 0;
+				chunkDigits = 0;
+			}
+		}
+
+		if (chunkDigits > 0)
+		{
+			retval = retval.multiply(BigInteger.TEN.pow(chunkDigits)).add(BigInteger.valueOf(chunk));
+		}
+
+		return isDecimalPositive(bb, offset) ? retval : retval.negate();
+	}
+
+	private static boolean isDecimalPositive(final ByteBuffer bb, final int offset) {
+		// the sign is the low-order nibble of the last byte
+		return (bb.get(offset + 1 + bcdLength(bb.get(offset))) & 0x0f) == 0x0c;
+	}
+
+	/*
+	 * Same as BigDecimal.valueOf(unscaled, scale).longValue()
+	 */
+	private static long decimalToLong(final long unscaled, final int scale) {
+		if (scale <= 0)
+		{
+			// BigDecimal.longValue() keeps the low-order 64 bits, so wrapping is what we want
+			long retval = unscaled;
+			for (int i = 0; i < -scale; i++)
+			{
+				retval *= 10;
+			}
+
+			return retval;
+		}
+
+		if (scale > MAX_LONG_DECIMAL_PRECISION)
+		{
+			return 0;
+		}
+
+		return unscaled / LONG_POWERS_OF_TEN[scale];
+	}
+
+	/*
+	 * Same as BigDecimal.valueOf(unscaled, scale).doubleValue()
+	 */
+	private static double decimalToDouble(final long unscaled, final int scale) {
+		// both operands are exact doubles, so a single division is correctly rounded
+		if (scale >= 0 && scale < DOUBLE_POWERS_OF_TEN.length && Math.abs(unscaled) < (1L << 53))
+		{
+			return unscaled / DOUBLE_POWERS_OF_TEN[scale];
+		}
+
+		return BigDecimal.valueOf(unscaled, scale).doubleValue();
+	}
+
+	/*
+	 * If the given (1-based) column of the current row is a DECIMAL in a lazily decoded block small
+	 * enough for getUnscaledLong(), returns the row's index in the block, otherwise -1
+	 */
+	private int getSmallDecimalRow(final int columnIndex) throws SQLException {
+		if (block == null || closed || columnIndex < 1 || columnIndex > colTypes.length || colTypes[columnIndex - 1] != 13)
+		{
+			return -1;
+		}
+
+		final int index = getBlockRow(columnIndex);
+		final ByteBuffer bb = block.buffer(index);
+		final int offset = block.offset(index, columnIndex - 1);
+		if (bb.get(offset) != 13 || bb.get(offset + 1) > MAX_LONG_DECIMAL_PRECISION)
+		{
+			return -1;
+		}
+
+		return index;
+	}
+	
+	/*
+	 * The array's bytes are copied out of the block (whose buffer gets reused) and left undecoded, so
+	 * an array nobody looks at costs one copy. XGArray decodes them the first time they're accessed.
+	 */
+	private XGArray getArrayFromBuffer(final ByteBuffer bb, int[] offset) throws SQLException
+	{
+		//Get the rest of the type info
+		int nestedLevel = 0;
+		byte type = 0;
+
+		do
+		{
+			nestedLevel++;
+			type = bb.get(offset[0]);
+			offset[0]++;
+		} while (type == 14);
+		
+		final int start = offset[0];
+		offset[0] = FetchBlock.skipArray(bb, start, nestedLevel);
+
+		boolean isEntirelyNull = (bb.get(start + 4) != 0);
+		if (isEntirelyNull)
+		{
+			assert(bb.getInt(start) == 0);
+			return null;
+		}
+		
+		final byte[] wire = new byte[offset[0] - start];
+		final ByteBuffer src = bb.duplicate();
+		((Buffer)src).position(start);
+		src.get(wire);
+		return new XGArray(ByteBuffer.wrap(wire), 0, nestedLevel, type, this, conn, stmt);
+	}
+
+	/*
+	 * Decodes the value whose type tag is at offset[0] and moves offset[0] past it. col is the (0-based)
+	 * column the value belongs to, strings uses it for dedup.
+	 */
+	Object decodeValue(final ByteBuffer bb, final int[] offset, final StringDecoder strings, final int col)
+			throws SQLException, java.net.UnknownHostException {
+		//Get type tag
+		byte type = bb.get(offset[0]);
+		offset[0]++;
+		if (type == 1) //INT
+		{
+			final int val = bb.getInt(offset[0]);
+			offset[0] += 4;
+			return val;
+		}
+		else if (type == 2) //LONG
+		{
+			final long val = bb.getLong(offset[0]);
+			offset[0] += 8;
+			return val;
+		}
+		else if (type == 3) //FLOAT
+		{
+			final float val = Float.intBitsToFloat(bb.getInt(offset[0]));
+			offset[0] += 4;
+			return val;
+		}
+		else if (type == 4) //DOUBLE
+		{
+			final double val = Double.longBitsToDouble(bb.getLong(offset[0]));
+			offset[0] += 8;
+			return val;
+		}
+		else if (type == 5) //STRING
+		{
+			int stringLength = bb.getInt(offset[0]);
+			offset[0] += 4;
+			final String val = strings.decode(bb, offset[0], stringLength, col);
+			offset[0] += stringLength;
+			return val;
+		}
+		else if (type == 6) //Timestamp
+		{
+			final Date val = new Date(bb.getLong(offset[0]));
+			offset[0] += 8;
+			return val;
+		}
+		else if (type == 7) //Null
+		{
+			return null;
+		}
+		else if (type == 8) //BOOL
+		{
+			final boolean val = (bb.get(offset[0]) != 0);
+			offset[0]++;
+			return val;
+		}
+		else if (type == 9) //BINARY
+		{
+			int stringLength = bb.getInt(offset[0]);
+			offset[0] += 4;
+			byte[] dst = new byte[stringLength];
+			((Buffer)bb).position(offset[0]);
+			bb.get(dst);
+			offset[0] += stringLength;
+			return dst;
+		}
+		else if (type == 10) //BYTE
+		{
+			final byte val = bb.get(offset[0]);
+			offset[0]++;
+			return val;
+		}
+		else if (type == 11) //SHORT
+		{
+			final short val = bb.getShort(offset[0]);
+			offset[0] += 2;
+			return val;
+		}
+		else if (type == 12) //TIME
+		{
+			final Time val = new Time(bb.getLong(offset[0]));
+			offset[0] += 8;
+			return val;
+		}
+		else if (type == 13) //DECIMAL
+		{
+			int precision = bb.get(offset[0]);
+			final BigDecimal val = getDecimalFromBuffer(bb, offset[0]);
+			offset[0] += (2 + bcdLength(precision));
+			return val;
+		}
+		else if (type == 14) //ARRAY
+		{
+			return getArrayFromBuffer(bb, offset);
+		}
+		else if (type == 15) //UUID
+		{
+			long high = bb.getLong(offset[0]);
+			offset[0] += 8;
+			long low = bb.getLong(offset[0]);
+			offset[0] += 8;
+			return new UUID(high, low);
+		}
+		else if (type == 16) //ST_POINT
+		{
+			double lon = Double.longBitsToDouble(bb.getLong(offset[0]));
+			offset[0] += 8;
+			double lat = Double.longBitsToDouble(bb.getLong(offset[0]));
+			offset[0] += 8;
+			return new StPoint(lon, lat);
+		}
+		else if (type == 17)  //IP
+		{
+			byte[] bytes = new byte[16];
+			((Buffer)bb).position(offset[0]);
+			bb.get(bytes);
+			offset[0] += 16;
+			return InetAddress.getByAddress(bytes);
+		}
+		else if (type == 18) //IPV4
+		{
+			byte[] bytes = new byte[4];
+			((Buffer)bb).position(offset[0]);
+			bb.get(bytes);
+			offset[0] += 4;
+			return InetAddress.getByAddress(bytes);
+		}
+		else if (type == 19) //Date
+		{
+			final Date val = new Date(bb.getLong(offset[0]));
+			offset[0] += 8;
+			return val;
+		}
+		else
+		{
+			throw SQLStates.INVALID_COLUMN_TYPE.clone();
+		}
+	}
+
+	/*
+	 * Returns true if we actually received data, false if there was no data to merge
+	 */
+	private boolean mergeData(final ClientWireProtocol.ResultSet re) throws SQLException {
+		if (store != null)
+		{
+			// next() takes it from the store
+			storeBlock(re);
+			return countRows(re) > 0;
+		}
+
+		final DecodedBlock decoded = new DecodedBlock();
+		decodeBlock(re, decoded);
+		return installBlock(decoded);
+	}
+
+	/*
+	 * Scroll insensitive result sets only: moves the cursor to the given (0-based) row, or to before
+	 * the first row or after the last one if it's out of range. Returns true if it's on a row.
+	 */
+	private boolean moveTo(final long row) throws SQLException {
+		if (closed)
+		{
+			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
+		}
+
+		if (row < 0)
+		{
+			position = -1;
+			return false;
+		}
+
+		long target = row;
+		if (!fetchThrough(target))
+		{
+			// after the last row is where the end of data marker is
+			target = store.numEntries() - 1;
+		}
+
+		loadEntry(target);
+		position = target;
+		return !isDataEnd((int) (position - firstRowIs));
+	}
+
+	/*
+	 * Scroll insensitive result sets only: the number of rows, which means fetching all of them
+	 */
+	private long numRows() throws SQLException {
+		fetchThrough(Long.MAX_VALUE);
+		return store.numEntries() - 1;
+	}
+
+	/*
+	 * Scroll insensitive result sets only: makes the stored block holding the given entry the current
+	 * block, fetching blocks until we have it. Returns false if the result set doesn't go that far.
+	 */
+	private boolean loadEntry(final long entry) throws SQLException {
+		if (!fetchThrough(entry))
+		{
+			return false;
+		}
+
+		final int index = store.find(entry);
+		if (index == storedBlock)
+		{
+			return true;
+		}
+
+		final DecodedBlock decoded = new DecodedBlock();
+		decodeBlock(ClientWireProtocol.ResultSet.newBuilder().addAllBlobs(store.blobs(index)).build(), decoded);
+		installBlock(decoded);
+		storedBlock = index;
+		firstRowIs = store.start(index);
+		return true;
+	}
+
+	/*
+	 * Scroll insensitive result sets only: fetches blocks into the store until it has the given entry
+	 * or the whole result set. Returns true if it has the entry.
+	 */
+	private boolean fetchThrough(final long entry) throws SQLException {
+		while (store.numEntries() <= entry && !store.isComplete())
+		{
+			final DecodedBlock decoded = new DecodedBlock();
+			final ClientWireProtocol.ResultSet re = fetchData(decoded);
+			try
+			{
+				processResponseType(decoded.response.getType(), decoded.response);
+				storeBlock(re);
+			}
+			finally
+			{
+				// the store made its own copy
+				conn.bufferPool.release(decoded.buffer);
+			}
+		}
+
+		return entry < store.numEntries();
+	}
+
+	private void storeBlock(final ClientWireProtocol.ResultSet re) throws SQLException {
+		final boolean dataEnd = hasDataEnd(re);
+		store.add(re.getBlobsList(), countRows(re) + (dataEnd ? 1 : 0), dataEnd);
+	}
+
+	private boolean hasDataEnd(final ClientWireProtocol.ResultSet re) {
+		for (final ByteString buffer : re.getBlobsList())
+		{
+			if (isBufferDem(buffer.asReadOnlyByteBuffer().slice()))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/*
+	 * Makes a decoded block the current one. Returns true if it actually holds data.
+	 */
+	private boolean installBlock(final DecodedBlock decoded) throws SQLException {
+		if (decoded.error != null)
+		{
+			if (decoded.error instanceof SQLException)
+			{
+				throw (SQLException) decoded.error;
+			}
+
+			throw SQLStates.newGenericException(decoded.error);
+		}
+
+		if (decoded.response != null)
+		{
+			processResponseType(decoded.response.getType(), decoded.response);
+		}
+
+		// the old block is done with, so is the buffer it was reading from
+		conn.bufferPool.release(blockBuffer);
+		blockBuffer = decoded.buffer;
+		block = decoded.block;
+		if (block != null)
+		{
+			lazyStrings.reset();
+			this.rs.clear();
+			return block.size() > 0;
+		}
+
+		this.rs = decoded.rows;
+		return rs.size() > 0;
+	}
+
+	/*
+	 * Decodes the rows of one blob, adding them to rows
+	 */
+	private void decodeBlob(final ByteBuffer bb, final RowDecoder decoder, final StringDecoder strings,
+			final ArrayList<Object> rows) throws SQLException {
+		if (isBufferDem(bb))
+		{
+			rows.add(new DataEndMarker());
+			return;
+		}
+
+		try
+		{
+			int numRows = bb.getInt(0);
+			int[] offset = new int[1];
+			offset[0] = 4;
+			final int numCols = decoder.numColumns() > 0 ? decoder.numColumns() : 10;
+			rows.ensureCapacity(rows.size() + numRows);
+			for (int i = 0; i < numRows; i++)
+			{
+				//Process this row
+				final ArrayList<Object> alo = new ArrayList<>(numCols);
+				int rowLength = bb.getInt(offset[0]);
+				int end = offset[0] + rowLength;
+				offset[0] += 4;
+				decoder.decodeRow(bb, offset, end, strings, alo);
+				rows.add(alo);
+			}
+		}
+		catch (final java.net.UnknownHostException e)
+		{
+			throw SQLStates.newGenericException(e);
+		}
+	}
+
+	/*
+	 * Decodes each blob as its own task on pool and puts the rows back together in order. The blobs
+	 * don't depend on each other, the only catch is that each task needs its own StringDecoder, so
+	 * dedupStrings only shares Strings within a blob.
+	 */
+	private ArrayList<Object> decodeBlobsInParallel(final ForkJoinPool pool, final List<ByteString> buffers,
+			final RowDecoder decoder) throws SQLException {
+		final List<ForkJoinTask<ArrayList<Object>>> tasks = new ArrayList<>(buffers.size());
+		for (final ByteString buffer : buffers)
+		{
+			tasks.add(pool.submit(() -> {
+				final ArrayList<Object> rows = new ArrayList<>();
+				decodeBlob(buffer.asReadOnlyByteBuffer().slice(), decoder, new StringDecoder(dedupStrings), rows);
+				return rows;
+			}));
+		}
+
+		final ArrayList<Object> rows = new ArrayList<>();
+		try
+		{
+			for (final ForkJoinTask<ArrayList<Object>> task : tasks)
+			{
+				rows.addAll(task.get());
+			}
+		}
+		catch (final InterruptedException | ExecutionException e)
+		{
+			// Whatever's still running can finish on its own, the buffer it reads from only goes back
+			// to the pool if we succeed
+			for (final ForkJoinTask<ArrayList<Object>> task : tasks)
+			{
+				task.cancel(false);
+			}
+
+			if (e instanceof InterruptedException)
+			{
+				Thread.currentThread().interrupt();
+			}
+			else if (e.getCause() instanceof SQLException)
+			{
+				throw (SQLException) e.getCause();
+			}
+
+			throw SQLStates.newGenericException(e);
+		}
+
+		return rows;
+	}
+
+	/*
+	 * Decodes (or for lazyDecode, just indexes) the blobs of a FetchData response. This doesn't touch
+	 * the current block, so it's safe to call from the prefetch thread.
+	 */
+	private void decodeBlock(final ClientWireProtocol.ResultSet re, final DecodedBlock decoded) throws SQLException {
+		final List<ByteString> buffers = re.getBlobsList();
+		if (lazyDecode)
+		{
+			// Just index the cells, getColumn() decodes them on demand
+			if (colTypes == null || colTypes.length == 0)
+			{
+				colTypes = getColumnWireTypes();
+			}
+
+			decoded.block = new FetchBlock(buffers, colTypes);
+			return;
+		}
+
+		final ArrayList<Object> rows;
+		final RowDecoder decoder = getRowDecoder();
+		final ForkJoinPool pool = conn.getDecodePool();
+		if (pool != null && buffers.size() > 1)
+		{
+			rows = decodeBlobsInParallel(pool, buffers, decoder);
+		}
+		else
+		{
+			rows = new ArrayList<>();
+			final StringDecoder strings = new StringDecoder(dedupStrings);
+			for (final ByteString buffer : buffers)
+			{
+				decodeBlob(buffer.asReadOnlyByteBuffer().slice(), decoder, strings, rows);
+			}
+		}
+
+		decoded.rows = rows;
+
+		// Everything's been copied out of the blobs
+		conn.bufferPool.release(decoded.buffer);
+		decoded.buffer = null;
+	}
+
+	/*
+	 * Number of rows in the blobs of a FetchData response, not counting the end of data marker
+	 */
+	private int countRows(final ClientWireProtocol.ResultSet re) {
+		int rows = 0;
+		for (final ByteString buffer : re.getBlobsList())
+		{
+			final ByteBuffer bb = buffer.asReadOnlyByteBuffer().slice();
+			if (bb.limit() >= 4 && !isBufferDem(bb))
+			{
+				rows += bb.getInt(0);
+			}
+		}
+
+		return rows;
+	}
+
+	private void startPrefetch() {
+		if (lazyDecode && (colTypes == null || colTypes.length == 0))
+		{
+			// Build these before the prefetch thread starts so it never has to
+			colTypes = getColumnWireTypes();
+		}
+
+		prefetcher = new Prefetcher(prefetchBlocks);
+		prefetcher.start();
+	}
+
+	private void stopPrefetch() {
+		if (prefetcher != null)
+		{
+			prefetcher.stop();
+			prefetcher = null;
+		}
+	}
+
+	/*
+	 * Lets the connection send a request of its own on our socket. Waits for the fetch the prefetch
+	 * thread has in flight, keeping the blocks it already has; the next block we need past those
+	 * starts it again.
+	 */
+	void pausePrefetch() {
+		final Prefetcher prefetcher = this.prefetcher;
+		if (prefetcher != null)
+		{
+			prefetcher.pause();
+		}
+	}
+
+	/*
+	 * One FetchData response after decoding. Exactly one of rows and block is set unless the fetch
+	 * failed, in which case error is set.
+	 */
+	private static class DecodedBlock {
+		ConfirmationResponse response;
+		ArrayList<Object> rows;
+		FetchBlock block;
+		Exception error;
+		// pooled buffer the blobs (and so block) point into, null once nothing needs it
+		byte[] buffer;
+
+		boolean isEmpty() {
+			return block != null ? block.size() == 0 : rows != null && rows.isEmpty();
+		}
+
+		boolean isLast() {
+			if (error != null || (response != null && response.getType() == ResponseType.RESPONSE_ERROR))
+			{
+				return true;
+			}
+
+			if (block != null)
+			{
+				return block.size() > 0 && block.isDataEnd(block.size() - 1);
+			}
+
+			return rows != null && !rows.isEmpty() && rows.get(rows.size() - 1) instanceof DataEndMarker;
+		}
+	}
+
+	/*
+	 * Fetches and decodes blocks ahead of the application on a background thread, so the round trip
+	 * for the next block overlaps with processing the current one. The prefetch thread sends and
+	 * reads on our stream; on a connection that isn't multiplexed that's the whole socket, so the
+	 * connection pauses it (see pausePrefetch()) before a request of its own. It stops on its own
+	 * after the end of data marker or an error, and close() stops it early.
+	 */
+	private class Prefetcher implements Runnable {
+		private final ArrayBlockingQueue<DecodedBlock> queue;
+		private Thread thread;
+		private volatile boolean stopped = false;
+		private volatile boolean paused = false;
+		// fetched while pausing with the queue full, it goes after whatever is queued
+		private volatile DecodedBlock held;
+
+		Prefetcher(final int blocks) {
+			queue = new ArrayBlockingQueue<>(blocks);
+		}
+
+		void start() {
+			thread = new Thread(this, "XGResultSet prefetch");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		@Override
+		public void run() {
+			while (!stopped && !paused)
+			{
+				DecodedBlock decoded;
+				try
+				{
+					decoded = fetchAndDecode();
+				}
+				catch (final Exception e)
+				{
+					decoded = new DecodedBlock();
+					decoded.error = e;
+				}
+
+				if (decoded.error == null && decoded.isEmpty() && decoded.response.getType() == ResponseType.RESPONSE_OK)
+				{
+					// zero size (ping) block, nothing to hand over
+					conn.bufferPool.release(decoded.buffer);
+					continue;
+				}
+
+				if (!put(decoded) || decoded.isLast())
+				{
+					return;
+				}
+			}
+		}
+
+		private boolean put(final DecodedBlock decoded) {
+			while (!stopped)
+			{
+				try
+				{
+					if (queue.offer(decoded, 100, TimeUnit.MILLISECONDS))
+					{
+						return true;
+					}
+				}
+				catch (final InterruptedException e)
+				{
+					// a cancel aimed at the fetch we already finished, keep trying
+				}
+
+				if (paused)
+				{
+					// the application is busy with the connection, not taking blocks
+					held = decoded;
+					return false;
+				}
+			}
+
+			return false;
+		}
+
+		DecodedBlock take() throws SQLException {
+			DecodedBlock decoded = queue.poll();
+			if (decoded != null)
+			{
+				return decoded;
+			}
+
+			decoded = held;
+			if (decoded != null)
+			{
+				held = null;
+				return decoded;
+			}
+
+			if (paused)
+			{
+				paused = false;
+				start();
+			}
+
+			try
+			{
+				return queue.take();
+			}
+			catch (final InterruptedException e)
+			{
+				throw SQLStates.newGenericException(e);
+			}
+		}
+
+		/*
+		 * Stops prefetching and waits for any fetch that's in progress, so the socket is free once
+		 * this returns
+		 */
+		void stop() {
+			stopped = true;
+			queue.clear();
+			held = null;
+			join();
+		}
+
+		/*
+		 * Like stop(), but keeps the blocks fetched so far for take(), which carries on prefetching
+		 * once they're used up
+		 */
+		void pause() {
+			paused = true;
+			join();
+		}
+
+		private void join() {
+			boolean interrupted = false;
+			while (thread.isAlive())
+			{
+				try
+				{
+					thread.join();
+				}
+				catch (final InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+
+			if (interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public void moveToCurrentRow() throws SQLException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	@Override
+	public void moveToInsertRow() throws SQLException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	@Override
+	public boolean next() throws SQLException {
+		if (closed)
+		{
+			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
+		}
+
+		if (store != null)
+		{
+			return moveTo(position + 1);
+		}
+
+		position++;
+
+		if (firstRowIs - 1 + blockSize() < position)
+		{
+			if (blockSize() > 0)
+			{
+				if (isDataEnd(blockSize() - 1))
+				{
+					return false;
+				}
+			}
+
+			// call to get more data
+			while (!getMoreData()) {}
+			firstRowIs = position;
+		}
+
+		if (isDataEnd((int) (position - firstRowIs)))
+		{
+			return false;
+		}
+		else
+		{
+			return true;
+		}
+	}
+
+	/*
+	 * Vendor extension: returns the rest of the current fetch block (or the next block, if the
+	 * current one has been read) as a columnar batch, and moves the cursor to the last row in it. The
+	 * same batch object is returned every time, so it's only valid until the next call. Returns null
+	 * once there are no more rows.
+	 */
+	public XGBatch nextBatch() throws SQLException {
+		if (batch == null)
+		{
+			batch = new XGBatch();
+		}
+
+		return nextBatch(batch) ? batch : null;
+	}
+
+	/*
+	 * Vendor extension: the rest of the rows as a Stream, each mapped by mapper. The stream reads the
+	 * result set a fetch block at a time (see nextBatch()); made parallel(), it maps different blocks
+	 * on different threads. SQLExceptions come out of it as UncheckedSQLException. The cursor ends
+	 * up wherever the stream stopped reading.
+	 */
+	public <T> Stream<T> stream(final RowMapper<T> mapper) throws SQLException {
+		if (closed)
+		{
+			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
+		}
+
+		// so the threads of a parallel stream only ever read it
+		columnIndex();
+		return StreamSupport.stream(new BatchSpliterator<>(this, mapper), false);
+	}
+
+	/*
+	 * Same as nextBatch(), filling in the given batch. Returns false once there are no more rows.
+	 */
+	public boolean nextBatch(final XGBatch batch) throws SQLException {
+		if (closed)
+		{
+			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
+		}
+
+		if (!lazyDecode && prefetcher == null && !immutable)
+		{
+			// Batches are built straight from the wire format, so from here on there's no point
+			// in decoding blocks into rows first
+			lazyDecode = true;
+		}
 
-		do
+		final long start = position + 1;
+		if (store != null && start < firstRowIs)
 		{
-			nestedLevel++;
-			type = bb.get(offset[0]);
-			offset[0]++;
-		} while (type == 14);
-		
-		try
+			// the cursor was scrolled back out of the current block
+			loadEntry(start);
+		}
+
+		if (firstRowIs - 1 + blockSize() < start)
 		{
-			return getArrayInternals(bb, offset, nestedLevel, type);
+			if (blockSize() > 0 && isDataEnd(blockSize() - 1))
+			{
+				batch.reset(0, 0);
+				return false;
+			}
+
+			// call to get more data
+			while (!getMoreData()) {}
+			firstRowIs = start;
 		}
-		catch(java.net.UnknownHostException e)
+
+		final int from = (int) (start - firstRowIs);
+		int to = blockSize();
+		if (to > 0 && isDataEnd(to - 1))
 		{
-			throw SQLStates.newGenericException(e);
+			to--;
 		}
-	}
-	
-	private XGArray getArrayInternals(final ByteBuffer bb, int[] offset, int nestedLevel, byte type) throws SQLException, java.net.UnknownHostException
-	{
-		//Get number of elements in the array
-		int numElements = bb.getInt(offset[0]);
-		
-		offset[0] += 4;
-		nestedLevel--;
-		
-		byte nullByte = bb.get(offset[0]);
-		offset[0]++;
 
-		boolean isEntirelyNull = (nullByte != 0);
-		if (isEntirelyNull)
+		if (from >= to)
 		{
-			assert(numElements == 0);
-			return null;
+			position = start;
+			batch.reset(0, 0);
+			return false;
 		}
-		
-		//Make return value
-		XGArray retval = null;
 
-		//Recurse if needed
-		if (nestedLevel > 0)
+		if (colTypes == null || colTypes.length == 0)
 		{
-			retval = new XGArray(numElements, (byte)14, conn, stmt);
-			for (int i = 0; i < numElements; i++)
-			{
-				retval.add(getArrayInternals(bb, offset, nestedLevel, type), i);
-			}
+			colTypes = getColumnWireTypes();
+		}
+
+		if (block != null)
+		{
+			fillBatch(batch, from, to);
 		}
 		else
 		{
-			retval = new XGArray(numElements, type, conn, stmt);
-			for (int i = 0; i < numElements; i++)
+			fillBatchFromRows(batch, from, to);
+		}
+
+		position = firstRowIs + to - 1;
+		return true;
+	}
+
+	private void fillBatch(final XGBatch batch, final int from, final int to) throws SQLException {
+		final int rows = to - from;
+		final int numCols = block.numColumns(from);
+		batch.reset(numCols, rows);
+		final int[] offset = new int[1];
+		for (int c = 0; c < numCols; c++)
+		{
+			final XGBatch.Column column = batch.column(c);
+			if (block.copyTo(c, from, to, column))
 			{
-				byte t = bb.get(offset[0]);
-				offset[0]++;
-				assert(t == type || t == 7); //Array type or NULL
-				if (t == 1) //INT
-				{
-					retval.add(bb.getInt(offset[0]), i);
-					offset[0] += 4;
-				}
-				else if (t == 2) //LONG
-				{
-					retval.add(bb.getLong(offset[0]), i);
-					offset[0] += 8;
-				}
-				else if (t == 3) //FLOAT
-				{
-					retval.add(Float.intBitsToFloat(bb.getInt(offset[0])), i);
-					offset[0] += 4;
-				}
-				else if (t == 4) //DOUBLE
-				{
-					retval.add(Double.longBitsToDouble(bb.getLong(offset[0])), i);
-					offset[0] += 8;
-				}
-				else if (t == 5) //STRING
-				{
-					int stringLength = bb.getInt(offset[0]);
-					offset[0] += 4;
-					byte[] dst = new byte[stringLength];
-					((Buffer)bb).position(offset[0]);
-					bb.get(dst);
-					retval.add(new String(dst, Charsets.UTF_8), i);
-					offset[0] += stringLength;
-				}
-				else if (t == 6) //Timestamp
-				{
-					retval.add(new Date(bb.getLong(offset[0])), i);
-					offset[0] += 8;
-				}
-				else if (t == 7) //Null
-				{
-					retval.add(null, i);
-				}
-				else if (t == 8) //BOOL
-				{
-					retval.add((bb.get(offset[0]) != 0), i);
-					offset[0]++;
-				}
-				else if (t == 9) //BINARY
-				{
-					int stringLength = bb.getInt(offset[0]);
-					offset[0] += 4;
-					byte[] dst = new byte[stringLength];
-					((Buffer)bb).position(offset[0]);
-					bb.get(dst);
-					retval.add(dst, i);
-					offset[0] += stringLength;
-				}
-				else if (t == 10) //BYTE
-				{
-					retval.add(bb.get(offset[0]), i);
-					offset[0]++;
-				}
-				else if (t == 11) //SHORT
-				{
-					retval.add(bb.getShort(offset[0]), i);
-					offset[0] += 2;
-				}
-		        else if (t == 12) //TIME
-		        {
-		         	retval.add(new Time(bb.getLong(offset[0])), i);
-		         	offset[0] += 8;
-		        }
-				else if (t == 13) //DECIMAL
-				{
-					int precision = bb.get(offset[0]);
-					retval.add(getDecimalFromBuffer(bb, offset[0]), i);
-					offset[0] += (2 + bcdLength(precision));
-				}
-				else if (t == 15) //UUID
+				continue;
+			}
+
+			// STRING and BINARY values get copied as is
+			column.reset(XGBatch.Layout.BYTES, rows);
+			boolean bytes = true;
+			for (int i = 0; i < rows && bytes; i++)
+			{
+				final ByteBuffer bb = block.buffer(from + i);
+				final int cell = block.offset(from + i, c);
+				final byte type = bb.get(cell);
+				if (type == 7) //Null
 				{
-					long high = bb.getLong(offset[0]);
-					offset[0]  += 8;
-					long low = bb.getLong(offset[0]);
-					offset[0] += 8;
-					retval.add(new UUID(high, low), i);
+					column.setNull(i);
 				}
-				else if (t == 16) //ST_POINT
+				else if (type == 5 || type == 9) //STRING or BINARY
 				{
-					double lon = Double.longBitsToDouble(bb.getLong(offset[0]));
-					offset[0] += 8;
-					double lat = Double.longBitsToDouble(bb.getLong(offset[0]));
-					offset[0] += 8;
-					retval.add(new StPoint(lon, lat), i);
+					column.setBytes(i, bb, cell + 5, bb.getInt(cell + 1));
 				}
-				else if (t == 17)  //IP
+				else
 				{
-					byte[] bytes = new byte[16];
-					((Buffer)bb).position(offset[0]);
-					bb.get(bytes);
-					offset[0] += 16;
-					retval.add(InetAddress.getByAddress(bytes), i);
+					bytes = false;
 				}
-				else if (t == 18) //IPV4
+			}
+
+			if (bytes)
+			{
+				continue;
+			}
+
+			column.reset(XGBatch.Layout.OBJECT, rows);
+			final RowDecoder decoder = getRowDecoder();
+			try
+			{
+				for (int i = 0; i < rows; i++)
 				{
-					byte[] bytes = new byte[4];
-					((Buffer)bb).position(offset[0]);
-					bb.get(bytes);
-					offset[0] += 4;
-					retval.add(InetAddress.getByAddress(bytes), i);
+					offset[0] = block.offset(from + i, c);
+					column.objects[i] = decoder.decode(block.buffer(from + i), offset, lazyStrings, c);
+					if (column.objects[i] == null)
+					{
+						column.setNull(i);
+					}
 				}
-				else if (t == 19) //Date
+			}
+			catch (final java.net.UnknownHostException e)
+			{
+				throw SQLStates.newGenericException(e);
+			}
+		}
+	}
+
+	private void fillBatchFromRows(final XGBatch batch, final int from, final int to) throws SQLException {
+		final int rows = to - from;
+		final int numCols = ((ArrayList<?>) rs.get(from)).size();
+		batch.reset(numCols, rows);
+		for (int c = 0; c < numCols; c++)
+		{
+			final XGBatch.Layout layout = getBatchLayout(c, from, to);
+			final XGBatch.Column column = batch.column(c);
+			column.reset(layout, rows);
+			for (int i = 0; i < rows; i++)
+			{
+				final Object value = ((ArrayList<?>) rs.get(from + i)).get(c);
+				if (value == null)
 				{
-					retval.add(new Date(bb.getLong(offset[0])), i);
-					offset[0] += 8;
+					column.setNull(i);
+					continue;
 				}
-				else
+
+				switch (layout)
 				{
-					throw SQLStates.INVALID_COLUMN_TYPE.clone();
+					case INT:
+						column.ints[i] = ((Number) value).intValue();
+						break;
+					case LONG:
+						column.longs[i] = value instanceof java.util.Date ? ((java.util.Date) value).getTime()
+								: ((Number) value).longValue();
+						break;
+					case DOUBLE:
+						column.doubles[i] = ((Number) value).doubleValue();
+						break;
+					case BYTES:
+						column.setBytes(i, value instanceof String ? ((String) value).getBytes(Charsets.UTF_8) : (byte[]) value);
+						break;
+					case OBJECT:
+						column.objects[i] = value;
+						break;
 				}
 			}
 		}
-		
+	}
+
+	/*
+	 * Picks the layout for a column of already decoded rows. Numeric and temporal columns go by the
+	 * metadata, anything else by what the values turn out to be. Either way if a value doesn't fit,
+	 * the column just gets the OBJECT layout.
+	 */
+	private XGBatch.Layout getBatchLayout(final int c, final int from, final int to) {
+		XGBatch.Layout retval;
+		switch (c < colTypes.length ? colTypes[c] : 0)
+		{
+			case 1: //INT
+			case 10: //BYTE
+			case 11: //SHORT
+				retval = XGBatch.Layout.INT;
+				break;
+			case 2: //LONG
+			case 6: //Timestamp
+			case 12: //TIME
+			case 19: //Date
+				retval = XGBatch.Layout.LONG;
+				break;
+			case 3: //FLOAT
+			case 4: //DOUBLE
+				retval = XGBatch.Layout.DOUBLE;
+				break;
+			case 13: //DECIMAL
+				return XGBatch.Layout.OBJECT;
+			default:
+				retval = XGBatch.Layout.BYTES;
+		}
+
+		for (int i = from; i < to; i++)
+		{
+			final Object value = ((ArrayList<?>) rs.get(i)).get(c);
+			if (value == null)
+			{
+				continue;
+			}
+
+			final boolean fits;
+			switch (retval)
+			{
+				case INT:
+					fits = value instanceof Integer || value instanceof Short || value instanceof Byte;
+					break;
+				case LONG:
+					fits = value instanceof Long || value instanceof java.util.Date;
+					break;
+				case DOUBLE:
+					fits = value instanceof Double || value instanceof Float;
+					break;
+				default:
+					fits = value instanceof String || value instanceof byte[];
+					break;
+			}
+
+			if (!fits)
+			{
+				return XGBatch.Layout.OBJECT;
+			}
+		}
+
 		return retval;
 	}
 
 	/*
-	 * Returns true if we actually received data, false if there was no data to merge
+	 * Number of entries in the current block, counting the end of data marker if there is one
 	 */
-	private boolean mergeData(final ClientWireProtocol.ResultSet re) throws SQLException, java.net.UnknownHostException {
-		final List<ByteString> buffers = re.getBlobsList();
-		this.rs.clear();
-		for (final ByteString buffer : buffers)
+	private int blockSize() {
+		if (block != null)
+		{
+			return block.size();
+		}
+
+		return rs.size();
+	}
+
+	private boolean isDataEnd(final int index) {
+		if (block != null)
+		{
+			return block.isDataEnd(index);
+		}
+
+		return rs.get(index) instanceof DataEndMarker;
+	}
+
+	/*
+	 * Returns the value of the given (1-based) column in the current row. For lazily decoded
+	 * blocks this is where the cell actually gets decoded.
+	 */
+	private Object getColumn(final int columnIndex) throws SQLException {
+		if (closed)
+		{
+			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
+		}
+
+		if (block != null)
 		{
-			ByteBuffer bb = buffer.asReadOnlyByteBuffer();
-			if (isBufferDem(bb))
+			final int index = getBlockRow(columnIndex);
+			try
 			{
-				rs.add(new DataEndMarker());
+				return getRowDecoder().decode(block.buffer(index), new int[] { block.offset(index, columnIndex - 1) },
+						lazyStrings, columnIndex - 1);
 			}
-			else
+			catch (final java.net.UnknownHostException e)
 			{
-				int numRows = bb.getInt(0);
-				int offset = 4;
-				for (int i = 0; i < numRows; i++)
-				{
-					//Process this row
-					final ArrayList<Object> alo = new ArrayList<>();
-					int rowLength = bb.getInt(offset);
-					int end = offset + rowLength;
-					offset += 4;
+				throw SQLStates.newGenericException(e);
+			}
+		}
 
-					while (offset < end)
-					{
-						//Get type tag
-						byte type = bb.get(offset);
-						offset++;
-						if (type == 1) //INT
-						{
-							alo.add(bb.getInt(offset));
-							offset += 4;
-						}
-						else if (type == 2) //LONG
-						{
-							alo.add(bb.getLong(offset));
-							offset += 8;
-						}
-						else if (type == 3) //FLOAT
-						{
-							alo.add(Float.intBitsToFloat(bb.getInt(offset)));
-							offset += 4;
-						}
-						else if (type == 4) //DOUBLE
-						{
-							alo.add(Double.longBitsToDouble(bb.getLong(offset)));
-							offset += 8;
-						}
-						else if (type == 5) //STRING
-						{
-							int stringLength = bb.getInt(offset);
-							offset += 4;
-							byte[] dst = new byte[stringLength];
-							((Buffer)bb).position(offset);
-							bb.get(dst);
-							alo.add(new String(dst, Charsets.UTF_8));
-							offset += stringLength;
-						}
-						else if (type == 6) //Timestamp
-						{
-							alo.add(new Date(bb.getLong(offset)));
-							offset += 8;
-						}
-						else if (type == 7) //Null
-						{
-							alo.add(null);
-						}
-						else if (type == 8) //BOOL
-						{
-							alo.add((bb.get(offset) != 0));
-							offset++;
-						}
-						else if (type == 9) //BINARY
-						{
-							int stringLength = bb.getInt(offset);
-							offset += 4;
-							byte[] dst = new byte[stringLength];
-							((Buffer)bb).position(offset);
-							bb.get(dst);
-							alo.add(dst);
-							offset += stringLength;
-						}
-						else if (type == 10) //BYTE
-						{
-							alo.add(bb.get(offset));
-							offset++;
-						}
-						else if (type == 11) //SHORT
-						{
-							alo.add(bb.getShort(offset));
-							offset += 2;
-						}
-                        else if (type == 12) //TIME
-                        {
-                         	alo.add(new Time(bb.getLong(offset)));
-                         	offset += 8;
-                        }
-						else if (type == 13) //DECIMAL
-						{
-							int precision = bb.get(offset);
-							alo.add(getDecimalFromBuffer(bb, offset));
-							offset += (2 + bcdLength(precision));
-						}
-						else if (type == 14) //ARRAY
-						{
-							//Need to used int[] so we can pass an integer by reference.
-							//Cannot use 'new Integer'. It goes by value.
-							int[] off = new int[1];
-							off[0] = offset;
-							XGArray array = getArrayFromBuffer(bb, off);
-							offset = off[0];
-							alo.add(array);
-						}
-						else if (type == 15) //UUID
-						{
-							long high = bb.getLong(offset);
-							offset  += 8;
-							long low = bb.getLong(offset);
-							offset += 8;
-							alo.add(new UUID(high, low));
-						}
-						else if (type == 16) //ST_POINT
-						{
-							double lon = Double.longBitsToDouble(bb.getLong(offset));
-							offset += 8;
-							double lat = Double.longBitsToDouble(bb.getLong(offset));
-							offset += 8;
-							alo.add(new StPoint(lon, lat));
-						}
-						else if (type == 17)  //IP
-						{
-							byte[] bytes = new byte[16];
-							((Buffer)bb).position(offset);
-							bb.get(bytes);
-							offset += 16;
-							alo.add(InetAddress.getByAddress(bytes));
-						}
-						else if (type == 18) //IPV4
-						{
-							byte[] bytes = new byte[4];
-							((Buffer)bb).position(offset);
-							bb.get(bytes);
-							offset += 4;
-							alo.add(InetAddress.getByAddress(bytes));
-						}
-						else if (type == 19) //Date
-						{
-							alo.add(new Date(bb.getLong(offset)));
-							offset += 8;
-						}
-						else
-						{
-							throw SQLStates.INVALID_COLUMN_TYPE.clone();
-						}
-					}
+		final Object row = rs.get((int) (position - firstRowIs));
+		if (row instanceof DataEndMarker)
+		{
+			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
+		}
 
-					rs.add(alo);
-				}
-			}
+		final ArrayList<Object> alo = (ArrayList<Object>) row;
+
+		if (columnIndex < 1 || columnIndex > alo.size())
+		{
+			throw SQLStates.COLUMN_NOT_FOUND.clone();
 		}
 
-		return rs.size() > 0;
+		return alo.get(columnIndex - 1);
 	}
 
-	@Override
-	public void moveToCurrentRow() throws SQLException {
-		throw new SQLFeatureNotSupportedException();
+	/*
+	 * Returns the index of the current row in the lazily decoded block, after checking that there is a
+	 * current row and that it has the given (1-based) column
+	 */
+	private int getBlockRow(final int columnIndex) throws SQLException {
+		final int index = (int) (position - firstRowIs);
+		if (index < 0 || index >= block.size() || block.isDataEnd(index))
+		{
+			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
+		}
+
+		if (columnIndex < 1 || columnIndex > block.numColumns(index))
+		{
+			throw SQLStates.COLUMN_NOT_FOUND.clone();
+		}
+
+		return index;
 	}
 
-	@Override
-	public void moveToInsertRow() throws SQLException {
-		throw new SQLFeatureNotSupportedException();
+	/*
+	 * If the given (1-based) column of the current row is held in a primitive vector, returns the
+	 * row's index in the block, otherwise -1
+	 */
+	private int getPrimitiveRow(final int columnIndex) throws SQLException {
+		return getVectorRow(columnIndex, block != null && block.isPrimitive(columnIndex - 1));
 	}
 
-	@Override
-	public boolean next() throws SQLException {
+	/*
+	 * Same as getPrimitiveRow() for TIMESTAMP, DATE and TIME columns held as epoch milliseconds
+	 */
+	private int getEpochRow(final int columnIndex) throws SQLException {
+		return getVectorRow(columnIndex, block != null && block.isEpoch(columnIndex - 1));
+	}
+
+	private int getVectorRow(final int columnIndex, final boolean hasVector) throws SQLException {
+		if (!hasVector)
+		{
+			return -1;
+		}
+
 		if (closed)
 		{
 			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
 		}
 
-		position++;
+		final int index = (int) (position - firstRowIs);
+		if (index < 0 || index >= block.numRows())
+		{
+			throw SQLStates.CURSOR_NOT_ON_ROW.clone();
+		}
+
+		return index;
+	}
+
+	private byte[] getColumnWireTypes() {
+		if (pos2Cols == null || cols2Types == null)
+		{
+			return new byte[0];
+		}
 
-		if (firstRowIs - 1 + rs.size() < position)
+		final byte[] retval = new byte[pos2Cols.size()];
+		for (final Map.Entry<Integer, String> entry : pos2Cols.entrySet())
 		{
-			if (rs.size() > 0)
+			if (entry.getKey() < retval.length)
 			{
-				final Object row = rs.get(rs.size() - 1);
-				if (row instanceof DataEndMarker)
-				{
-					return false;
-				}
+				retval[entry.getKey()] = getWireType(cols2Types.get(entry.getValue()));
 			}
-
-			// call to get more data
-			while (!getMoreData()) {}
-			firstRowIs = position;
 		}
 
-		final Object row = rs.get((int) (position - firstRowIs));
-		if (row instanceof DataEndMarker)
+		return retval;
+	}
+
+	/*
+	 * Returns the decoder for this result set's columns, building it the first time. Once we know the
+	 * metadata the columns don't change, so it's safe to share between threads.
+	 */
+	private RowDecoder getRowDecoder() {
+		RowDecoder retval = rowDecoder;
+		if (retval == null)
 		{
-			return false;
+			retval = new RowDecoder(getColumnWireTypes(), this);
+			rowDecoder = retval;
 		}
-		else
+
+		return retval;
+	}
+
+	/*
+	 * Maps a type name from the metadata to the type tag used on the wire, or 0 if we don't care
+	 */
+	private static byte getWireType(final String type) {
+		if (type == null)
 		{
-			return true;
+			return 0;
+		}
+
+		switch (type)
+		{
+			case "INT":
+				return 1;
+			case "LONG":
+				return 2;
+			case "FLOAT":
+				return 3;
+			case "DOUBLE":
+				return 4;
+			case "BYTE":
+				return 10;
+			case "SHORT":
+				return 11;
+			case "TIMESTAMP":
+				return 6;
+			case "TIME":
+				return 12;
+			case "DECIMAL":
+				return 13;
+			case "DATE":
+				return 19;
+			case "CHAR":
+				return 5;
+			case "BOOLEAN":
+				return 8;
+			case "BINARY":
+				return 9;
+			default:
+				return 0;
 		}
 	}
 
 	@Override
 	public boolean previous() throws SQLException {
-		throw new SQLFeatureNotSupportedException();
+		if (store == null)
+		{
+			throw new SQLFeatureNotSupportedException();
+		}
+
+		return moveTo(position - 1);
 	}
 
 	private void processResponseType(final ResponseType rType, final ConfirmationResponse response)
@@ -2017,12 +3249,46 @@ public class XGResultSet implements ResultSet
 		}
 	}
 
-	private void readBytes(final byte[] bytes) throws Exception {
+	/*
+	 * Reads the next response into a pooled buffer, which the caller gives back to the pool. Its
+	 * length goes in length[0]. On a multiplexed connection it's the buffer the demultiplexer read it
+	 * into, so the response isn't copied again.
+	 */
+	private byte[] readResponse(final int[] length) throws Exception {
+		final InputStream in = stmt.in();
+		if (in instanceof Demultiplexer.StreamInput)
+		{
+			final Demultiplexer.Frame frame = ((Demultiplexer.StreamInput) in).take();
+			if (frame == null)
+			{
+				throw SQLStates.UNEXPECTED_EOF.clone();
+			}
+
+			length[0] = frame.length;
+			return frame.data;
+		}
+
+		length[0] = getLength();
+		final byte[] data = conn.bufferPool.acquire(length[0]);
+		try
+		{
+			readBytes(data, length[0]);
+		}
+		catch (final Exception e)
+		{
+			conn.bufferPool.release(data);
+			throw e;
+		}
+
+		return data;
+	}
+
+	private void readBytes(final byte[] bytes, final int size) throws Exception {
+		final InputStream in = stmt.in();
 		int count = 0;
-		final int size = bytes.length;
 		while (count < size)
 		{
-			final int temp = conn.in.read(bytes, count, bytes.length - count);
+			final int temp = in.read(bytes, count, size - count);
 			if (temp == -1)
 			{
 				throw SQLStates.UNEXPECTED_EOF.clone();
@@ -2043,10 +3309,20 @@ public class XGResultSet implements ResultSet
 
 	@Override
 	public boolean relative(final int rows) throws SQLException {
-		throw new SQLFeatureNotSupportedException();
+		if (store == null)
+		{
+			throw new SQLFeatureNotSupportedException();
+		}
+
+		return moveTo(position + rows);
 	}
 
-	private void requestMetaData() throws Exception {
+	/*
+	 * Gets the column metadata. With fetchToo, the first FetchData goes out right behind the
+	 * FetchMetadata so the two share a round trip; its response is left on the socket for the first
+	 * fetchData() to read.
+	 */
+	private void requestMetaData(final boolean fetchToo) throws Exception {
 		stmt.passUpCancel(false);
 		try
 		{
@@ -2057,27 +3333,31 @@ public class XGResultSet implements ResultSet
 			b2.setType(ClientWireProtocol.Request.RequestType.FETCH_METADATA);
 			b2.setFetchMetadata(msg);
 			final Request wrapper = b2.build();
-			conn.out.write(intToBytes(wrapper.getSerializedSize()));
-			wrapper.writeTo(conn.out);
-			conn.out.flush();
+			conn.send(wrapper, stmt.streamId(), !fetchToo);
+			if (fetchToo)
+			{
+				pendingFetch = stmt.in();
+				pendingFetchStart = System.nanoTime();
+				sendFetchData(true);
+			}
 
 			// receive response
 			final ClientWireProtocol.FetchMetadataResponse.Builder fmdr =
 					ClientWireProtocol.FetchMetadataResponse.newBuilder();
-			final int length = getLength();
-			final byte[] data = new byte[length];
-			readBytes(data);
-			fmdr.mergeFrom(data);
+			final int[] length = new int[1];
+			final byte[] data = readResponse(length);
+			try
+			{
+				fmdr.mergeFrom(CodedInputStream.newInstance(data, 0, length[0]));
+			}
+			finally
+			{
+				conn.bufferPool.release(data);
+			}
 			final ConfirmationResponse response = fmdr.getResponse();
 			final ResponseType rType = response.getType();
 			processResponseType(rType, response);
-			cols2Pos = fmdr.getCols2PosMap();
-			cols2Types = fmdr.getCols2TypesMap();
-			pos2Cols = new TreeMap<>();
-			for (final Map.Entry<String, Integer> entry : cols2Pos.entrySet())
-			{
-				pos2Cols.put(entry.getValue(), entry.getKey());
-			}
+			setMetaData(fmdr.getCols2PosMap(), fmdr.getCols2TypesMap());
 		}
 		finally
 		{
@@ -2085,6 +3365,19 @@ public class XGResultSet implements ResultSet
 		}
 	}
 
+	private void setMetaData(final Map<String, Integer> cols2Pos, final Map<String, String> cols2Types) {
+		this.cols2Pos = cols2Pos;
+		this.cols2Types = cols2Types;
+		pos2Cols = new TreeMap<>();
+		for (final Map.Entry<String, Integer> entry : cols2Pos.entrySet())
+		{
+			// interned so names from the metadata hit the identity check in ColumnIndex
+			pos2Cols.put(entry.getValue(), entry.getKey().intern());
+		}
+
+		labels = new ColumnIndex(cols2Pos, caseInsensitiveLabels);
+	}
+
 	@Override
 	public boolean rowDeleted() throws SQLException {
 		if (closed)
@@ -2126,9 +3419,7 @@ public class XGResultSet implements ResultSet
 
 		try
 		{
-			conn.out.write(intToBytes(wrapper.getSerializedSize()));
-			wrapper.writeTo(conn.out);
-			conn.out.flush();
+			conn.send(wrapper, stmt.streamId(), true);
 			getStandardResponse();
 		}
 		catch (final IOException e)
@@ -2163,6 +3454,7 @@ public class XGResultSet implements ResultSet
 		}
 
 		fetchSize = rows;
+		sizer = null;
 	}
 
 	@Override
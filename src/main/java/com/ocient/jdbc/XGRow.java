@@ -0,0 +1,94 @@
+package com.ocient.jdbc;
+
+import java.sql.SQLException;
+
+/*
+ * One row of an XGBatch, as handed to a RowMapper. The same XGRow is moved from row to row, so it's
+ * only valid for the duration of the map() call it was passed to. Columns are 1-based, like in
+ * ResultSet, and laid out as described in XGBatch.
+ */
+public class XGRow
+{
+	private final XGResultSet rs;
+	private XGBatch batch;
+	private int row;
+
+	XGRow(final XGResultSet rs)
+	{
+		this.rs = rs;
+	}
+
+	void moveTo(final XGBatch batch, final int row)
+	{
+		this.batch = batch;
+		this.row = row;
+	}
+
+	public int getColumnCount()
+	{
+		return batch.numColumns();
+	}
+
+	public int findColumn(final String columnLabel) throws SQLException
+	{
+		return rs.findColumn(columnLabel);
+	}
+
+	public boolean isNull(final int columnIndex) throws SQLException
+	{
+		return batch.getColumn(columnIndex).isNull(row);
+	}
+
+	public int getInt(final int columnIndex) throws SQLException
+	{
+		return batch.getColumn(columnIndex).getInt(row);
+	}
+
+	public int getInt(final String columnLabel) throws SQLException
+	{
+		return getInt(findColumn(columnLabel));
+	}
+
+	public long getLong(final int columnIndex) throws SQLException
+	{
+		return batch.getColumn(columnIndex).getLong(row);
+	}
+
+	public long getLong(final String columnLabel) throws SQLException
+	{
+		return getLong(findColumn(columnLabel));
+	}
+
+	public double getDouble(final int columnIndex) throws SQLException
+	{
+		return batch.getColumn(columnIndex).getDouble(row);
+	}
+
+	public double getDouble(final String columnLabel) throws SQLException
+	{
+		return getDouble(findColumn(columnLabel));
+	}
+
+	public String getString(final int columnIndex) throws SQLException
+	{
+		return batch.getColumn(columnIndex).getString(row);
+	}
+
+	public String getString(final String columnLabel) throws SQLException
+	{
+		return getString(findColumn(columnLabel));
+	}
+
+	/*
+	 * The value of an OBJECT column, as getObject() on the result set would return it
+	 */
+	public Object getObject(final int columnIndex) throws SQLException
+	{
+		return batch.getColumn(columnIndex).getObject(row);
+	}
+
+	public Object getObject(final String columnLabel) throws SQLException
+	{
+		return getObject(findColumn(columnLabel));
+	}
+}
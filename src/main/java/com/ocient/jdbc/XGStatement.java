@@ -1,6 +1,8 @@
 package com.ocient.jdbc;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.sql.Array;
@@ -48,8 +50,10 @@ import java.util.TimerTask;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 
 import com.google.common.base.Preconditions;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.util.JsonFormat;
 
 public class XGStatement implements Statement
@@ -57,6 +61,8 @@ public class XGStatement implements Statement
 	public static final Logger LOGGER = Logger.getLogger( "com.ocient.jdbc" );
 
 	private static final int defaultFetchSize = 30000;
+	// SET and then whitespace, so SETTINGS and the like don't count
+	private static final Pattern SESSION_CHANGE = Pattern.compile("\\s*SET\\s", Pattern.CASE_INSENSITIVE);
 
 	private static String bytesToHex(final byte[] in) {
 		final StringBuilder builder = new StringBuilder();
@@ -72,22 +78,26 @@ public class XGStatement implements Statement
 		return ret;
 	}
 
-	private static byte[] intToBytes(final int val) {
-		final byte[] buff = new byte[4];
-		buff[0] = (byte) (val >> 24);
-		buff[1] = (byte) ((val & 0x00FF0000) >> 16);
-		buff[2] = (byte) ((val & 0x0000FF00) >> 8);
-		buff[3] = (byte) ((val & 0x000000FF));
-		return buff;
-	}
-
 	protected boolean closed = false;
-	private final XGConnection conn;
+	// the application's connection
+	private final XGConnection owner;
+	// what getConnection() hands out instead of owner, set when owner is behind an XGPooledConnection
+	private volatile Connection handle;
+	// the connection our requests go out on, owner or one of its sub-connections, see bind()
+	private XGConnection conn;
 	private XGResultSet result;
 	private int updateCount = -1;
 	private int fetchSize = defaultFetchSize;
+	// true if the application picked the fetch size, which turns off adaptive fetch sizing
+	private boolean fetchSizeSet = false;
+	// result set size estimate from the last explain(sql), used to size the first fetch if that query gets run
+	private String explainedSql;
+	private long explainedSizeInBytes = 0L;
 	protected ArrayList<Object> parms = new ArrayList<>();
 	private int maxRows = 0;
+	private int resultSetType = ResultSet.TYPE_FORWARD_ONLY;
+	// the stream our requests go out on when the connection is multiplexed, opened on first use
+	private volatile Demultiplexer.StreamInput stream;
 
 	// not thread safe because individual queries are single threaded
 	// The queryId is set on the initial call to executeQuery()
@@ -107,7 +117,7 @@ public class XGStatement implements Statement
 			{
 				queryCancelled.set(false);
 			}
-			if (cancelled || conn.isClosed()) {
+			if (cancelled || owner.isClosed()) {
 				throw SQLStates.OK.cloneAndSpecify("Query cancelled");
 			}
 		}
@@ -125,6 +135,7 @@ public class XGStatement implements Statement
 
 	public XGStatement(final XGConnection conn, final boolean force, final boolean oneShotForce)
 	{
+		this.owner = conn;
 		this.conn = conn;
 		this.force = force;
 		this.oneShotForce = oneShotForce;
@@ -134,6 +145,7 @@ public class XGStatement implements Statement
 	public XGStatement(final XGConnection conn, final int type, final int concur, final boolean force,
 			final boolean oneShotForce) throws SQLFeatureNotSupportedException
 	{
+		this.owner = conn;
 		this.conn = conn;
 		this.force = force;
 		this.oneShotForce = oneShotForce;
@@ -143,15 +155,18 @@ public class XGStatement implements Statement
 			throw new SQLFeatureNotSupportedException();
 		}
 
-		if (type != ResultSet.TYPE_FORWARD_ONLY)
+		if (type != ResultSet.TYPE_FORWARD_ONLY && type != ResultSet.TYPE_SCROLL_INSENSITIVE)
 		{
 			throw new SQLFeatureNotSupportedException();
 		}
+
+		this.resultSetType = type;
 	}
 
 	public XGStatement(final XGConnection conn, final int type, final int concur, final int hold, final boolean force,
 			final boolean oneShotForce) throws SQLFeatureNotSupportedException
 	{
+		this.owner = conn;
 		this.conn = conn;
 		this.force = force;
 		this.oneShotForce = oneShotForce;
@@ -162,15 +177,17 @@ public class XGStatement implements Statement
 			throw new SQLFeatureNotSupportedException();
 		}
 
-		if (type != ResultSet.TYPE_FORWARD_ONLY)
+		if (type != ResultSet.TYPE_FORWARD_ONLY && type != ResultSet.TYPE_SCROLL_INSENSITIVE)
 		{
 			throw new SQLFeatureNotSupportedException();
 		}
 
-		if (type != ResultSet.CLOSE_CURSORS_AT_COMMIT)
+		if (hold != ResultSet.CLOSE_CURSORS_AT_COMMIT)
 		{
 			throw new SQLFeatureNotSupportedException();
 		}
+
+		this.resultSetType = type;
 	}
 
 	/**
@@ -252,17 +269,10 @@ public class XGStatement implements Statement
 					submittingThread.interrupt();
 
 					// we can't reuse the existing socket because it can now have garbage sitting
-					// on it (from the timed out request). We could add sequence numbers to our
-					// protocol but that's a heavy handed solution. The easist thing to do here
-					// is to tear down our current connection.
-					conn.reconnect();
-
-					// set the result set to null. We forego closing it because the server sql node
-					// should clean up all resources related to this query.
-					conn.rs = null;
-
-					// send the kill query message to the server
-					XGStatement.this.killQuery(optQueryId.get());
+					// on it (from the timed out request). On a multiplexed connection that garbage
+					// is only on our stream, so we drop the stream instead. Otherwise the easist
+					// thing to do here is to tear down our current connection.
+					XGStatement.this.abandonQuery(optQueryId.get());
 				} catch (Exception e) {
 					LOGGER.log(Level.WARNING, "Error sending kill query message", e);
 					suppressed = e;
@@ -278,7 +288,7 @@ public class XGStatement implements Statement
 			}
 		};
 
-		conn.addTimeout(killQueryTask, timeoutMillis);
+		owner.addTimeout(killQueryTask, timeoutMillis);
 
 		try {
 			// run the task
@@ -292,7 +302,7 @@ public class XGStatement implements Statement
 				throw e;
 			} else {
 				// Removes our canceled task (any those from any other connection) from the timer task queue
-				conn.purgeTimeoutTasks();
+				owner.purgeTimeoutTasks();
 			}
 		}
 	}
@@ -327,10 +337,7 @@ public class XGStatement implements Statement
 
 			try
 			{
-				conn.reconnect();
-				conn.rs = null;
-
-				killQuery(queryId);
+				abandonQuery(queryId);
 			}
 			catch (IOException | SQLException e)
 			{
@@ -339,6 +346,124 @@ public class XGStatement implements Statement
 		}
 	}
 
+	/*
+	 * Gets the socket away from a query that's still sending us responses and kills it
+	 */
+	private void abandonQuery(final String queryId) throws IOException, SQLException {
+		if (conn.getDemultiplexer() != null)
+		{
+			releaseStream();
+			if (conn.rs == result)
+			{
+				conn.rs = null;
+			}
+
+			// our result set may still look open, so send the kill on a stream of its own
+			final XGStatement killer = new XGStatement(conn, force, false);
+			try
+			{
+				killer.killQuery(queryId);
+			}
+			finally
+			{
+				killer.close();
+			}
+
+			return;
+		}
+
+		conn.reconnect();
+
+		// set the result set to null. We forego closing it because the server sql node
+		// should clean up all resources related to this query.
+		conn.rs = null;
+
+		// send the kill query message to the server
+		killQuery(queryId);
+	}
+
+	/*
+	 * Our stream on a multiplexed connection, null if the connection isn't multiplexed. A new one
+	 * is opened after a reconnect or once the old one was released.
+	 */
+	private Demultiplexer.StreamInput stream() {
+		final Demultiplexer demux = conn.getDemultiplexer();
+		if (demux == null)
+		{
+			return null;
+		}
+
+		Demultiplexer.StreamInput stream = this.stream;
+		if (stream == null || stream.getDemultiplexer() != demux)
+		{
+			stream = this.stream = demux.open();
+		}
+
+		return stream;
+	}
+
+	private void releaseStream() {
+		final Demultiplexer.StreamInput stream = this.stream;
+		this.stream = null;
+		if (stream != null)
+		{
+			stream.release();
+		}
+	}
+
+	/*
+	 * Where the responses to our requests and those of our result set are read from
+	 */
+	protected InputStream in() {
+		final Demultiplexer.StreamInput stream = stream();
+		return stream != null ? stream : conn.in;
+	}
+
+	protected int streamId() {
+		final Demultiplexer.StreamInput stream = stream();
+		return stream != null ? stream.getId() : 0;
+	}
+
+	/*
+	 * Picks the connection our next request goes out on. While another statement's result set has
+	 * the owner's socket, that's one of the owner's sub-connections, unless the request changes the
+	 * session, which has to happen on the owner.
+	 */
+	private void bind(final boolean sessionChange) throws SQLException {
+		// also once the pooled connection we came from has been given back
+		final Connection handle = this.handle;
+		if (closed || handle != null && handle.isClosed())
+		{
+			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
+		}
+
+		if (result != null && !result.isClosed())
+		{
+			// stay with our result set, the caller reports it as still open
+			return;
+		}
+
+		conn = sessionChange ? owner : owner.getIdleConnection(conn);
+	}
+
+	/*
+	 * Whether sql changes the session, so it has to run on the owner itself. This is a heuristic: it
+	 * goes by the first keyword only and knows just the SET statements, so SETTINGS or a SET behind a
+	 * leading comment aren't counted.
+	 */
+	static boolean isSessionChange(final String sql) {
+		return SESSION_CHANGE.matcher(sql).lookingAt();
+	}
+
+	/*
+	 * Whether an open result set still has the socket, which rules out sending another request. On
+	 * a multiplexed connection only our own result set uses our stream.
+	 */
+	private boolean isResultSetOpen() throws SQLException {
+		final XGResultSet rs = conn.getDemultiplexer() != null ? result : conn.rs;
+		return rs != null && !rs.isClosed();
+	}
+
 	@Override
 	public void clearBatch() throws SQLException {
 		throw new SQLFeatureNotSupportedException();
@@ -362,6 +487,7 @@ public class XGStatement implements Statement
 		}
 
 		dissociateQuery();
+		releaseStream();
 		result = null;
 		closed = true;
 	}
@@ -508,16 +634,40 @@ public class XGStatement implements Statement
 			return result;
 		}
 
+		final long estimatedSizeInBytes = sql.equals(explainedSql) ? explainedSizeInBytes : 0L;
+
     //Handle maxRows
 		if (maxRows != 0)
 		{
 			sql =  "WITH THE_USER_QUERY_TO_ADD_A_LIMIT_TO as (" + sql + ") SELECT * FROM THE_USER_QUERY_TO_ADD_A_LIMIT_TO LIMIT " + maxRows;
 		}
 
+		final String cacheKey = owner.getQueryCache() != null ? owner.getQueryCacheKey(setParms(sql)) : null;
+		if (cacheKey != null)
+		{
+			final QueryCache.Result cached = owner.getQueryCache().get(cacheKey);
+			if (cached != null)
+			{
+				bind(false);
+				if (isResultSetOpen())
+				{
+					throw SQLStates.PREVIOUS_RESULT_SET_STILL_OPEN.clone();
+				}
+
+				result = conn.rs = new XGResultSet(conn, this, cached);
+				this.updateCount = -1;
+				return result;
+			}
+		}
+
 		sendAndReceive(sql, Request.RequestType.EXECUTE_QUERY, 0, false);
 		try
 		{
-			result = conn.rs = new XGResultSet(conn, fetchSize, this);
+			result = conn.rs = new XGResultSet(conn, fetchSize, this, estimatedSizeInBytes);
+			if (cacheKey != null)
+			{
+				result.recordInto(owner.getQueryCache(), cacheKey);
+			}
 		}
 		catch (final Exception e)
 		{
@@ -551,7 +701,7 @@ public class XGStatement implements Statement
 			ending = ending.trim();
 			if(ending.equals("ON") || ending.equals("OFF")) {
 				try {
-					conn.setPSO(ending.equals("ON"));
+					owner.setPSO(ending.equals("ON"));
 				} catch (final Exception e) {
 					if(e instanceof SQLException) {
 						throw (SQLException) e;
@@ -564,7 +714,7 @@ public class XGStatement implements Statement
 				try {
 					long threshold = Long.parseLong(ending);
 					try {
-						conn.setPSO(threshold);
+						owner.setPSO(threshold);
 					} catch (final Exception e) {
 						if(e instanceof SQLException) {
 							throw (SQLException) e;
@@ -584,6 +734,16 @@ public class XGStatement implements Statement
 		final ClientWireProtocol.ExecuteUpdateResponse.Builder eur =
 				(ClientWireProtocol.ExecuteUpdateResponse.Builder) sendAndReceive(sql,
 						Request.RequestType.EXECUTE_UPDATE, 0, false);
+		if (isSessionChange(sql))
+		{
+			owner.sessionChanged();
+		}
+		else if (owner.getQueryCache() != null)
+		{
+			// we can't tell which tables it touched
+			owner.getQueryCache().invalidate(owner.database);
+		}
+
 		return eur.getUpdateRowCount();
 	}
 
@@ -607,6 +767,8 @@ public class XGStatement implements Statement
 		final ClientWireProtocol.ExplainResponse.Builder er =
 				(ClientWireProtocol.ExplainResponse.Builder) sendAndReceive(sql, Request.RequestType.EXECUTE_EXPLAIN, 0,
 						false);
+		explainedSql = sql.trim();
+		explainedSizeInBytes = er.getPlan().getHeader().getRsSizeInBytes();
 		return er.getPlan();
 	}
 
@@ -730,7 +892,8 @@ public class XGStatement implements Statement
 			final FetchSystemMetadata.SystemMetadataCall call, final String schema, final String table,
 			final String col, final boolean test) throws SQLException {
 		clearWarnings();
-		if (conn.rs != null && !conn.rs.isClosed())
+		bind(false);
+		if (isResultSetOpen())
 		{
 			throw SQLStates.PREVIOUS_RESULT_SET_STILL_OPEN.clone();
 		}
@@ -766,15 +929,20 @@ public class XGStatement implements Statement
 					ClientWireProtocol.FetchSystemMetadataResponse.newBuilder();
 			try
 			{
-				conn.out.write(intToBytes(wrapper.getSerializedSize()));
-				wrapper.writeTo(conn.out);
-				conn.out.flush();
+				conn.send(wrapper, streamId(), true);
 
 				// get confirmation
 				final int length = getLength();
-				final byte[] data = new byte[length];
-				readBytes(data);
-				br.mergeFrom(data);
+				final byte[] data = conn.bufferPool.acquire(length);
+				try
+				{
+					readBytes(data, length);
+					br.mergeFrom(CodedInputStream.newInstance(data, 0, length));
+				}
+				finally
+				{
+					conn.bufferPool.release(data);
+				}
 
 				final ConfirmationResponse response = br.getResponse();
 				final ResponseType rType = response.getType();
@@ -853,7 +1021,12 @@ public class XGStatement implements Statement
 			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
 		}
 
-		return conn;
+		final Connection handle = this.handle;
+		return handle != null ? handle : owner;
+	}
+
+	void setConnectionHandle(final Connection handle) {
+		this.handle = handle;
 	}
 
 	@Override
@@ -876,17 +1049,22 @@ public class XGStatement implements Statement
 		return fetchSize;
 	}
 
+	protected boolean isFetchSizeSet() {
+		return fetchSizeSet;
+	}
+
 	@Override
 	public ResultSet getGeneratedKeys() throws SQLException {
 		throw new SQLFeatureNotSupportedException();
 	}
 
 	private int getLength() throws Exception {
+		final InputStream in = in();
 		int count = 4;
 		final byte[] data = new byte[4];
 		while (count > 0)
 		{
-			final int temp = conn.in.read(data, 4 - count, count);
+			final int temp = in.read(data, 4 - count, count);
 			if (temp == -1)
 			{
 				throw SQLStates.UNEXPECTED_EOF.clone();
@@ -990,7 +1168,14 @@ public class XGStatement implements Statement
 			throw SQLStates.CALL_ON_CLOSED_OBJECT.clone();
 		}
 
-		return ResultSet.TYPE_FORWARD_ONLY;
+		return resultSetType;
+	}
+
+	/*
+	 * True if result sets from this statement keep every block they fetch so the cursor can scroll
+	 */
+	protected boolean isScrollInsensitive() {
+		return resultSetType == ResultSet.TYPE_SCROLL_INSENSITIVE;
 	}
 
 	@Override
@@ -1080,12 +1265,12 @@ public class XGStatement implements Statement
 		}
 	}
 
-	private void readBytes(final byte[] bytes) throws Exception {
+	private void readBytes(final byte[] bytes, final int size) throws Exception {
+		final InputStream in = in();
 		int count = 0;
-		final int size = bytes.length;
 		while (count < size)
 		{
-			final int temp = conn.in.read(bytes, count, bytes.length - count);
+			final int temp = in.read(bytes, count, size - count);
 			if (temp == -1)
 			{
 				throw SQLStates.UNEXPECTED_EOF.clone();
@@ -1114,7 +1299,8 @@ public class XGStatement implements Statement
 	private Object sendAndReceive(String sql, final Request.RequestType requestType, final int val,
 			final boolean isInMb) throws SQLException {
 		clearWarnings();
-		if (conn.rs != null && !conn.rs.isClosed())
+		bind(requestType == Request.RequestType.EXECUTE_UPDATE && isSessionChange(sql));
+		if (isResultSetOpen())
 		{
 			throw SQLStates.PREVIOUS_RESULT_SET_STILL_OPEN.clone();
 		}
@@ -1254,14 +1440,20 @@ public class XGStatement implements Statement
 			final Request wrapper = (Request) b2.getClass().getMethod("build").invoke(b2);
 			try
 			{
-				conn.out.write(intToBytes(wrapper.getSerializedSize()));
-				wrapper.writeTo(conn.out);
-				conn.out.flush();
+				conn.send(wrapper, streamId(), true);
 				// get confirmation
 				final int length = getLength();
-				final byte[] data = new byte[length];
-				readBytes(data);
-				br.getClass().getMethod("mergeFrom", byte[].class).invoke(br, data);
+				final byte[] data = conn.bufferPool.acquire(length);
+				try
+				{
+					readBytes(data, length);
+					br.getClass().getMethod("mergeFrom", CodedInputStream.class).invoke(br,
+							CodedInputStream.newInstance(data, 0, length));
+				}
+				finally
+				{
+					conn.bufferPool.release(data);
+				}
 
 				final Method getResponse = br.getClass().getMethod("getResponse");
 				final ConfirmationResponse response = (ConfirmationResponse) getResponse.invoke(br);
@@ -1298,6 +1490,11 @@ public class XGStatement implements Statement
 					throw e;
 				}
 				passUpCancel(false);
+				if (e instanceof InterruptedIOException)
+				{
+					// timed out, the stream was abandoned and the socket is fine
+					throw e;
+				}
 				reconnect(); // try this at most once--if every node is down, report failure
 				return sendAndReceive(sql, requestType, val, isInMb);
 			}
@@ -1350,9 +1547,11 @@ public class XGStatement implements Statement
 		if(rows == 0) {
 			//switch back to the default settings
 			fetchSize = defaultFetchSize;
+			fetchSizeSet = false;
 		}
 		else {
 			fetchSize = rows;
+			fetchSizeSet = true;
 		}
 	}
 
@@ -0,0 +1,538 @@
+package com.ocient.jdbc.arrow;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.BaseFixedWidthVector;
+import org.apache.arrow.vector.BaseVariableWidthVector;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.DateMilliVector;
+import org.apache.arrow.vector.DecimalVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.FixedSizeBinaryVector;
+import org.apache.arrow.vector.Float4Vector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.SmallIntVector;
+import org.apache.arrow.vector.TimeMilliVector;
+import org.apache.arrow.vector.TimeStampMilliTZVector;
+import org.apache.arrow.vector.TinyIntVector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.VarBinaryVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.complex.StructVector;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.types.DateUnit;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.TimeUnit;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+import com.google.common.base.Charsets;
+import com.ocient.jdbc.SQLStates;
+import com.ocient.jdbc.StPoint;
+import com.ocient.jdbc.XGArray;
+import com.ocient.jdbc.XGBatch;
+import com.ocient.jdbc.XGResultSet;
+
+/*
+ * Exports the rows of an XGResultSet as Apache Arrow record batches.
+ *
+ * Each fetch block becomes one batch. We pull it with XGResultSet.nextBatch() and copy its column
+ * vectors into the VectorSchemaRoot, so numeric, temporal and string columns are never boxed along
+ * the way. The schema comes from the result set metadata, except that the metadata doesn't carry
+ * decimal scales or array element types, so those are taken from the first batch.
+ *
+ *  BYTE, SHORT, INT, LONG  Int(8/16/32/64)
+ *  FLOAT, DOUBLE           FloatingPoint(SINGLE/DOUBLE)
+ *  CHAR                    Utf8
+ *  BINARY                  Binary
+ *  BOOLEAN                 Bool
+ *  TIMESTAMP               Timestamp(MILLISECOND, UTC)
+ *  DATE                    Date(MILLISECOND)
+ *  TIME                    Time(MILLISECOND)
+ *  DECIMAL                 Decimal(38, scale)
+ *  ARRAY                   List of the element type
+ *  UUID, IP                FixedSizeBinary(16), IPv4 addresses are IPv4-mapped
+ *  IPV4                    FixedSizeBinary(4)
+ *  ST_POINT                Struct(lon: Double, lat: Double)
+ *
+ * This is only built with the arrow profile (mvn -Parrow), the driver itself doesn't need Arrow.
+ */
+public class ArrowExporter implements AutoCloseable
+{
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+	private static final int DECIMAL_PRECISION = 38;
+
+	private final XGResultSet rs;
+	private final BufferAllocator allocator;
+	private final XGBatch batch = new XGBatch();
+	private VectorSchemaRoot root;
+
+	public ArrowExporter(final ResultSet rs, final BufferAllocator allocator) throws SQLException
+	{
+		if (!(rs instanceof XGResultSet))
+		{
+			throw SQLStates.INVALID_ARGUMENT.clone();
+		}
+
+		this.rs = (XGResultSet) rs;
+		this.allocator = allocator;
+	}
+
+	/*
+	 * The root that loadNextBatch() fills in, null until the first call
+	 */
+	public VectorSchemaRoot getVectorSchemaRoot()
+	{
+		return root;
+	}
+
+	/*
+	 * Loads the next fetch block into the root. Returns false, leaving the root empty, once there are
+	 * no more rows.
+	 */
+	public boolean loadNextBatch() throws SQLException
+	{
+		final boolean more = rs.nextBatch(batch);
+		if (root == null)
+		{
+			root = VectorSchemaRoot.create(getSchema(more ? batch : null), allocator);
+		}
+
+		root.allocateNew();
+		if (!more)
+		{
+			root.setRowCount(0);
+			return false;
+		}
+
+		final int rows = batch.numRows();
+		final List<FieldVector> vectors = root.getFieldVectors();
+		for (int c = 0; c < vectors.size(); c++)
+		{
+			fill(vectors.get(c), batch.getColumn(c + 1), rows);
+		}
+
+		root.setRowCount(rows);
+		return true;
+	}
+
+	/*
+	 * Writes the rest of the result set to out in the Arrow IPC streaming format, one record batch per
+	 * fetch block, and returns the number of rows written. out is left open.
+	 */
+	public long writeTo(final OutputStream out) throws SQLException, IOException
+	{
+		boolean more = loadNextBatch();
+		final ArrowStreamWriter writer = new ArrowStreamWriter(root, null, out);
+		long rows = 0;
+		writer.start();
+		while (more)
+		{
+			writer.writeBatch();
+			rows += root.getRowCount();
+			more = loadNextBatch();
+		}
+
+		writer.end();
+		return rows;
+	}
+
+	@Override
+	public void close()
+	{
+		if (root != null)
+		{
+			root.close();
+			root = null;
+		}
+	}
+
+	private Schema getSchema(final XGBatch sample) throws SQLException
+	{
+		final ResultSetMetaData meta = rs.getMetaData();
+		final List<Field> fields = new ArrayList<>();
+		for (int c = 1; c <= meta.getColumnCount(); c++)
+		{
+			Object value = null;
+			if (sample != null && sample.getColumn(c).getLayout() == XGBatch.Layout.OBJECT)
+			{
+				value = firstNonNull(Arrays.asList(sample.getColumn(c).getObjects()).subList(0, sample.numRows()));
+			}
+
+			fields.add(getField(meta.getColumnName(c), meta.getColumnTypeName(c), value));
+		}
+
+		return new Schema(fields);
+	}
+
+	/*
+	 * sample is a value from the column, or null if we haven't seen one. It's what tells us the scale
+	 * of a DECIMAL and the element type of an ARRAY.
+	 */
+	private static Field getField(final String name, final String type, final Object sample) throws SQLException
+	{
+		if (type.equals("ARRAY"))
+		{
+			String elementType = "NULL";
+			Object elementSample = null;
+			if (sample instanceof XGArray)
+			{
+				final XGArray array = (XGArray) sample;
+				elementType = getElementTypeName(array.getBaseTypeName());
+				elementSample = firstNonNull(Arrays.asList((Object[]) array.getArray()));
+			}
+
+			return new Field(name, FieldType.nullable(ArrowType.List.INSTANCE),
+					Collections.singletonList(getField("item", elementType, elementSample)));
+		}
+		else if (type.equals("ST_POINT"))
+		{
+			final FieldType coordinate = FieldType.nullable(new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE));
+			return new Field(name, FieldType.nullable(ArrowType.Struct.INSTANCE),
+					Arrays.asList(new Field("lon", coordinate, null), new Field("lat", coordinate, null)));
+		}
+
+		return new Field(name, FieldType.nullable(getArrowType(type, sample)), null);
+	}
+
+	private static ArrowType getArrowType(final String type, final Object sample) throws SQLException
+	{
+		switch (type)
+		{
+			case "BYTE":
+				return new ArrowType.Int(8, true);
+			case "SHORT":
+				return new ArrowType.Int(16, true);
+			case "INT":
+				return new ArrowType.Int(32, true);
+			case "LONG":
+				return new ArrowType.Int(64, true);
+			case "FLOAT":
+				return new ArrowType.FloatingPoint(FloatingPointPrecision.SINGLE);
+			case "DOUBLE":
+				return new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE);
+			case "CHAR":
+				return ArrowType.Utf8.INSTANCE;
+			case "BINARY":
+				return ArrowType.Binary.INSTANCE;
+			case "BOOLEAN":
+				return ArrowType.Bool.INSTANCE;
+			case "TIMESTAMP":
+				return new ArrowType.Timestamp(TimeUnit.MILLISECOND, "UTC");
+			case "DATE":
+				return new ArrowType.Date(DateUnit.MILLISECOND);
+			case "TIME":
+				return new ArrowType.Time(TimeUnit.MILLISECOND, 32);
+			case "DECIMAL":
+			{
+				final int scale = sample instanceof BigDecimal ? Math.max(0, ((BigDecimal) sample).scale()) : 0;
+				return new ArrowType.Decimal(DECIMAL_PRECISION, scale, 128);
+			}
+			case "UUID":
+			case "IP":
+				return new ArrowType.FixedSizeBinary(16);
+			case "IPV4":
+				return new ArrowType.FixedSizeBinary(4);
+			case "NULL":
+				return ArrowType.Null.INSTANCE;
+			default:
+				throw SQLStates.UNKNOWN_DATA_TYPE.clone();
+		}
+	}
+
+	/*
+	 * Maps XGArray.getBaseTypeName() to the type names the metadata uses
+	 */
+	private static String getElementTypeName(final String baseTypeName)
+	{
+		switch (baseTypeName)
+		{
+			case "INTEGER":
+				return "INT";
+			case "BIGINT":
+				return "LONG";
+			case "SMALLINT":
+				return "SHORT";
+			case "VARCHAR":
+				return "CHAR";
+			case "VARBINARY":
+				return "BINARY";
+			default:
+				return baseTypeName;
+		}
+	}
+
+	private static Object firstNonNull(final List<Object> values) throws SQLException
+	{
+		for (final Object value : values)
+		{
+			if (value instanceof XGArray)
+			{
+				// for nested arrays, keep going until we find one that tells us the element type
+				final Object[] elements = (Object[]) ((XGArray) value).getArray();
+				if (firstNonNull(Arrays.asList(elements)) == null)
+				{
+					continue;
+				}
+			}
+
+			if (value != null)
+			{
+				return value;
+			}
+		}
+
+		return null;
+	}
+
+	private static void fill(final FieldVector vector, final XGBatch.Column column, final int rows) throws SQLException
+	{
+		for (int i = 0; i < rows; i++)
+		{
+			if (column.isNull(i))
+			{
+				setNull(vector, i);
+				continue;
+			}
+
+			switch (column.getLayout())
+			{
+				case INT:
+					setLong(vector, i, column.getInts()[i]);
+					break;
+				case LONG:
+					setLong(vector, i, column.getLongs()[i]);
+					break;
+				case DOUBLE:
+					setDouble(vector, i, column.getDoubles()[i]);
+					break;
+				case BYTES:
+				{
+					final int start = column.getOffsets()[i];
+					final int length = column.getOffsets()[i + 1] - start;
+					if (!(vector instanceof BaseVariableWidthVector))
+					{
+						throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
+					}
+
+					((BaseVariableWidthVector) vector).setSafe(i, column.getBytes(), start, length);
+					break;
+				}
+				default:
+					setValue(vector, i, column.getObjects()[i]);
+			}
+		}
+	}
+
+	private static void setNull(final ValueVector vector, final int index)
+	{
+		if (vector instanceof BaseFixedWidthVector)
+		{
+			((BaseFixedWidthVector) vector).setNull(index);
+		}
+		else if (vector instanceof BaseVariableWidthVector)
+		{
+			((BaseVariableWidthVector) vector).setNull(index);
+		}
+		else if (vector instanceof ListVector)
+		{
+			((ListVector) vector).setNull(index);
+		}
+		else if (vector instanceof StructVector)
+		{
+			((StructVector) vector).setNull(index);
+		}
+
+		// a NullVector is nothing but nulls already
+	}
+
+	/*
+	 * Sets an integral or epoch milliseconds value
+	 */
+	private static void setLong(final ValueVector vector, final int index, final long value) throws SQLException
+	{
+		if (vector instanceof IntVector)
+		{
+			((IntVector) vector).setSafe(index, (int) value);
+		}
+		else if (vector instanceof BigIntVector)
+		{
+			((BigIntVector) vector).setSafe(index, value);
+		}
+		else if (vector instanceof SmallIntVector)
+		{
+			((SmallIntVector) vector).setSafe(index, (short) value);
+		}
+		else if (vector instanceof TinyIntVector)
+		{
+			((TinyIntVector) vector).setSafe(index, (byte) value);
+		}
+		else if (vector instanceof TimeStampMilliTZVector)
+		{
+			((TimeStampMilliTZVector) vector).setSafe(index, value);
+		}
+		else if (vector instanceof DateMilliVector)
+		{
+			((DateMilliVector) vector).setSafe(index, value);
+		}
+		else if (vector instanceof TimeMilliVector)
+		{
+			((TimeMilliVector) vector).setSafe(index, (int) Math.floorMod(value, MILLIS_PER_DAY));
+		}
+		else
+		{
+			setDouble(vector, index, value);
+		}
+	}
+
+	private static void setDouble(final ValueVector vector, final int index, final double value) throws SQLException
+	{
+		if (vector instanceof Float8Vector)
+		{
+			((Float8Vector) vector).setSafe(index, value);
+		}
+		else if (vector instanceof Float4Vector)
+		{
+			((Float4Vector) vector).setSafe(index, (float) value);
+		}
+		else
+		{
+			throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
+		}
+	}
+
+	/*
+	 * Sets a value the way getObject() returned it
+	 */
+	private static void setValue(final ValueVector vector, final int index, final Object value) throws SQLException
+	{
+		if (value == null)
+		{
+			setNull(vector, index);
+		}
+		else if (value instanceof Float || value instanceof Double)
+		{
+			setDouble(vector, index, ((Number) value).doubleValue());
+		}
+		else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+		{
+			setLong(vector, index, ((Number) value).longValue());
+		}
+		else if (value instanceof java.util.Date)
+		{
+			setLong(vector, index, ((java.util.Date) value).getTime());
+		}
+		else if (value instanceof Boolean && vector instanceof BitVector)
+		{
+			((BitVector) vector).setSafe(index, ((Boolean) value) ? 1 : 0);
+		}
+		else if (value instanceof BigDecimal && vector instanceof DecimalVector)
+		{
+			final DecimalVector decimals = (DecimalVector) vector;
+			try
+			{
+				decimals.setSafe(index, ((BigDecimal) value).setScale(decimals.getScale(), RoundingMode.UNNECESSARY));
+			}
+			catch (final ArithmeticException e)
+			{
+				throw SQLStates.newGenericException(e);
+			}
+		}
+		else if (value instanceof String && vector instanceof VarCharVector)
+		{
+			((VarCharVector) vector).setSafe(index, ((String) value).getBytes(Charsets.UTF_8));
+		}
+		else if (value instanceof byte[] && vector instanceof VarBinaryVector)
+		{
+			((VarBinaryVector) vector).setSafe(index, (byte[]) value);
+		}
+		else if (vector instanceof FixedSizeBinaryVector)
+		{
+			final FixedSizeBinaryVector binary = (FixedSizeBinaryVector) vector;
+			binary.setSafe(index, getFixedBytes(value, binary.getByteWidth()));
+		}
+		else if (value instanceof StPoint && vector instanceof StructVector)
+		{
+			final StructVector struct = (StructVector) vector;
+			struct.getChild("lon", Float8Vector.class).setSafe(index, ((StPoint) value).getLongitude());
+			struct.getChild("lat", Float8Vector.class).setSafe(index, ((StPoint) value).getLatitude());
+			struct.setIndexDefined(index);
+		}
+		else if (value instanceof XGArray && vector instanceof ListVector)
+		{
+			final ListVector list = (ListVector) vector;
+			final Object[] elements = (Object[]) ((XGArray) value).getArray();
+			final int start = list.startNewValue(index);
+			final FieldVector data = list.getDataVector();
+			for (int i = 0; i < elements.length; i++)
+			{
+				setValue(data, start + i, elements[i]);
+			}
+
+			list.endValue(index, elements.length);
+		}
+		else
+		{
+			throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
+		}
+	}
+
+	private static byte[] getFixedBytes(final Object value, final int width) throws SQLException
+	{
+		byte[] bytes;
+		if (value instanceof UUID)
+		{
+			final UUID uuid = (UUID) value;
+			bytes = ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits())
+					.array();
+		}
+		else if (value instanceof InetAddress)
+		{
+			bytes = ((InetAddress) value).getAddress();
+			if (bytes.length == 4 && width == 16)
+			{
+				// IPv4-mapped IPv6 address
+				final byte[] mapped = new byte[16];
+				mapped[10] = (byte) 0xff;
+				mapped[11] = (byte) 0xff;
+				System.arraycopy(bytes, 0, mapped, 12, 4);
+				bytes = mapped;
+			}
+		}
+		else if (value instanceof byte[])
+		{
+			bytes = (byte[]) value;
+		}
+		else
+		{
+			throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
+		}
+
+		if (bytes.length != width)
+		{
+			throw SQLStates.INVALID_DATA_TYPE_CONVERSION.clone();
+		}
+
+		return bytes;
+	}
+}
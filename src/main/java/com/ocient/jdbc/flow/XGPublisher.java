@@ -0,0 +1,216 @@
+package com.ocient.jdbc.flow;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Spliterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ocient.jdbc.RowMapper;
+import com.ocient.jdbc.SQLStates;
+import com.ocient.jdbc.UncheckedSQLException;
+import com.ocient.jdbc.XGResultSet;
+import com.ocient.jdbc.XGStatement;
+
+/*
+ * Runs a query and publishes its rows, each mapped by a RowMapper, to a Flow.Subscriber.
+ *
+ * Nothing happens until the subscriber asks for rows. Then the query runs and rows are fetched on
+ * the executor, with each FetchData asking for as many rows as are outstanding (up to
+ * MAX_FETCH_SIZE), and handed to onNext() on the executor as well. Between requests no thread
+ * waits on the result set, so the subscriber's threads never block on the server. A fetch still
+ * holds an executor thread while it's on the wire, since the connection itself is blocking.
+ *
+ * A publisher runs its query once, so it takes one subscriber. Cancelling closes the result set.
+ *
+ * This is only built with the flow profile (mvn -Pflow), which needs Java 9 for java.util.concurrent.Flow.
+ */
+public class XGPublisher<T> implements Flow.Publisher<T>
+{
+	// the most rows we ask for in one FetchData, however much the subscriber wants
+	public static final int MAX_FETCH_SIZE = 1000000;
+
+	private final XGStatement stmt;
+	private final String sql;
+	private final RowMapper<T> mapper;
+	private final Executor executor;
+	private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+	/*
+	 * Publishes the rows of sql, run on stmt, on the common pool
+	 */
+	public XGPublisher(final Statement stmt, final String sql, final RowMapper<T> mapper) throws SQLException
+	{
+		this(stmt, sql, mapper, ForkJoinPool.commonPool());
+	}
+
+	public XGPublisher(final Statement stmt, final String sql, final RowMapper<T> mapper, final Executor executor)
+			throws SQLException
+	{
+		if (!(stmt instanceof XGStatement))
+		{
+			throw SQLStates.INVALID_ARGUMENT.clone();
+		}
+
+		this.stmt = (XGStatement) stmt;
+		this.sql = sql;
+		this.mapper = mapper;
+		this.executor = executor;
+	}
+
+	@Override
+	public void subscribe(final Flow.Subscriber<? super T> subscriber)
+	{
+		if (!subscribed.compareAndSet(false, true))
+		{
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(final long n) {}
+
+				@Override
+				public void cancel() {}
+			});
+			subscriber.onError(new IllegalStateException("An XGPublisher can only be subscribed to once"));
+			return;
+		}
+
+		subscriber.onSubscribe(new RowSubscription(subscriber));
+	}
+
+	/*
+	 * All the work happens in run(), which is only ever running on one executor thread at a time.
+	 * request() and cancel() just record what they want and make sure run() is scheduled.
+	 */
+	private class RowSubscription implements Flow.Subscription, Runnable
+	{
+		private final Flow.Subscriber<? super T> subscriber;
+		private final AtomicLong demand = new AtomicLong();
+		// number of times run() was asked for since it last caught up, 0 when it isn't scheduled
+		private final AtomicInteger pending = new AtomicInteger();
+		private volatile boolean cancelled = false;
+		private volatile Throwable badRequest;
+
+		// only touched in run()
+		private boolean done = false;
+		private XGResultSet rs;
+		private Spliterator<T> rows;
+
+		RowSubscription(final Flow.Subscriber<? super T> subscriber)
+		{
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(final long n)
+		{
+			if (n <= 0)
+			{
+				badRequest = new IllegalArgumentException("Subscription.request() needs a positive number, got " + n);
+			}
+			else
+			{
+				demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+			}
+
+			schedule();
+		}
+
+		@Override
+		public void cancel()
+		{
+			cancelled = true;
+			schedule();
+		}
+
+		private void schedule()
+		{
+			if (pending.getAndIncrement() == 0)
+			{
+				executor.execute(this);
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			int missed = 1;
+			do
+			{
+				drain();
+				missed = pending.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		private void drain()
+		{
+			if (done)
+			{
+				return;
+			}
+
+			if (cancelled)
+			{
+				finish();
+				return;
+			}
+
+			if (badRequest != null)
+			{
+				finish();
+				subscriber.onError(badRequest);
+				return;
+			}
+
+			try
+			{
+				while (demand.get() > 0 && !cancelled)
+				{
+					if (rows == null)
+					{
+						rs = (XGResultSet) stmt.executeQuery(sql);
+						rows = rs.stream(mapper).spliterator();
+					}
+
+					// only matters if this tryAdvance() has to fetch
+					rs.setFetchSize((int) Math.min(demand.get(), MAX_FETCH_SIZE));
+					if (!rows.tryAdvance(subscriber::onNext))
+					{
+						finish();
+						subscriber.onComplete();
+						return;
+					}
+
+					demand.decrementAndGet();
+				}
+			}
+			catch (final UncheckedSQLException e)
+			{
+				finish();
+				subscriber.onError(e.getCause());
+			}
+			catch (final SQLException | RuntimeException e)
+			{
+				finish();
+				subscriber.onError(e);
+			}
+		}
+
+		private void finish()
+		{
+			done = true;
+			if (rs != null)
+			{
+				try
+				{
+					rs.close();
+				}
+				catch (final SQLException e)
+				{}
+			}
+		}
+	}
+}
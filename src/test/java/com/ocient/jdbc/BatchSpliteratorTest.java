@@ -0,0 +1,189 @@
+package com.ocient.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import com.ocient.jdbc.FetchBlockTest.Wire;
+import com.ocient.jdbc.proto.ClientWireProtocol;
+import com.ocient.jdbc.proto.ClientWireProtocol.Request;
+
+public class BatchSpliteratorTest
+{
+	static final String SQL = "SELECT ID, NAME FROM T";
+
+	/*
+	 * Answers the query with the given number of fetch blocks of rows rows each. Row i has ID i and
+	 * NAME "n" + i.
+	 */
+	static StandInServer.Script serve(final int blocks, final int rows) {
+		return session -> {
+			session.accept(false, null);
+			final Request query = session.read(Request.RequestType.EXECUTE_QUERY);
+			session.reply(query,
+					ClientWireProtocol.ExecuteQueryResponse.newBuilder().setResponse(StandInServer.ok()).build());
+			final Request metadata = session.read(Request.RequestType.FETCH_METADATA);
+			Request fetch = session.read(Request.RequestType.FETCH_DATA);
+			session.reply(metadata, ClientWireProtocol.FetchMetadataResponse.newBuilder().setResponse(StandInServer.ok())
+					.putCols2Pos("ID", 0).putCols2Types("ID", "INT").putCols2Pos("NAME", 1).putCols2Types("NAME", "CHAR")
+					.build());
+
+			for (int b = 0; b < blocks; b++)
+			{
+				if (b > 0)
+				{
+					fetch = session.read(Request.RequestType.FETCH_DATA);
+				}
+
+				final byte[][] block = new byte[rows][];
+				for (int r = 0; r < rows; r++)
+				{
+					final int id = b * rows + r;
+					block[r] = new Wire().i(id).s("n" + id).toByteArray();
+				}
+
+				final ClientWireProtocol.ResultSet.Builder rs = ClientWireProtocol.ResultSet.newBuilder()
+						.addBlobs(FetchBlockTest.blob(block));
+				if (b == blocks - 1)
+				{
+					rs.addBlobs(FetchBlockTest.blob(new byte[] { 0 }));
+				}
+
+				session.reply(fetch, ClientWireProtocol.FetchDataResponse.newBuilder().setResponse(StandInServer.ok())
+						.setResultSet(rs).build());
+			}
+
+			session.drain();
+		};
+	}
+
+	private static List<Integer> ids(final Spliterator<Integer> split) {
+		final List<Integer> ret = new ArrayList<>();
+		split.forEachRemaining(ret::add);
+		return ret;
+	}
+
+	private static List<Integer> range(final int from, final int to) {
+		final List<Integer> ret = new ArrayList<>();
+		for (int i = from; i < to; i++)
+		{
+			ret.add(i);
+		}
+
+		return ret;
+	}
+
+	@Test
+	public void rootHandsOffWholeBlocks() throws Throwable {
+		try (StandInServer server = new StandInServer(serve(3, 100)))
+		{
+			final XGConnection conn = server.connect();
+			final XGResultSet rs = (XGResultSet) conn.createStatement().executeQuery(SQL);
+			final Spliterator<Integer> root = new BatchSpliterator<>(rs, row -> row.getInt(1));
+			assertEquals(Long.MAX_VALUE, root.estimateSize());
+			assertFalse(root.hasCharacteristics(Spliterator.SIZED));
+
+			for (int b = 0; b < 3; b++)
+			{
+				final Spliterator<Integer> block = root.trySplit();
+				assertNotNull(block);
+				assertEquals(100, block.estimateSize());
+				assertTrue(block.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED));
+				// too small to split again
+				assertNull(block.trySplit());
+				assertEquals(range(b * 100, (b + 1) * 100), ids(block));
+			}
+
+			assertNull(root.trySplit());
+			assertEquals(0, ids(root).size());
+			rs.close();
+			conn.close();
+			server.await();
+		}
+	}
+
+	@Test
+	public void splitsABlockInHalves() throws Throwable {
+		try (StandInServer server = new StandInServer(serve(1, 300)))
+		{
+			final XGConnection conn = server.connect();
+			final XGResultSet rs = (XGResultSet) conn.createStatement().executeQuery(SQL);
+			final Spliterator<Integer> root = new BatchSpliterator<>(rs, row -> row.getInt(1));
+
+			// read a few rows off the root first, the block it hands off starts after them
+			final List<Integer> seen = new ArrayList<>();
+			for (int i = 0; i < 10; i++)
+			{
+				assertTrue(root.tryAdvance(seen::add));
+			}
+			assertEquals(range(0, 10), seen);
+
+			final Spliterator<Integer> block = root.trySplit();
+			assertEquals(290, block.estimateSize());
+			final Spliterator<Integer> firstHalf = block.trySplit();
+			assertEquals(145, firstHalf.estimateSize());
+			assertEquals(145, block.estimateSize());
+			final Spliterator<Integer> quarter = block.trySplit();
+			assertEquals(72, quarter.estimateSize());
+			// 73 rows left, fewer than two halves' worth
+			assertNull(block.trySplit());
+
+			assertEquals(range(10, 155), ids(firstHalf));
+			assertEquals(range(155, 227), ids(quarter));
+			assertEquals(range(227, 300), ids(block));
+			assertNull(root.trySplit());
+			rs.close();
+			conn.close();
+			server.await();
+		}
+	}
+
+	@Test
+	public void parallelStreamLooksUpLabels() throws Throwable {
+		final int blocks = 8;
+		final int rows = 500;
+		try (StandInServer server = new StandInServer(serve(blocks, rows)))
+		{
+			final XGConnection conn = server.connect();
+			final XGResultSet rs = (XGResultSet) conn.createStatement().executeQuery(SQL);
+			// labels that aren't interned, so the workers keep going past the cache and filling it in
+			final List<String> mismatches = rs.stream(row -> {
+				final int id = row.getInt(new String("ID"));
+				final String name = row.getString(new String("NAME"));
+				return name.equals("n" + id) ? null : id + " " + name;
+			}).parallel().filter(s -> s != null).collect(Collectors.toList());
+
+			assertEquals(new ArrayList<String>(), mismatches);
+			assertFalse(rs.next());
+			rs.close();
+			conn.close();
+			server.await();
+		}
+	}
+
+	@Test
+	public void parallelStreamSeesEveryRowOnce() throws Throwable {
+		final int blocks = 6;
+		final int rows = 400;
+		try (StandInServer server = new StandInServer(serve(blocks, rows)))
+		{
+			final XGConnection conn = server.connect();
+			final XGResultSet rs = (XGResultSet) conn.createStatement().executeQuery(SQL);
+			final List<Integer> ids = rs.stream(row -> row.getInt("ID")).parallel().collect(Collectors.toList());
+			// an ordered stream, so they come back in order too
+			assertEquals(range(0, blocks * rows), ids);
+			rs.close();
+			conn.close();
+			server.await();
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.ocient.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+public class BlockStoreTest
+{
+	private static ByteString bytes(final int size, final int fill)
+	{
+		final byte[] ret = new byte[size];
+		Arrays.fill(ret, (byte) fill);
+		return ByteString.copyFrom(ret);
+	}
+
+	private static boolean isMapped(final ByteString blob)
+	{
+		return blob.asReadOnlyByteBuffer().isDirect();
+	}
+
+	@Test
+	public void numbersEntriesAcrossBlocks() throws Exception {
+		final BlockStore store = new BlockStore(1 << 20);
+		store.add(Arrays.asList(bytes(10, 1)), 5, false);
+		// an empty block doesn't get an entry of its own
+		store.add(Arrays.asList(bytes(4, 0)), 0, false);
+		store.add(Arrays.asList(bytes(10, 2), bytes(10, 3)), 7, false);
+		assertFalse(store.isComplete());
+		store.add(Arrays.asList(bytes(10, 4)), 1, true);
+		assertTrue(store.isComplete());
+
+		assertEquals(13, store.numEntries());
+		assertEquals(0, store.start(0));
+		assertEquals(5, store.start(1));
+		assertEquals(12, store.start(2));
+		assertEquals(0, store.find(0));
+		assertEquals(0, store.find(4));
+		assertEquals(1, store.find(5));
+		assertEquals(1, store.find(11));
+		assertEquals(2, store.find(12));
+		assertEquals(2, store.blobs(1).size());
+		store.close();
+	}
+
+	@Test
+	public void copiesBlocksOnTheHeap() throws Exception {
+		final byte[] data = new byte[] { 1, 2, 3 };
+		final BlockStore store = new BlockStore(1 << 20);
+		store.add(Arrays.asList(UnsafeByteOperations.unsafeWrap(data)), 1, false);
+		// the caller reuses its buffer
+		data[0] = 9;
+
+		final ByteString blob = store.blobs(0).get(0);
+		assertEquals(ByteString.copyFrom(new byte[] { 1, 2, 3 }), blob);
+		assertFalse(isMapped(blob));
+		store.close();
+	}
+
+	@Test
+	public void spillsPastTheHeapBudget() throws Exception {
+		final BlockStore store = new BlockStore(100);
+		final List<ByteString> first = Arrays.asList(bytes(60, 1));
+		final List<ByteString> second = Arrays.asList(bytes(30, 2), bytes(20, 3));
+		final List<ByteString> third = Arrays.asList(bytes(40, 4));
+		store.add(first, 1, false);
+		store.add(second, 1, false);
+		// still fits next to the first one
+		store.add(third, 1, false);
+		final List<ByteString> fourth = Arrays.asList(bytes(4096, 5));
+		store.add(fourth, 1, true);
+
+		assertFalse(isMapped(store.blobs(0).get(0)));
+		assertTrue(isMapped(store.blobs(1).get(0)));
+		assertTrue(isMapped(store.blobs(1).get(1)));
+		assertFalse(isMapped(store.blobs(2).get(0)));
+		assertTrue(isMapped(store.blobs(3).get(0)));
+
+		// and the spilled ones read back the same, each from its own part of the file
+		assertEquals(first, store.blobs(0));
+		assertEquals(second, store.blobs(1));
+		assertEquals(third, store.blobs(2));
+		assertEquals(fourth, store.blobs(3));
+		store.close();
+	}
+
+	@Test
+	public void spillsEverythingWithNoHeapBudget() throws Exception {
+		final BlockStore store = new BlockStore(0);
+		store.add(Arrays.asList(bytes(8, 7)), 1, true);
+		assertTrue(isMapped(store.blobs(0).get(0)));
+		assertEquals(bytes(8, 7), store.blobs(0).get(0));
+		store.close();
+	}
+
+	@Test
+	public void scrollsBackIntoSpilledBlocks() throws Throwable {
+		try (StandInServer server = new StandInServer(BatchSpliteratorTest.serve(3, 100)))
+		{
+			final XGConnection conn = server.connect();
+			// about one block's worth, so the second and third end up in the file
+			conn.setScrollHeapBytes(2500);
+			final ResultSet rs = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY)
+					.executeQuery(BatchSpliteratorTest.SQL);
+			assertTrue(rs.last());
+			assertEquals(299, rs.getInt(1));
+			assertEquals(300, rs.getRow());
+
+			assertTrue(rs.absolute(150));
+			assertEquals(149, rs.getInt("ID"));
+			assertEquals("n149", rs.getString("NAME"));
+			assertTrue(rs.previous());
+			assertEquals(148, rs.getInt(1));
+			assertTrue(rs.first());
+			assertEquals("n0", rs.getString(2));
+			assertTrue(rs.relative(250));
+			assertEquals("n250", rs.getString(2));
+			assertTrue(rs.absolute(-1));
+			assertEquals(299, rs.getInt(1));
+			assertFalse(rs.next());
+			assertTrue(rs.isAfterLast());
+
+			rs.close();
+			conn.close();
+			server.await();
+		}
+	}
+}
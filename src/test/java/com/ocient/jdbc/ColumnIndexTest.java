@@ -0,0 +1,126 @@
+package com.ocient.jdbc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class ColumnIndexTest
+{
+	private static Map<String, Integer> cols(final String... labels)
+	{
+		final LinkedHashMap<String, Integer> ret = new LinkedHashMap<>();
+		for (int i = 0; i < labels.length; i++)
+		{
+			ret.put(labels[i], i);
+		}
+
+		return ret;
+	}
+
+	@Test
+	public void findsOneBasedIndexes() {
+		final ColumnIndex index = new ColumnIndex(cols("a", "b", "c"), false);
+		assertEquals(1, index.find("a"));
+		assertEquals(3, index.find("c"));
+		assertEquals(0, index.find("d"));
+		assertEquals(0, index.find(null));
+	}
+
+	@Test
+	public void findsLabelsThatArentInterned() {
+		final ColumnIndex index = new ColumnIndex(cols("name", "value"), false);
+		final String label = new String("value");
+		assertEquals(2, index.find(label));
+		// and again, now that it's cached
+		assertEquals(2, index.find(label));
+		assertEquals(2, index.find(new String("value")));
+	}
+
+	@Test
+	public void matchesCaseOnlyWhenAskedTo() {
+		final ColumnIndex exact = new ColumnIndex(cols("Name"), false);
+		assertEquals(0, exact.find("NAME"));
+
+		final ColumnIndex insensitive = new ColumnIndex(cols("Name"), true);
+		assertEquals(1, insensitive.find("NAME"));
+		assertEquals(1, insensitive.find("name"));
+		assertEquals(1, insensitive.find("Name"));
+	}
+
+	@Test
+	public void exactMatchBeatsCaseInsensitive() {
+		final ColumnIndex index = new ColumnIndex(cols("id", "ID"), true);
+		assertEquals(1, index.find("id"));
+		assertEquals(2, index.find("ID"));
+		// the first of the two wins
+		assertEquals(1, index.find("Id"));
+	}
+
+	@Test
+	public void manyColumns() {
+		final String[] labels = new String[500];
+		for (int i = 0; i < labels.length; i++)
+		{
+			labels[i] = "col" + i;
+		}
+
+		final ColumnIndex index = new ColumnIndex(cols(labels), false);
+		for (int i = 0; i < labels.length; i++)
+		{
+			assertEquals(i + 1, index.find("col" + i));
+		}
+	}
+
+	@Test
+	public void concurrentLookups() throws Exception {
+		final String[] labels = new String[200];
+		for (int i = 0; i < labels.length; i++)
+		{
+			labels[i] = "col" + i;
+		}
+
+		final ColumnIndex index = new ColumnIndex(cols(labels), true);
+		final ExecutorService pool = Executors.newFixedThreadPool(8);
+		try
+		{
+			final List<Future<?>> done = new ArrayList<>();
+			for (int t = 0; t < 8; t++)
+			{
+				final int seed = t;
+				done.add(pool.submit(() -> {
+					// copies, so every thread keeps replacing cache entries with labels of its own
+					final String[] mine = new String[labels.length];
+					for (int i = 0; i < labels.length; i++)
+					{
+						mine[i] = seed % 2 == 0 ? new String(labels[i]) : labels[i].toUpperCase();
+					}
+
+					for (int round = 0; round < 3000; round++)
+					{
+						for (int i = 0; i < mine.length; i++)
+						{
+							assertEquals(i + 1, index.find(mine[i]));
+						}
+					}
+				}));
+			}
+
+			for (final Future<?> f : done)
+			{
+				f.get();
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+}
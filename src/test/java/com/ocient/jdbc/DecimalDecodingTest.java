@@ -0,0 +1,90 @@
+package com.ocient.jdbc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class DecimalDecodingTest
+{
+	/*
+	 * Packs a decimal the way the server does: precision, scale, then the digits two to a byte with
+	 * the sign (0xc or 0xd) in the last nibble. An even number of digits gets a filler nibble first.
+	 */
+	static byte[] bcd(final String digits, final int scale, final boolean negative)
+	{
+		final int precision = digits.length();
+		final StringBuilder nibbles = new StringBuilder();
+		if (precision % 2 == 0)
+		{
+			nibbles.append('0');
+		}
+		nibbles.append(digits).append(negative ? 'd' : 'c');
+
+		final byte[] ret = new byte[2 + XGResultSet.bcdLength(precision)];
+		ret[0] = (byte) precision;
+		ret[1] = (byte) scale;
+		for (int i = 0; i < nibbles.length() / 2; i++)
+		{
+			ret[2 + i] = (byte) Integer.parseInt(nibbles.substring(2 * i, 2 * i + 2), 16);
+		}
+
+		return ret;
+	}
+
+	private static BigDecimal decode(final String digits, final int scale, final boolean negative)
+	{
+		// decode at an offset, as it would be in the middle of a row
+		final byte[] packed = bcd(digits, scale, negative);
+		final ByteBuffer bb = ByteBuffer.allocate(3 + packed.length);
+		bb.position(3);
+		bb.put(packed);
+		return XGResultSet.getDecimalFromBuffer(bb, 3);
+	}
+
+	@Test
+	public void bcdLengthCountsTheSignNibble() {
+		assertEquals(1, XGResultSet.bcdLength(1));
+		assertEquals(2, XGResultSet.bcdLength(2));
+		assertEquals(2, XGResultSet.bcdLength(3));
+		assertEquals(3, XGResultSet.bcdLength(4));
+		assertEquals(19, XGResultSet.bcdLength(37));
+		assertEquals(20, XGResultSet.bcdLength(38));
+	}
+
+	@Test
+	public void decodesOddAndEvenPrecision() {
+		assertEquals(new BigDecimal("123.45"), decode("12345", 2, false));
+		assertEquals(new BigDecimal("12.34"), decode("1234", 2, false));
+		assertEquals(new BigDecimal("-0.0001"), decode("0001", 4, true));
+		assertEquals(new BigDecimal("7"), decode("7", 0, false));
+	}
+
+	@Test
+	public void keepsTheScale() {
+		// exact, so 1.10 doesn't come back as 1.1
+		final BigDecimal val = decode("110", 2, false);
+		assertEquals(2, val.scale());
+		assertEquals("1.10", val.toPlainString());
+	}
+
+	@Test
+	public void decodesPastLongPrecision() {
+		final String digits = "12345678901234567890123456789012345678";
+		assertEquals(new BigDecimal("1234567890123456789.0123456789012345678"), decode(digits, 19, false));
+		assertEquals(new BigDecimal("-" + digits), decode(digits, 0, true));
+
+		// right at the boundary between the two decoders
+		assertEquals(new BigDecimal("123456789012345678"), decode("123456789012345678", 0, false));
+		assertEquals(new BigDecimal("-1234567890123456789"), decode("1234567890123456789", 0, true));
+	}
+
+	@Test
+	public void negativeScaleComesBackAsAnInteger() {
+		final BigDecimal val = decode("12", -3, false);
+		assertEquals(0, val.scale());
+		assertEquals(new BigDecimal("12000"), val);
+	}
+}
@@ -0,0 +1,230 @@
+package com.ocient.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+public class FetchBlockTest
+{
+	/*
+	 * Builds values the way the server puts them in a blob: a type tag, then the value
+	 */
+	static class Wire
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+
+		Wire tag(final int type) throws IOException
+		{
+			out.writeByte(type);
+			return this;
+		}
+
+		Wire i(final int val) throws IOException
+		{
+			out.writeByte(1);
+			out.writeInt(val);
+			return this;
+		}
+
+		Wire l(final long val) throws IOException
+		{
+			out.writeByte(2);
+			out.writeLong(val);
+			return this;
+		}
+
+		Wire d(final double val) throws IOException
+		{
+			out.writeByte(4);
+			out.writeDouble(val);
+			return this;
+		}
+
+		Wire s(final String val) throws IOException
+		{
+			final byte[] utf8 = val.getBytes(StandardCharsets.UTF_8);
+			out.writeByte(5);
+			out.writeInt(utf8.length);
+			out.write(utf8);
+			return this;
+		}
+
+		Wire nul() throws IOException
+		{
+			out.writeByte(7);
+			return this;
+		}
+
+		Wire raw(final byte[] val) throws IOException
+		{
+			out.write(val);
+			return this;
+		}
+
+		byte[] toByteArray()
+		{
+			return bytes.toByteArray();
+		}
+
+		ByteBuffer buffer()
+		{
+			return ByteBuffer.wrap(toByteArray());
+		}
+	}
+
+	/*
+	 * A blob holding the given rows, each already in wire format
+	 */
+	static ByteString blob(final byte[]... rows) throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(rows.length);
+		for (final byte[] row : rows)
+		{
+			out.writeInt(4 + row.length);
+			out.write(row);
+		}
+
+		return ByteString.copyFrom(bytes.toByteArray());
+	}
+
+	@Test
+	public void skipsFixedWidthValues() throws Exception {
+		final int[][] widths = { { 7, 0 }, { 8, 1 }, { 10, 1 }, { 11, 2 }, { 1, 4 }, { 3, 4 }, { 18, 4 }, { 2, 8 },
+				{ 4, 8 }, { 6, 8 }, { 12, 8 }, { 19, 8 }, { 15, 16 }, { 16, 16 }, { 17, 16 } };
+		for (final int[] width : widths)
+		{
+			final ByteBuffer bb = new Wire().tag(width[0]).raw(new byte[width[1]]).tag(7).buffer();
+			assertEquals("type " + width[0], 1 + width[1], FetchBlock.skipValue(bb, 0));
+		}
+	}
+
+	@Test
+	public void skipsStringsAndBinary() throws Exception {
+		final ByteBuffer bb = new Wire().s("h\u00e9llo").tag(9).raw(new byte[] { 0, 0, 0, 2, 1, 2 }).buffer();
+		final int next = FetchBlock.skipValue(bb, 0);
+		assertEquals(1 + 4 + "h\u00e9llo".getBytes(StandardCharsets.UTF_8).length, next);
+		assertEquals(bb.limit(), FetchBlock.skipValue(bb, next));
+	}
+
+	@Test
+	public void skipsDecimals() throws Exception {
+		// precision 5 packs into 3 bytes, precision 4 into 3 as well (a filler nibble up front)
+		final ByteBuffer odd = new Wire().tag(13).raw(new byte[] { 5, 2, 0x12, 0x34, 0x5c }).buffer();
+		assertEquals(odd.limit(), FetchBlock.skipValue(odd, 0));
+		final ByteBuffer even = new Wire().tag(13).raw(new byte[] { 4, 0, 0x01, 0x23, 0x4d }).buffer();
+		assertEquals(even.limit(), FetchBlock.skipValue(even, 0));
+	}
+
+	@Test
+	public void skipsArrays() throws Exception {
+		// ARRAY of INT: tag, element type, count, null byte, elements
+		final Wire flat = new Wire().tag(14).tag(1);
+		flat.out.writeInt(2);
+		flat.out.writeByte(0);
+		flat.i(1).i(2);
+		assertEquals(flat.toByteArray().length, FetchBlock.skipValue(flat.buffer(), 0));
+
+		// ARRAY of ARRAY of STRING, with the inner arrays each one count, null byte and elements
+		final Wire nested = new Wire().tag(14).tag(14).tag(5);
+		nested.out.writeInt(2);
+		nested.out.writeByte(0);
+		nested.out.writeInt(1);
+		nested.out.writeByte(0);
+		nested.s("a");
+		nested.out.writeInt(0);
+		nested.out.writeByte(0);
+		assertEquals(nested.toByteArray().length, FetchBlock.skipValue(nested.buffer(), 0));
+
+		// a null array is just the count and the null byte
+		final Wire nul = new Wire().tag(14).tag(1);
+		nul.out.writeInt(3);
+		nul.out.writeByte(1);
+		assertEquals(nul.toByteArray().length, FetchBlock.skipValue(nul.buffer(), 0));
+	}
+
+	@Test
+	public void skipArrayStartsAtTheCount() throws Exception {
+		final Wire wire = new Wire();
+		wire.out.writeInt(1);
+		wire.out.writeByte(0);
+		wire.d(1.5);
+		assertEquals(wire.toByteArray().length, FetchBlock.skipArray(wire.buffer(), 0, 1));
+	}
+
+	@Test
+	public void rejectsUnknownTypes() throws Exception {
+		try
+		{
+			FetchBlock.skipValue(new Wire().tag(99).buffer(), 0);
+			fail();
+		}
+		catch (final SQLException e)
+		{
+			assertTrue(SQLStates.INVALID_COLUMN_TYPE.equals(e));
+		}
+	}
+
+	@Test
+	public void indexesRowsAndVectors() throws Exception {
+		final byte[] row1 = new Wire().i(7).s("x").l(1L << 40).toByteArray();
+		final byte[] row2 = new Wire().nul().s("yz").l(-1).toByteArray();
+		final byte[] row3 = new Wire().i(-3).nul().nul().toByteArray();
+		final FetchBlock block = new FetchBlock(Arrays.asList(blob(row1, row2), blob(row3)), new byte[] { 1, 5, 2 });
+
+		assertEquals(3, block.numRows());
+		assertEquals(3, block.size());
+		assertFalse(block.isDataEnd(2));
+		assertTrue(block.isPrimitive(0));
+		assertFalse(block.isPrimitive(1));
+		assertTrue(block.isPrimitive(2));
+
+		assertEquals(7, block.getInt(0, 0));
+		assertTrue(block.isNull(1, 0));
+		assertEquals(-3, block.getInt(2, 0));
+		assertEquals(1L << 40, block.getLong(0, 2));
+		assertEquals(-1L, block.getLong(1, 2));
+		assertTrue(block.isNull(2, 2));
+
+		// the STRING column is left in the buffer, at the offset of its tag
+		final ByteBuffer bb = block.buffer(1);
+		final int offset = block.offset(1, 1);
+		assertEquals(5, bb.get(offset));
+		assertEquals(2, bb.getInt(offset + 1));
+		assertEquals(3, block.numColumns(1));
+	}
+
+	@Test
+	public void countsTheEndOfData() throws Exception {
+		final FetchBlock block = new FetchBlock(
+				Arrays.asList(blob(new Wire().i(1).toByteArray()), blob(new byte[] { 0 })), new byte[] { 1 });
+		assertEquals(1, block.numRows());
+		assertEquals(2, block.size());
+		assertTrue(block.isDataEnd(1));
+	}
+
+	@Test
+	public void dropsTheVectorWhenTypesDisagree() throws Exception {
+		// the metadata said INT, the server sent a LONG
+		final byte[] row1 = new Wire().i(1).toByteArray();
+		final byte[] row2 = new Wire().l(2).toByteArray();
+		final FetchBlock block = new FetchBlock(Arrays.asList(blob(row1, row2)), new byte[] { 1 });
+		assertEquals(2, block.numRows());
+		assertFalse(block.isPrimitive(0));
+	}
+}
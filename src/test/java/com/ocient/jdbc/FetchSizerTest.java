@@ -0,0 +1,87 @@
+package com.ocient.jdbc;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class FetchSizerTest
+{
+	private static final long FAST = 1000L * 1000;
+	private static final long SLOW = 1000L * 1000 * 1000;
+
+	@Test
+	public void startsSmall() {
+		assertEquals(FetchSizer.INITIAL_ROWS, new FetchSizer(64 << 20).nextFetchSize());
+	}
+
+	@Test
+	public void asksForEverythingWhenTheEstimateFits() {
+		final FetchSizer sizer = new FetchSizer(64 << 20);
+		sizer.setEstimatedSizeInBytes(1 << 20);
+		assertEquals(FetchSizer.MAX_ROWS, sizer.nextFetchSize());
+	}
+
+	@Test
+	public void ignoresEstimatesThatDontFitOrComeLate() {
+		final FetchSizer big = new FetchSizer(1 << 20);
+		big.setEstimatedSizeInBytes(2 << 20);
+		assertEquals(FetchSizer.INITIAL_ROWS, big.nextFetchSize());
+
+		final FetchSizer none = new FetchSizer(1 << 20);
+		none.setEstimatedSizeInBytes(0);
+		assertEquals(FetchSizer.INITIAL_ROWS, none.nextFetchSize());
+
+		final FetchSizer late = new FetchSizer(64 << 20);
+		late.observe(1000, 100 * 1000, FAST);
+		final int size = late.nextFetchSize();
+		late.setEstimatedSizeInBytes(1 << 20);
+		assertEquals(size, late.nextFetchSize());
+	}
+
+	@Test
+	public void growsFasterWhileFetchesAreCheap() {
+		// 100 bytes a row against a 64 MB target, nowhere near the goal yet
+		final FetchSizer fast = new FetchSizer(64 << 20);
+		fast.observe(1000, 100 * 1000, FAST);
+		assertEquals(4000, fast.nextFetchSize());
+
+		final FetchSizer slow = new FetchSizer(64 << 20);
+		slow.observe(1000, 100 * 1000, SLOW);
+		assertEquals(2000, slow.nextFetchSize());
+	}
+
+	@Test
+	public void stopsAtTheTarget() {
+		// 1 KB rows, a 1 MB target, so 1024 rows a block
+		final FetchSizer sizer = new FetchSizer(1 << 20);
+		sizer.observe(1000, 1000 * 1024, FAST);
+		assertEquals(1024, sizer.nextFetchSize());
+		sizer.observe(1024, 1024 * 1024, FAST);
+		assertEquals(1024, sizer.nextFetchSize());
+	}
+
+	@Test
+	public void shrinksRightAwayForWideRows() {
+		final FetchSizer sizer = new FetchSizer(1 << 20);
+		sizer.observe(1000, 10 * 1000 * 1024, FAST);
+		assertEquals(102, sizer.nextFetchSize());
+	}
+
+	@Test
+	public void pingsDontCount() {
+		final FetchSizer sizer = new FetchSizer(64 << 20);
+		sizer.observe(0, 20, FAST);
+		assertEquals(FetchSizer.INITIAL_ROWS, sizer.nextFetchSize());
+	}
+
+	@Test
+	public void neverAsksForMoreThanTheMaximum() {
+		final FetchSizer sizer = new FetchSizer(Long.MAX_VALUE);
+		for (int i = 0; i < 20; i++)
+		{
+			sizer.observe(sizer.nextFetchSize(), sizer.nextFetchSize(), FAST);
+		}
+
+		assertEquals(FetchSizer.MAX_ROWS, sizer.nextFetchSize());
+	}
+}
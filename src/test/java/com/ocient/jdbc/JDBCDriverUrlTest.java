@@ -0,0 +1,143 @@
+package com.ocient.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import com.ocient.jdbc.proto.ClientWireProtocol.Request;
+
+public class JDBCDriverUrlTest
+{
+	private static void assertParses(final String hosts, final String[] hostnames, final Integer[] portNums)
+			throws SQLException {
+		final ArrayList<String> names = new ArrayList<>();
+		final ArrayList<Integer> ports = new ArrayList<>();
+		JDBCDriver.parseHosts(hosts, names, ports);
+		assertEquals(Arrays.asList(hostnames), names);
+		assertEquals(Arrays.asList(portNums), ports);
+	}
+
+	private static void assertMalformed(final String hosts) {
+		try
+		{
+			JDBCDriver.parseHosts(hosts, new ArrayList<>(), new ArrayList<>());
+			fail(hosts);
+		}
+		catch (final SQLException e)
+		{
+			assertTrue(hosts, SQLStates.MALFORMED_URL.equals(e));
+		}
+	}
+
+	@Test
+	public void parsesOneHost() throws SQLException {
+		assertParses("localhost:4050", new String[] { "localhost" }, new Integer[] { 4050 });
+	}
+
+	@Test
+	public void parsesSeveralHostsInOrder() throws SQLException {
+		assertParses("h1:4050,10.0.0.2:4051,h3:4052", new String[] { "h1", "10.0.0.2", "h3" },
+				new Integer[] { 4050, 4051, 4052 });
+	}
+
+	@Test
+	public void splitsOnTheLastColon() throws SQLException {
+		assertParses("[::1]:4050", new String[] { "[::1]" }, new Integer[] { 4050 });
+	}
+
+	@Test
+	public void rejectsMissingOrBadPorts() {
+		assertMalformed("localhost");
+		assertMalformed(":4050");
+		assertMalformed("h1:4050,h2");
+		assertMalformed("h1:port");
+	}
+
+	@Test
+	public void ignoresATrailingComma() throws SQLException {
+		assertParses("h1:4050,", new String[] { "h1" }, new Integer[] { 4050 });
+	}
+
+	@Test
+	public void connectLeavesOtherUrlsAlone() throws SQLException {
+		assertNull(new JDBCDriver().connect("jdbc:postgresql://localhost:5432/db", new Properties()));
+	}
+
+	@Test
+	public void connectRejectsAUrlWithoutADatabase() {
+		try
+		{
+			new JDBCDriver().connect("jdbc:ocient://h1:4050,h2:4050", new Properties());
+			fail();
+		}
+		catch (final SQLException e)
+		{
+			assertTrue(SQLStates.MALFORMED_URL.equals(e));
+		}
+	}
+
+	private static Properties login()
+	{
+		final Properties props = new Properties();
+		props.setProperty("user", StandInServer.USER);
+		props.setProperty("password", StandInServer.PWD);
+		return props;
+	}
+
+	@Test
+	public void connectChecksNumbersBeforeConnecting() throws Exception {
+		// nothing listens on this port, so getting as far as connecting would fail differently
+		final int port;
+		try (ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress()))
+		{
+			port = closed.getLocalPort();
+		}
+
+		final Properties props = login();
+		props.setProperty("prefetch", "lots");
+		try
+		{
+			new JDBCDriver().connect("jdbc:ocient://127.0.0.1:" + port + "/" + StandInServer.DATABASE, props);
+			fail();
+		}
+		catch (final SQLException e)
+		{
+			assertTrue(SQLStates.INVALID_ARGUMENT.equals(e));
+		}
+	}
+
+	@Test
+	public void connectClosesTheConnectionOnABadSetting() throws Throwable {
+		try (StandInServer server = new StandInServer(session -> {
+			session.accept(false, null);
+			// hung up on rather than left open
+			session.read(Request.RequestType.CLOSE_CONNECTION);
+		}))
+		{
+			final Properties props = login();
+			props.setProperty("decodethreads", "-1");
+			try
+			{
+				new JDBCDriver().connect(
+						"jdbc:ocient://127.0.0.1:" + server.getPort() + "/" + StandInServer.DATABASE, props);
+				fail();
+			}
+			catch (final SQLException e)
+			{
+				assertTrue(SQLStates.INVALID_ARGUMENT.equals(e));
+			}
+
+			server.await();
+		}
+	}
+}
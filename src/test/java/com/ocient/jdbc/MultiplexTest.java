@@ -0,0 +1,111 @@
+package com.ocient.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.junit.Test;
+
+import com.ocient.jdbc.FetchBlockTest.Wire;
+import com.ocient.jdbc.proto.ClientWireProtocol;
+import com.ocient.jdbc.proto.ClientWireProtocol.LoadBroadcast;
+import com.ocient.jdbc.proto.ClientWireProtocol.Request;
+
+public class MultiplexTest
+{
+	private static ClientWireProtocol.ExecuteUpdateResponse updated(final int rows)
+	{
+		return ClientWireProtocol.ExecuteUpdateResponse.newBuilder().setResponse(StandInServer.ok())
+				.setUpdateRowCount(rows).build();
+	}
+
+	/*
+	 * Everything up to ClientConnection2, checking the driver offers to multiplex
+	 */
+	private static void offered(final StandInServer.Session session) throws Exception {
+		session.readHello();
+		session.sendKey(false);
+		final ClientWireProtocol.ClientConnection2 hello2 = session.readHello2();
+		assertTrue(hello2.getMultiplex());
+		session.agree(hello2);
+	}
+
+	@Test
+	public void staysOnOneStreamWhenTheServerDeclines() throws Throwable {
+		try (StandInServer server = new StandInServer(session -> {
+			offered(session);
+			session.welcome(false, null);
+
+			final Request update = session.read(Request.RequestType.EXECUTE_UPDATE);
+			assertEquals(0, update.getStreamId());
+			// no stream header on the response either
+			session.reply(update, updated(3));
+			session.drain();
+		}))
+		{
+			final XGConnection conn = server.connect();
+			assertNull(conn.getDemultiplexer());
+			assertEquals(3, conn.createStatement().executeUpdate("INSERT INTO T VALUES (1)"));
+			conn.close();
+			server.await();
+		}
+	}
+
+	@Test
+	public void routesResponsesByTheStreamHeader() throws Throwable {
+		try (StandInServer server = new StandInServer(session -> {
+			offered(session);
+			session.welcome(true, null);
+
+			// a query whose result set stays open
+			final Request query = session.read(Request.RequestType.EXECUTE_QUERY);
+			final int queryStream = query.getStreamId();
+			assertNotEquals(0, queryStream);
+			session.reply(query,
+					ClientWireProtocol.ExecuteQueryResponse.newBuilder().setResponse(StandInServer.ok()).build());
+			final Request metadata = session.read(Request.RequestType.FETCH_METADATA);
+			final Request fetch = session.read(Request.RequestType.FETCH_DATA);
+			assertEquals(queryStream, fetch.getStreamId());
+			session.reply(metadata, ClientWireProtocol.FetchMetadataResponse.newBuilder()
+					.setResponse(StandInServer.ok()).putCols2Pos("C1", 0).putCols2Types("C1", "INT").build());
+
+			// while another statement runs an update on a stream of its own
+			final Request update = session.read(Request.RequestType.EXECUTE_UPDATE);
+			assertNotEquals(0, update.getStreamId());
+			assertNotEquals(queryStream, update.getStreamId());
+
+			// ahead of the update's response: a push, a stream no one has opened, then the fetch
+			session.write(Demultiplexer.PUSH_STREAM, Request.newBuilder().setType(Request.RequestType.LOAD_BROADCAST)
+					.setLoadBroadcast(LoadBroadcast.newBuilder().setCmdcompId("127.0.0.1:4050").setLoad(0.5)).build());
+			session.write(999, updated(1));
+			final ClientWireProtocol.ResultSet rs = ClientWireProtocol.ResultSet.newBuilder()
+					.addBlobs(FetchBlockTest.blob(new Wire().i(42).toByteArray()))
+					.addBlobs(FetchBlockTest.blob(new byte[] { 0 })).build();
+			session.reply(fetch, ClientWireProtocol.FetchDataResponse.newBuilder().setResponse(StandInServer.ok())
+					.setResultSet(rs).build());
+			session.reply(update, updated(7));
+			session.drain();
+		}))
+		{
+			final XGConnection conn = server.connect();
+			assertNotNull(conn.getDemultiplexer());
+			final Statement queries = conn.createStatement();
+			final ResultSet rs = queries.executeQuery("SELECT C1 FROM T");
+
+			assertEquals(7, conn.createStatement().executeUpdate("INSERT INTO T VALUES (1)"));
+
+			assertTrue(rs.next());
+			assertEquals(42, rs.getInt(1));
+			assertFalse(rs.next());
+			rs.close();
+			conn.close();
+			server.await();
+		}
+	}
+}
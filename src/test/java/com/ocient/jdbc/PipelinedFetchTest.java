@@ -0,0 +1,106 @@
+package com.ocient.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.ResultSet;
+
+import org.junit.Test;
+
+import com.ocient.jdbc.FetchBlockTest.Wire;
+import com.ocient.jdbc.proto.ClientWireProtocol;
+import com.ocient.jdbc.proto.ClientWireProtocol.Request;
+import com.ocient.jdbc.proto.PlanProtocol.PlanHeader;
+import com.ocient.jdbc.proto.PlanProtocol.PlanMessage;
+
+public class PipelinedFetchTest
+{
+	private static final String SQL = "SELECT C1 FROM T";
+
+	/*
+	 * Runs the query from FetchMetadata on and checks the first FetchData asked for fetchSize rows
+	 */
+	private static void serveQuery(final StandInServer.Session session, final int fetchSize) throws Exception {
+		final Request query = session.read(Request.RequestType.EXECUTE_QUERY);
+		assertEquals(SQL, query.getExecuteQuery().getSql());
+		session.reply(query, ClientWireProtocol.ExecuteQueryResponse.newBuilder().setResponse(StandInServer.ok()).build());
+
+		// the FetchData is already here, before we've answered the FetchMetadata
+		final Request metadata = session.read(Request.RequestType.FETCH_METADATA);
+		final Request fetch = session.read(Request.RequestType.FETCH_DATA);
+		assertEquals(fetchSize, fetch.getFetchData().getFetchSize());
+
+		session.reply(metadata, ClientWireProtocol.FetchMetadataResponse.newBuilder().setResponse(StandInServer.ok())
+				.putCols2Pos("C1", 0).putCols2Types("C1", "INT").build());
+		final ClientWireProtocol.ResultSet rs = ClientWireProtocol.ResultSet.newBuilder()
+				.addBlobs(FetchBlockTest.blob(new Wire().i(1).toByteArray(), new Wire().i(2).toByteArray()))
+				.addBlobs(FetchBlockTest.blob(new byte[] { 0 })).build();
+		session.reply(fetch, ClientWireProtocol.FetchDataResponse.newBuilder().setResponse(StandInServer.ok())
+				.setResultSet(rs).build());
+		session.drain();
+	}
+
+	private static void readRows(final ResultSet rs) throws Exception {
+		assertTrue(rs.next());
+		assertEquals(1, rs.getInt(1));
+		assertTrue(rs.next());
+		assertEquals(2, rs.getInt("C1"));
+		assertFalse(rs.next());
+		rs.close();
+	}
+
+	@Test
+	public void firstFetchGoesOutWithTheMetadata() throws Throwable {
+		try (StandInServer server = new StandInServer(session -> {
+			session.accept(false, null);
+			serveQuery(session, 250);
+		}))
+		{
+			final XGConnection conn = server.connect();
+			final XGStatement stmt = (XGStatement) conn.createStatement();
+			stmt.setFetchSize(250);
+			readRows(stmt.executeQuery(SQL));
+			conn.close();
+			server.await();
+		}
+	}
+
+	@Test
+	public void firstFetchUsesTheExplainEstimate() throws Throwable {
+		try (StandInServer server = new StandInServer(session -> {
+			session.accept(false, null);
+			final Request explain = session.read(Request.RequestType.EXECUTE_EXPLAIN);
+			final PlanMessage plan = PlanMessage.newBuilder()
+					.setHeader(PlanHeader.newBuilder().setRsSizeInBytes(4096)).build();
+			session.reply(explain, ClientWireProtocol.ExplainResponse.newBuilder().setResponse(StandInServer.ok())
+					.setPlan(plan).build());
+			// small enough to take in one go
+			serveQuery(session, FetchSizer.MAX_ROWS);
+		}))
+		{
+			final XGConnection conn = server.connect();
+			conn.setFetchTargetBytes(1 << 20);
+			final XGStatement stmt = (XGStatement) conn.createStatement();
+			stmt.explain(SQL);
+			readRows(stmt.executeQuery(SQL));
+			conn.close();
+			server.await();
+		}
+	}
+
+	@Test
+	public void firstFetchStartsSmallWithoutAnEstimate() throws Throwable {
+		try (StandInServer server = new StandInServer(session -> {
+			session.accept(false, null);
+			serveQuery(session, FetchSizer.INITIAL_ROWS);
+		}))
+		{
+			final XGConnection conn = server.connect();
+			conn.setFetchTargetBytes(1 << 20);
+			readRows(conn.createStatement().executeQuery(SQL));
+			conn.close();
+			server.await();
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package com.ocient.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.protobuf.ByteString;
+import com.ocient.jdbc.proto.ClientWireProtocol;
+
+public class QueryCacheTest
+{
+	private static final Map<String, Integer> COLS2POS = Collections.singletonMap("C1", 0);
+	private static final Map<String, String> COLS2TYPES = Collections.singletonMap("C1", "INT");
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private static String key(final String sql)
+	{
+		return QueryCache.key("user", "db", "sys", 0, sql);
+	}
+
+	private static ByteString blob(final int size, final int fill)
+	{
+		final byte[] ret = new byte[size];
+		Arrays.fill(ret, (byte) fill);
+		return ByteString.copyFrom(ret);
+	}
+
+	/*
+	 * Records a result of one blob of the given size, as if it had been fetched in one go
+	 */
+	private static void put(final QueryCache cache, final String key, final String database, final int size)
+	{
+		final QueryCache.Recorder recorder = cache.record(key, database, COLS2POS, COLS2TYPES);
+		recorder.add(ClientWireProtocol.ResultSet.newBuilder().addBlobs(blob(size, size)).build(), true);
+	}
+
+	private static String[] files(final File dir)
+	{
+		final String[] ret = dir.list((d, name) -> name.endsWith(".rcache"));
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	/*
+	 * The file a key is kept in, the hex SHA-256 of the key
+	 */
+	private static File file(final File dir, final String key) throws Exception
+	{
+		final StringBuilder name = new StringBuilder();
+		for (final byte b : MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8)))
+		{
+			name.append(String.format("%02x", b));
+		}
+
+		return new File(dir, name.append(".rcache").toString());
+	}
+
+	@Test
+	public void keyCollapsesWhitespace() {
+		assertEquals(key("select a, b from t"), key("  select\ta,\n  b\r\nfrom   t "));
+		// but not inside quotes
+		assertNotEquals(key("select 'a  b' from t"), key("select 'a b' from t"));
+		assertNotEquals(key("select \"a  b\" from t"), key("select \"a b\" from t"));
+		// nor where there was none
+		assertNotEquals(key("select a,b from t"), key("select a, b from t"));
+	}
+
+	@Test
+	public void keySkipsComments() {
+		// a comment counts as whitespace
+		assertEquals(key("select a , b from t"), key("select a -- the first\n, b from t"));
+		assertEquals(key("select a , b from t"), key("select a /* the first */ , b /*\n*/from t"));
+		assertEquals(key("select a from t"), key("select a/**/from t"));
+		// a line comment runs to the end of the line, so here it swallows the rest of the query
+		assertNotEquals(key("select a -- x\n, b from t"), key("select a -- x , b from t"));
+		assertEquals(key("select a"), key("select a -- x , b from t"));
+		assertEquals(key("select a"), key("select a /* never closed"));
+		// and inside quotes it's not a comment at all
+		assertNotEquals(key("select '--' from t"), key("select '' from t"));
+		assertNotEquals(key("select '/* */' from t"), key("select '' from t"));
+	}
+
+	@Test
+	public void keyTellsSessionsApart() {
+		final String sql = "select a from t";
+		final String key = QueryCache.key("user", "db", "sys", 0, sql);
+		assertNotEquals(key, QueryCache.key("other", "db", "sys", 0, sql));
+		assertNotEquals(key, QueryCache.key("user", "db2", "sys", 0, sql));
+		assertNotEquals(key, QueryCache.key("user", "db", "other", 0, sql));
+		assertNotEquals(key, QueryCache.key("user", "db", "sys", 1, sql));
+	}
+
+	@Test
+	public void evictsTheLeastRecentlyUsed() throws Exception {
+		final QueryCache cache = new QueryCache(300, 0, null);
+		put(cache, "a", "db", 100);
+		put(cache, "b", "db", 100);
+		put(cache, "c", "db", 100);
+		assertEquals(3, cache.getSize());
+		assertEquals(300, cache.getBytes());
+
+		// a is now the most recently used, so b goes
+		assertNotNull(cache.get("a"));
+		put(cache, "d", "db", 100);
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+		assertNotNull(cache.get("d"));
+		assertEquals(1, cache.getEvictions());
+		assertEquals(300, cache.getBytes());
+		assertEquals(4, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		// a result bigger than the whole cache isn't kept at all
+		put(cache, "e", "db", 301);
+		assertNull(cache.get("e"));
+		assertEquals(3, cache.getSize());
+	}
+
+	@Test
+	public void expiresAfterTheTtl() throws Exception {
+		final QueryCache cache = new QueryCache(1000, 100, null);
+		put(cache, "a", "db", 10);
+		final QueryCache.Result hit = cache.get("a");
+		assertNotNull(hit);
+		assertEquals(COLS2TYPES, hit.getCols2Types());
+		assertEquals(blob(10, 10), hit.getBlobs().get(0));
+
+		Thread.sleep(200);
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.getSize());
+		assertEquals(0, cache.getBytes());
+	}
+
+	@Test
+	public void invalidatesByDatabase() throws Exception {
+		final File dir = folder.newFolder();
+		final QueryCache cache = new QueryCache(1000, 0, dir.getPath());
+		put(cache, "a", "db", 10);
+		put(cache, "b", "other", 10);
+		assertEquals(2, files(dir).length);
+
+		cache.invalidate("db");
+		assertNull(cache.get("a"));
+		assertNotNull(cache.get("b"));
+		assertEquals(1, files(dir).length);
+
+		cache.invalidateAll();
+		assertNull(cache.get("b"));
+		assertEquals(0, files(dir).length);
+	}
+
+	@Test
+	public void readsBackFromDisk() throws Exception {
+		final File dir = folder.newFolder();
+		put(new QueryCache(1000, 0, dir.getPath()), "a", "db", 50);
+
+		// as if the JVM had restarted
+		final QueryCache cache = new QueryCache(1000, 0, dir.getPath());
+		final QueryCache.Result hit = cache.get("a");
+		assertNotNull(hit);
+		assertEquals(COLS2POS, hit.getCols2Pos());
+		assertEquals(COLS2TYPES, hit.getCols2Types());
+		assertEquals(blob(50, 50), hit.getBlobs().get(0));
+		// mapped, not copied
+		assertTrue(hit.getBlobs().get(0).asReadOnlyByteBuffer().isDirect());
+		assertEquals(1, cache.getSize());
+		assertNull(cache.get("b"));
+	}
+
+	@Test
+	public void expiredFilesAreDeleted() throws Exception {
+		final File dir = folder.newFolder();
+		put(new QueryCache(1000, 100, dir.getPath()), "a", "db", 10);
+		Thread.sleep(200);
+		assertNull(new QueryCache(1000, 100, dir.getPath()).get("a"));
+		assertEquals(0, files(dir).length);
+	}
+
+	@Test
+	public void boundsTheDirectory() throws Exception {
+		final File dir = folder.newFolder();
+		final QueryCache cache = new QueryCache(1000, 0, dir.getPath());
+		for (int i = 0; i < 20; i++)
+		{
+			put(cache, "q" + i, "db", 200);
+		}
+
+		// only as many results and their headers as fit in maxBytes
+		long total = 0;
+		for (final String name : files(dir))
+		{
+			total += new File(dir, name).length();
+		}
+		assertTrue(total <= 1000);
+		assertFalse(files(dir).length == 0);
+		// the newest one is still there, the oldest isn't
+		assertNotNull(new QueryCache(1000, 0, dir.getPath()).get("q19"));
+		assertNull(new QueryCache(1000, 0, dir.getPath()).get("q0"));
+	}
+
+	@Test
+	public void readingAFileKeepsItOnDisk() throws Exception {
+		final File dir = folder.newFolder();
+		final QueryCache writer = new QueryCache(1000, 0, dir.getPath());
+		// three fit, a fourth doesn't
+		put(writer, "a", "db", 250);
+		put(writer, "b", "db", 250);
+		put(writer, "c", "db", 250);
+		assertEquals(3, files(dir).length);
+		// written long ago, a first
+		final String[] keys = { "a", "b", "c" };
+		for (int i = 0; i < keys.length; i++)
+		{
+			assertTrue(file(dir, keys[i]).exists());
+			Files.setLastModifiedTime(file(dir, keys[i]).toPath(), FileTime.fromMillis(1000 * (i + 1)));
+		}
+
+		// another cache reads a, so b is now the least recently used file
+		assertNotNull(new QueryCache(1000, 0, dir.getPath()).get("a"));
+		put(writer, "d", "db", 250);
+
+		final QueryCache reader = new QueryCache(1000, 0, dir.getPath());
+		assertNotNull(reader.get("a"));
+		assertNull(reader.get("b"));
+		assertNotNull(reader.get("d"));
+	}
+}
@@ -0,0 +1,150 @@
+package com.ocient.jdbc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.ocient.jdbc.proto.ClientWireProtocol.ClientConnection;
+import com.ocient.jdbc.proto.ClientWireProtocol.ClientConnection2;
+
+public class ResumptionTest
+{
+	private static final byte[] TICKET = "ticket-1".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] TICKET2 = "ticket-2".getBytes(StandardCharsets.UTF_8);
+
+	private static byte[] random(final int length)
+	{
+		final byte[] ret = new byte[length];
+		new SecureRandom().nextBytes(ret);
+		return ret;
+	}
+
+	/*
+	 * Answers a resuming hello, checking the proof against the secret the ticket should stand for
+	 * by now. Returns the secret it moves on to.
+	 */
+	private static byte[] resume(final StandInServer.Session session, final byte[] ticket, final byte[] secret,
+			final byte[] newTicket) throws Exception {
+		final ClientConnection hello = session.readHello();
+		assertArrayEquals(ticket, hello.getResumptionTicket().toByteArray());
+		session.sendKey(true);
+
+		final ClientConnection2 hello2 = session.readHello2();
+		// no key exchange, no password
+		assertTrue(hello2.getPubKey().isEmpty());
+		assertTrue(hello2.getCipher().isEmpty());
+		assertArrayEquals(StandInServer.hmac(secret, session.iv), hello2.getHmac().toByteArray());
+		session.welcome(false, newTicket);
+		return StandInServer.nextResumeSecret(secret, session.iv);
+	}
+
+	@Test
+	public void keysMatchTheServersDerivation() throws Exception {
+		final byte[] secret = random(256);
+		for (int label = 0; label < 3; label++)
+		{
+			assertArrayEquals(StandInServer.deriveKey(secret, label), XGConnection.deriveKey(secret, (byte) label));
+		}
+
+		assertFalse(Arrays.equals(XGConnection.deriveKey(secret, (byte) 0), XGConnection.deriveKey(secret, (byte) 2)));
+	}
+
+	@Test
+	public void proofIsTheHmacOfTheIv() throws Exception {
+		final byte[] resumeSecret = XGConnection.deriveKey(random(256), (byte) 2);
+		final byte[] iv = random(16);
+		assertArrayEquals(StandInServer.hmac(resumeSecret, iv), XGConnection.resumeProof(resumeSecret, iv));
+
+		// a proof doesn't carry over to another handshake
+		assertFalse(Arrays.equals(XGConnection.resumeProof(resumeSecret, iv),
+				XGConnection.resumeProof(resumeSecret, random(16))));
+	}
+
+	@Test
+	public void nextSecretMatchesTheServersDerivation() throws Exception {
+		final byte[] resumeSecret = XGConnection.deriveKey(random(256), (byte) 2);
+		final byte[] iv = random(16);
+		final byte[] next = XGConnection.nextResumeSecret(resumeSecret, iv);
+		assertArrayEquals(StandInServer.nextResumeSecret(resumeSecret, iv), next);
+
+		// neither the old secret nor anything that can be worked out from the proof on the wire
+		assertFalse(Arrays.equals(resumeSecret, next));
+		assertFalse(Arrays.equals(XGConnection.deriveKey(XGConnection.resumeProof(resumeSecret, iv), (byte) 2), next));
+		assertFalse(Arrays.equals(next, XGConnection.nextResumeSecret(resumeSecret, random(16))));
+	}
+
+	@Test
+	public void reconnectResumesWithTheTicket() throws Throwable {
+		final AtomicReference<byte[]> resumeSecret = new AtomicReference<>();
+		try (StandInServer server = new StandInServer(session -> {
+			final byte[] secret = session.accept(false, TICKET);
+			resumeSecret.set(StandInServer.deriveKey(secret, 2));
+			session.drain();
+		}, session -> {
+			// no new ticket, the old one goes on with the next secret
+			resumeSecret.set(resume(session, TICKET, resumeSecret.get(), null));
+			session.drain();
+		}, session -> {
+			resumeSecret.set(resume(session, TICKET, resumeSecret.get(), TICKET2));
+			session.drain();
+		}, session -> {
+			// the new ticket stands for the secret this last resumption left behind, not the first one
+			resume(session, TICKET2, resumeSecret.get(), null);
+			session.drain();
+		}))
+		{
+			final XGConnection conn = server.connect();
+			conn.reconnect();
+			conn.reconnect();
+			conn.reconnect();
+			conn.close();
+			server.await();
+		}
+	}
+
+	@Test
+	public void failedHandshakeDropsTheTicket() throws Throwable {
+		try (StandInServer server = new StandInServer(session -> {
+			session.accept(false, TICKET);
+			session.drain();
+		}, session -> {
+			final ClientConnection hello = session.readHello();
+			assertArrayEquals(TICKET, hello.getResumptionTicket().toByteArray());
+			session.sendKey(true);
+			session.readHello2();
+			// say we've forgotten the ticket after all
+			session.reject(SQLStates.FAILED_HANDSHAKE);
+
+			// the retry is a full handshake on the same socket, with no ticket
+			final ClientConnection retry = session.readHello();
+			assertTrue(retry.getResumptionTicket().isEmpty());
+			session.sendKey(false);
+			session.agree(session.readHello2());
+			session.welcome(false, null);
+			session.drain();
+		}, session -> {
+			// and it stays dropped
+			assertTrue(session.readHello().getResumptionTicket().isEmpty());
+			session.sendKey(false);
+			session.agree(session.readHello2());
+			session.welcome(false, null);
+			session.drain();
+		}))
+		{
+			final XGConnection conn = server.connect();
+			conn.reconnect();
+			conn.reconnect();
+			assertEquals(true, conn.connected());
+			conn.close();
+			server.await();
+		}
+	}
+}
@@ -0,0 +1,390 @@
+package com.ocient.jdbc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.X509EncodedKeySpec;
+import java.sql.SQLException;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import com.ocient.jdbc.proto.ClientWireProtocol;
+import com.ocient.jdbc.proto.ClientWireProtocol.ClientConnection;
+import com.ocient.jdbc.proto.ClientWireProtocol.ClientConnection2;
+import com.ocient.jdbc.proto.ClientWireProtocol.ConfirmationResponse;
+import com.ocient.jdbc.proto.ClientWireProtocol.ConfirmationResponse.ResponseType;
+import com.ocient.jdbc.proto.ClientWireProtocol.Request;
+
+/*
+ * Plays the server side of the wire protocol on a loopback socket, one scripted session per
+ * connection the driver makes. Scripts run on the server's thread; await() rethrows whatever they
+ * threw, failed assertions included.
+ */
+class StandInServer implements Closeable
+{
+	interface Script
+	{
+		void run(Session session) throws Exception;
+	}
+
+	static final String USER = "user";
+	static final String PWD = "pwd";
+	static final String DATABASE = "db";
+
+	private final ServerSocket server;
+	private final Thread thread;
+	private volatile Throwable failure;
+
+	StandInServer(final Script... scripts) throws IOException
+	{
+		server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		thread = new Thread(() -> {
+			try
+			{
+				for (final Script script : scripts)
+				{
+					try (Session session = new Session(server.accept()))
+					{
+						script.run(session);
+					}
+				}
+			}
+			catch (final Throwable t)
+			{
+				failure = t;
+			}
+			finally
+			{
+				// so a driver trying to reconnect fails instead of waiting on a handshake
+				try
+				{
+					server.close();
+				}
+				catch (final IOException e)
+				{}
+			}
+		}, "StandInServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	int getPort()
+	{
+		return server.getLocalPort();
+	}
+
+	/*
+	 * A connection that has been through the first session's handshake
+	 */
+	XGConnection connect() throws Exception
+	{
+		final Socket sock = new Socket(server.getInetAddress(), getPort());
+		return new XGConnection(sock, USER, PWD, getPort(), server.getInetAddress().getHostAddress(), DATABASE,
+				"7.0.0", "true");
+	}
+
+	/*
+	 * Waits for every script to finish
+	 */
+	void await() throws Throwable
+	{
+		thread.join(30000);
+		final Throwable failure = this.failure;
+		if (failure != null)
+		{
+			this.failure = null;
+			throw failure;
+		}
+
+		assertEquals("scripts still running", false, thread.isAlive());
+	}
+
+	/*
+	 * Also reports a script that failed when the test didn't get as far as await(), which is
+	 * usually why the driver failed
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		server.close();
+		try
+		{
+			thread.join(10000);
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		if (failure != null)
+		{
+			throw new IOException("stand-in server script failed", failure);
+		}
+	}
+
+	static ConfirmationResponse ok()
+	{
+		return ConfirmationResponse.newBuilder().setType(ResponseType.RESPONSE_OK).build();
+	}
+
+	static ConfirmationResponse error(final SQLStates state)
+	{
+		final SQLException e = state.clone();
+		return ConfirmationResponse.newBuilder().setType(ResponseType.RESPONSE_ERROR).setReason(e.getMessage())
+				.setSqlState(e.getSQLState()).setVendorCode(e.getErrorCode()).build();
+	}
+
+	/*
+	 * SHA-256 of the secret's length, label, then the secret, written out here rather than borrowed
+	 * from the driver so the two sides are checked against each other
+	 */
+	static byte[] deriveKey(final byte[] secret, final int label) throws Exception
+	{
+		final MessageDigest sha = MessageDigest.getInstance("SHA-256");
+		sha.update(new byte[] { (byte) (secret.length >>> 24), (byte) (secret.length >>> 16),
+				(byte) (secret.length >>> 8), (byte) secret.length, (byte) label });
+		return sha.digest(secret);
+	}
+
+	static byte[] hmac(final byte[] key, final byte[] data) throws Exception
+	{
+		final Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		return mac.doFinal(data);
+	}
+
+	/*
+	 * The secret a ticket moves on to once it's been used to resume: deriveKey(HMAC of label 2 then
+	 * the iv, 2)
+	 */
+	static byte[] nextResumeSecret(final byte[] resumeSecret, final byte[] iv) throws Exception
+	{
+		final byte[] labeled = new byte[1 + iv.length];
+		labeled[0] = 2;
+		System.arraycopy(iv, 0, labeled, 1, iv.length);
+		return deriveKey(hmac(resumeSecret, labeled), 2);
+	}
+
+	static class Session implements Closeable
+	{
+		final Socket sock;
+		final DataInputStream in;
+		final DataOutputStream out;
+		// once agreed, server messages carry the stream header
+		boolean multiplex;
+		// of the last ClientConnectionResponse
+		byte[] iv;
+		private KeyPair keys;
+
+		Session(final Socket sock) throws IOException
+		{
+			this.sock = sock;
+			sock.setSoTimeout(10000);
+			in = new DataInputStream(sock.getInputStream());
+			out = new DataOutputStream(sock.getOutputStream());
+		}
+
+		Request read() throws IOException
+		{
+			final byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+			return Request.parseFrom(data);
+		}
+
+		Request read(final Request.RequestType type) throws IOException
+		{
+			final Request request = read();
+			assertEquals(type, request.getType());
+			return request;
+		}
+
+		/*
+		 * A response on the connection's own stream
+		 */
+		void write(final MessageLite msg) throws IOException
+		{
+			write(0, msg);
+		}
+
+		void write(final int streamId, final MessageLite msg) throws IOException
+		{
+			final byte[] data = msg.toByteArray();
+			out.writeInt(data.length);
+			if (multiplex)
+			{
+				out.writeInt(streamId);
+			}
+			out.write(data);
+			out.flush();
+		}
+
+		/*
+		 * The response to request, on its stream
+		 */
+		void reply(final Request request, final MessageLite msg) throws IOException
+		{
+			write(request.getStreamId(), msg);
+		}
+
+		ClientConnection readHello() throws IOException
+		{
+			final ClientConnection hello = read(Request.RequestType.CLIENT_CONNECTION).getClientConnection();
+			assertEquals(USER, hello.getUserid());
+			assertEquals(DATABASE, hello.getDatabase());
+			return hello;
+		}
+
+		/*
+		 * Answers ClientConnection with a fresh iv and either our DH key or, if resume, an
+		 * acceptance of the client's ticket
+		 */
+		void sendKey(final boolean resume) throws Exception
+		{
+			iv = new byte[16];
+			new SecureRandom().nextBytes(iv);
+			final ClientWireProtocol.ClientConnectionResponse.Builder ccr =
+					ClientWireProtocol.ClientConnectionResponse.newBuilder();
+			ccr.setResponse(ok());
+			ccr.setIv(ByteString.copyFrom(iv));
+			if (resume)
+			{
+				ccr.setResume(true);
+			}
+			else
+			{
+				final KeyPairGenerator gen = KeyPairGenerator.getInstance("DH");
+				gen.initialize(2048);
+				keys = gen.generateKeyPair();
+				ccr.setPubKey(pem(keys.getPublic()));
+			}
+			write(ccr.build());
+		}
+
+		ClientConnection2 readHello2() throws IOException
+		{
+			return read(Request.RequestType.CLIENT_CONNECTION2).getClientConnection2();
+		}
+
+		/*
+		 * The shared secret from the client's half of the key exchange. Checks that the password
+		 * made it across under the keys derived from it.
+		 */
+		byte[] agree(final ClientConnection2 hello2) throws Exception
+		{
+			String keySpec = hello2.getPubKey();
+			keySpec = keySpec.replace("-----BEGIN PUBLIC KEY-----\n", "");
+			keySpec = keySpec.replace("-----END PUBLIC KEY-----\n", "");
+			final PublicKey clientKey = KeyFactory.getInstance("DH")
+					.generatePublic(new X509EncodedKeySpec(Base64.getMimeDecoder().decode(keySpec)));
+			final KeyAgreement ka = KeyAgreement.getInstance("DH");
+			ka.init(keys.getPrivate());
+			ka.doPhase(clientKey, true);
+			final byte[] secret = ka.generateSecret();
+
+			final byte[] ciphertext = hello2.getCipher().toByteArray();
+			assertArrayEquals(hmac(deriveKey(secret, 1), ciphertext), hello2.getHmac().toByteArray());
+			final Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(deriveKey(secret, 0), "AES"), new IvParameterSpec(iv));
+			assertEquals(PWD, new String(cipher.doFinal(ciphertext), StandardCharsets.UTF_8));
+			return secret;
+		}
+
+		/*
+		 * Ends the handshake successfully. ticket may be null.
+		 */
+		void welcome(final boolean multiplex, final byte[] ticket) throws IOException
+		{
+			final ClientWireProtocol.ClientConnection2Response.Builder ccr2 =
+					ClientWireProtocol.ClientConnection2Response.newBuilder();
+			ccr2.setResponse(ok());
+			ccr2.setMultiplex(multiplex);
+			if (ticket != null)
+			{
+				ccr2.setResumptionTicket(ByteString.copyFrom(ticket));
+			}
+			write(ccr2.build());
+			this.multiplex = multiplex;
+		}
+
+		void reject(final SQLStates state) throws IOException
+		{
+			write(ClientWireProtocol.ClientConnection2Response.newBuilder().setResponse(error(state)).build());
+		}
+
+		/*
+		 * A full handshake from the top, returning the shared secret
+		 */
+		byte[] accept(final boolean multiplex, final byte[] ticket) throws Exception
+		{
+			readHello();
+			sendKey(false);
+			final byte[] secret = agree(readHello2());
+			welcome(multiplex, ticket);
+			return secret;
+		}
+
+		/*
+		 * Answers whatever the driver sends while it closes up or sits idle, until it hangs up
+		 */
+		void drain() throws IOException
+		{
+			while (true)
+			{
+				final Request request;
+				try
+				{
+					request = read();
+				}
+				catch (final IOException e)
+				{
+					return;
+				}
+
+				switch (request.getType())
+				{
+					case CLOSE_CONNECTION:
+						return;
+					case CLOSE_RESULT_SET:
+					case TEST_CONNECTION:
+						reply(request, ok());
+						break;
+					default:
+						throw new AssertionError("unexpected " + request.getType());
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			sock.close();
+		}
+
+		private static String pem(final PublicKey key)
+		{
+			return "-----BEGIN PUBLIC KEY-----\n" + Base64.getMimeEncoder().encodeToString(key.getEncoded())
+					+ "\n-----END PUBLIC KEY-----\n";
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.ocient.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class StringDecoderTest
+{
+	private static ByteBuffer utf8(final String prefix, final String val)
+	{
+		final byte[] p = prefix.getBytes(StandardCharsets.UTF_8);
+		final byte[] v = val.getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer bb = ByteBuffer.allocate(p.length + v.length);
+		bb.put(p).put(v);
+		return bb;
+	}
+
+	private static String decode(final StringDecoder decoder, final String val, final int col)
+	{
+		final ByteBuffer bb = utf8("xx", val);
+		return decoder.decode(bb, 2, bb.capacity() - 2, col);
+	}
+
+	@Test
+	public void decodesAsciiAndUtf8() {
+		final StringDecoder decoder = new StringDecoder(false);
+		assertEquals("", decode(decoder, "", 0));
+		assertEquals("plain ascii", decode(decoder, "plain ascii", 0));
+		assertEquals("na\u00efve \u2013 \u2603 \ud834\udd1e", decode(decoder, "na\u00efve \u2013 \u2603 \ud834\udd1e", 0));
+	}
+
+	@Test
+	public void growsTheScratchArray() {
+		final StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+		{
+			big.append((char) ('a' + i % 26));
+		}
+
+		final StringDecoder decoder = new StringDecoder(false);
+		assertEquals(big.toString(), decode(decoder, big.toString(), 0));
+		assertEquals("short", decode(decoder, "short", 0));
+	}
+
+	@Test
+	public void dedupsShortValuesPerColumn() {
+		final StringDecoder decoder = new StringDecoder(true);
+		final String first = decode(decoder, "red", 0);
+		assertSame(first, decode(decoder, "red", 0));
+		assertNotSame(first, decode(decoder, "red", 1));
+
+		// skipped for col -1
+		assertNotSame(first, decode(decoder, "red", -1));
+
+		decoder.reset();
+		assertNotSame(first, decode(decoder, "red", 0));
+	}
+
+	@Test
+	public void stopsRememberingAfterTooManyValues() {
+		final StringDecoder decoder = new StringDecoder(true);
+		for (int i = 0; i < 1000; i++)
+		{
+			// still correct once the table is full
+			assertEquals("v" + i, decode(decoder, "v" + i, 0));
+		}
+
+		final String early = decode(decoder, "v1", 0);
+		assertSame(early, decode(decoder, "v1", 0));
+		final String late = decode(decoder, "v999", 0);
+		assertNotSame(late, decode(decoder, "v999", 0));
+	}
+
+	@Test
+	public void viewsReadTheBuffer() {
+		final ByteBuffer bb = utf8("--", "hello world");
+		final StringDecoder.View view = new StringDecoder.View(bb, 2, 11);
+		assertEquals(11, view.length());
+		assertEquals('w', view.charAt(6));
+		assertEquals("world", view.subSequence(6, 11).toString());
+		assertEquals("hello world", view.toString());
+
+		final String nonAscii = "a\u00f1b";
+		final ByteBuffer bb2 = utf8("", nonAscii);
+		final StringDecoder.View view2 = new StringDecoder.View(bb2, 0, bb2.capacity());
+		assertEquals(3, view2.length());
+		assertEquals('\u00f1', view2.charAt(1));
+		assertEquals("\u00f1b", view2.subSequence(1, 3).toString());
+	}
+}
@@ -0,0 +1,250 @@
+package com.ocient.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.function.IntSupplier;
+
+import org.junit.Test;
+
+import com.ocient.jdbc.FetchBlockTest.Wire;
+import com.ocient.jdbc.proto.ClientWireProtocol;
+import com.ocient.jdbc.proto.ClientWireProtocol.Request;
+
+/*
+ * Each test keeps at most one physical connection open at a time, since the stand-in server plays
+ * its sessions one after the other.
+ */
+public class XGDataSourceTest
+{
+	private static final String SQL = "SELECT C1 FROM T";
+
+	private static XGDataSource dataSource(final StandInServer server) throws SQLException {
+		final XGDataSource ds = new XGDataSource("jdbc:ocient://127.0.0.1:" + server.getPort() + "/"
+				+ StandInServer.DATABASE, StandInServer.USER, StandInServer.PWD);
+		// the maintainer only runs once, at the start, unless a test wants it to
+		ds.setValidationIntervalMillis(60000);
+		ds.setLoginTimeout(5);
+		return ds;
+	}
+
+	/*
+	 * Runs the query and leaves the result set open, with a row still to be read
+	 */
+	private static void serveQuery(final StandInServer.Session session) throws Exception {
+		final Request query = session.read(Request.RequestType.EXECUTE_QUERY);
+		session.reply(query,
+				ClientWireProtocol.ExecuteQueryResponse.newBuilder().setResponse(StandInServer.ok()).build());
+		final Request metadata = session.read(Request.RequestType.FETCH_METADATA);
+		final Request fetch = session.read(Request.RequestType.FETCH_DATA);
+		session.reply(metadata, ClientWireProtocol.FetchMetadataResponse.newBuilder().setResponse(StandInServer.ok())
+				.putCols2Pos("C1", 0).putCols2Types("C1", "INT").build());
+		final ClientWireProtocol.ResultSet rs = ClientWireProtocol.ResultSet.newBuilder()
+				.addBlobs(FetchBlockTest.blob(new Wire().i(1).toByteArray())).build();
+		session.reply(fetch, ClientWireProtocol.FetchDataResponse.newBuilder().setResponse(StandInServer.ok())
+				.setResultSet(rs).build());
+	}
+
+	private static void serveUpdate(final StandInServer.Session session) throws Exception {
+		final Request update = session.read(Request.RequestType.EXECUTE_UPDATE);
+		session.reply(update, ClientWireProtocol.ExecuteUpdateResponse.newBuilder().setResponse(StandInServer.ok())
+				.setUpdateRowCount(1).build());
+	}
+
+	private static void awaitValue(final int expected, final IntSupplier actual) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (actual.getAsInt() != expected && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+
+		assertEquals(expected, actual.getAsInt());
+	}
+
+	@Test
+	public void givesBackAndReusesTheConnection() throws Throwable {
+		try (StandInServer server = new StandInServer(session -> {
+			session.accept(false, null);
+			serveQuery(session);
+			// giving the connection back closes the result set the first borrower left open
+			session.reply(session.read(Request.RequestType.CLOSE_RESULT_SET), StandInServer.ok());
+			serveUpdate(session);
+			session.drain();
+		}))
+		{
+			final XGDataSource ds = dataSource(server);
+			final Connection first = ds.getConnection();
+			assertEquals(1, ds.getActiveConnections());
+			final Statement stmt = first.createStatement();
+			assertEquals(first, stmt.getConnection());
+			final ResultSet rs = stmt.executeQuery(SQL);
+			first.close();
+			assertTrue(first.isClosed());
+			assertTrue(stmt.isClosed());
+			assertTrue(rs.isClosed());
+			assertEquals(0, ds.getActiveConnections());
+			assertEquals(1, ds.getIdleConnections());
+
+			// a statement of the first borrower can't reach the next one's session
+			try
+			{
+				stmt.executeUpdate("INSERT INTO T VALUES (1)");
+				fail();
+			}
+			catch (final SQLException e)
+			{
+				assertTrue(SQLStates.CALL_ON_CLOSED_OBJECT.equals(e));
+			}
+
+			final Connection second = ds.getConnection();
+			assertEquals(1, second.createStatement().executeUpdate("INSERT INTO T VALUES (1)"));
+			second.close();
+
+			assertEquals(1, ds.getCreatedCount());
+			assertEquals(2, ds.getBorrowedCount());
+			assertEquals(1, ds.getTotalConnections());
+			ds.close();
+			assertEquals(0, ds.getTotalConnections());
+			server.await();
+		}
+	}
+
+	@Test
+	public void evictsIdleConnections() throws Throwable {
+		try (StandInServer server = new StandInServer(session -> {
+			session.accept(false, null);
+			// answers the validations until the maintainer gives up on us
+			session.drain();
+		}, session -> {
+			session.accept(false, null);
+			session.drain();
+		}))
+		{
+			final XGDataSource ds = dataSource(server);
+			ds.setValidationIntervalMillis(50);
+			ds.setIdleTimeoutMillis(300);
+			ds.getConnection().close();
+			assertEquals(1, ds.getIdleConnections());
+
+			awaitValue(0, ds::getTotalConnections);
+			assertEquals(0, ds.getIdleConnections());
+			assertEquals(1, ds.getRetiredCount());
+
+			// the next borrower gets a new one
+			ds.getConnection().close();
+			assertEquals(2, ds.getCreatedCount());
+			ds.close();
+			server.await();
+		}
+	}
+
+	@Test
+	public void replacesConnectionsPastTheirLifetime() throws Throwable {
+		try (StandInServer server = new StandInServer(session -> {
+			session.accept(false, null);
+			session.drain();
+		}, session -> {
+			session.accept(false, null);
+			session.drain();
+		}))
+		{
+			final XGDataSource ds = dataSource(server);
+			ds.setMaxLifetimeMillis(200);
+			ds.getConnection().close();
+			assertEquals(1, ds.getIdleConnections());
+			Thread.sleep(300);
+
+			// too old to hand out, so it's closed and replaced
+			final Connection conn = ds.getConnection();
+			assertEquals(2, ds.getCreatedCount());
+			assertEquals(1, ds.getRetiredCount());
+			Thread.sleep(300);
+
+			// and too old to take back
+			conn.close();
+			assertEquals(2, ds.getRetiredCount());
+			assertEquals(0, ds.getIdleConnections());
+			assertEquals(0, ds.getTotalConnections());
+			ds.close();
+			server.await();
+		}
+	}
+
+	@Test
+	public void timesOutWaitingForAConnection() throws Throwable {
+		try (StandInServer server = new StandInServer(session -> {
+			session.accept(false, null);
+			session.drain();
+		}))
+		{
+			final XGDataSource ds = dataSource(server);
+			ds.setMaxPoolSize(1);
+			ds.setLoginTimeout(1);
+			final Connection conn = ds.getConnection();
+
+			final long start = System.nanoTime();
+			try
+			{
+				ds.getConnection();
+				fail();
+			}
+			catch (final SQLException e)
+			{
+				assertTrue(SQLStates.FAILED_CONNECTION.equals(e));
+			}
+			assertTrue(System.nanoTime() - start >= 900000000L);
+			assertEquals(1, ds.getTimeoutCount());
+			assertEquals(1, ds.getActiveConnections());
+
+			// the wait that timed out didn't take a permit with it
+			conn.close();
+			assertEquals(0, ds.getActiveConnections());
+			ds.getConnection().close();
+			assertEquals(1, ds.getCreatedCount());
+			ds.close();
+			server.await();
+		}
+	}
+
+	@Test
+	public void errorWhileGivingBackReleasesThePermitOnce() throws Throwable {
+		try (StandInServer server = new StandInServer(session -> {
+			session.accept(false, null);
+			serveQuery(session);
+			session.reply(session.read(Request.RequestType.CLOSE_RESULT_SET),
+					StandInServer.error(SQLStates.INTERNAL_ERROR));
+			session.drain();
+		}, session -> {
+			session.accept(false, null);
+			session.drain();
+		}))
+		{
+			final XGDataSource ds = dataSource(server);
+			ds.setMaxPoolSize(1);
+			ds.setLoginTimeout(1);
+			final Connection conn = ds.getConnection();
+			conn.createStatement().executeQuery(SQL);
+			// the result set can't be closed, so the connection is thrown away instead of given back
+			conn.close();
+
+			assertEquals(0, ds.getActiveConnections());
+			assertEquals(0, ds.getIdleConnections());
+			assertEquals(0, ds.getTotalConnections());
+			assertEquals(1, ds.getRetiredCount());
+
+			// with the one permit back, the next borrower gets a new connection rather than timing out
+			final Connection next = ds.getConnection();
+			assertEquals(2, ds.getCreatedCount());
+			assertEquals(1, ds.getActiveConnections());
+			next.close();
+			assertEquals(0, ds.getActiveConnections());
+			ds.close();
+			server.await();
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.ocient.jdbc;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class XGStatementTest
+{
+	@Test
+	public void setStatementsChangeTheSession() {
+		assertTrue(XGStatement.isSessionChange("SET SCHEMA s"));
+		assertTrue(XGStatement.isSessionChange("  set\tpso on"));
+		assertTrue(XGStatement.isSessionChange("\nSet\nschema s"));
+	}
+
+	@Test
+	public void otherStatementsDoNot() {
+		assertFalse(XGStatement.isSessionChange("SETTINGS"));
+		assertFalse(XGStatement.isSessionChange("SETUP_TABLE x"));
+		assertFalse(XGStatement.isSessionChange("SET"));
+		assertFalse(XGStatement.isSessionChange("INSERT INTO T SELECT 'SET x'"));
+		assertFalse(XGStatement.isSessionChange("UPDATE T SET C1 = 1"));
+	}
+}